@@ -0,0 +1,68 @@
+package io.yooksi.jute.git;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of creating {@link GitCommand} instances. Run with {@code gradlew jmh},
+ * which enables the {@code gc} profiler so that {@code gc.alloc.rate.norm} reports the
+ * number of bytes allocated per command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GitCommandFormatBenchmark {
+
+    private final GitCLOption[] options = { DiffFilterOption.ADDED, DiffFilterOption.MODIFIED };
+    private final String[] args = { "master", "feature/branch" };
+    private List<String> paths;
+
+    @Setup
+    public void setup() {
+
+        paths = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            paths.add("src/main/java/io/yooksi/jute/file" + i + ".java");
+        }
+    }
+
+    @Benchmark
+    public GitCommand plainCommand() {
+        return new GitCommand("status --porcelain");
+    }
+
+    @Benchmark
+    public GitCommand optionsCommand() {
+        return new GitCommand("diff %opts", options);
+    }
+
+    @Benchmark
+    public GitCommand formattedCommand() {
+        return new GitCommand("diff %opts %s %s", args, options);
+    }
+
+    @Benchmark
+    public GitCommand quotedCommand() {
+        return new GitCommand("log --format=%s %s", new String[] { "%H %s", "my branch" });
+    }
+
+    @Benchmark
+    public List<GitCommand> pathsCommand() {
+        return GitCommand.forPaths("add", paths, 128 * 1024);
+    }
+}
@@ -1,6 +1,9 @@
 package io.yooksi.jute.bash;
 
 import io.yooksi.jute.git.GitCommand;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
 
 /**
  * This object represents a bash command of a specific {@link Type}.
@@ -30,6 +33,13 @@ public class BashCommand {
         Type(String name) {
             this.name = name;
         }
+
+        /**
+         * @return name of the program that executes commands of this type.
+         */
+        String getName() {
+            return name;
+        }
     }
 
     private final Type type;
@@ -40,6 +50,51 @@ public class BashCommand {
         this.type = type;
     }
 
+    /**
+     * @return arguments of this command in the order they should be passed to the program
+     *         designated by the command {@link Type}, or {@code null} if this command can only be
+     *         interpreted by a shell. Arguments are passed to the program verbatim, so they are
+     *         never subject to word splitting, globbing or any other kind of shell expansion.
+     */
+    public @Nullable List<String> getArguments() {
+        return null;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return {@code true} if this command only reads from the repository it runs in and
+     *         can safely run concurrently with other read-only commands. Commands are assumed
+     *         to modify the repository unless they explicitly declare otherwise.
+     *
+     * @see RepositoryScheduler
+     */
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Quote the given argument so that it is interpreted by bash as a single word.
+     * Arguments that contain only characters which have no special meaning to
+     * the shell are returned unchanged to keep commands readable.
+     */
+    protected static String quoteArgument(String arg) {
+
+        if (arg.isEmpty()) {
+            return "''";
+        }
+        for (int i = 0; i < arg.length(); i++)
+        {
+            char c = arg.charAt(i);
+            if (!Character.isLetterOrDigit(c) && "_-./:=@+,%".indexOf(c) < 0) {
+                return BashSyntax.singleQuote(arg);
+            }
+        }
+        return arg;
+    }
+
     /**
      * @return a {@code String} representation of this command.
      */
@@ -0,0 +1,322 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This object represents a long-lived bash process that reads commands from {@code stdin}.
+ * <p>
+ *     Every command is evaluated by the shell with {@code stdin} redirected from {@code /dev/null}
+ *     and followed by a marker line written to both {@code stdout} and {@code stderr}. The marker
+ *     written to {@code stdout} carries the exit status of the command which allows us to find out
+ *     where command output ends without waiting for the process to exit.
+ * </p>
+ * Note that commands are evaluated in the context of the same shell, meaning that variables and
+ * functions defined by one command are visible to the commands that follow. The working directory
+ * however is restored after each command. A command that exits the shell will terminate the process,
+ * after which the coprocess is no longer usable and has to be discarded.
+ *
+ * @see BashProcessPool
+ */
+@MethodsNotNull
+final class BashCoprocess implements AutoCloseable {
+
+    private static final OutputStream DISCARD = OutputStream.nullOutputStream();
+
+    private final Process process;
+    private final Writer stdin;
+    private final FrameReader stdout;
+    private final FrameReader stderr;
+    private final String marker;
+    private final Executor pumps;
+
+    /** Value of {@link System#nanoTime()} when the last command completed. */
+    private volatile long lastUsed;
+    private volatile boolean broken;
+
+    private BashCoprocess(Process process, Executor pumps) {
+
+        this.process = process;
+        this.pumps = pumps;
+        this.marker = BashSyntax.newMarker();
+        this.stdin = new BufferedWriter(new OutputStreamWriter(
+                process.getOutputStream(), StandardCharsets.UTF_8));
+        this.stdout = new FrameReader(process.getInputStream(), marker);
+        this.stderr = new FrameReader(process.getErrorStream(), marker);
+        this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Start a new bash process that reads commands from {@code stdin}.
+     *
+     * @param shell program and arguments used to launch the shell
+     * @param environment variables added to the environment of the shell
+     * @param pumps executor used to drain {@code stderr} while commands are running
+     *
+     * @throws IOException if an I/O error occurs while starting the process
+     *                     or sending the initialization commands.
+     */
+    static BashCoprocess start(List<String> shell, Map<String, String> environment,
+                               Executor pumps) throws IOException {
+
+        LibraryLogger.debug("Starting bash coprocess: " + String.join(" ", shell));
+        ProcessBuilder builder = new ProcessBuilder(shell);
+        builder.environment().putAll(environment);
+        BashCoprocess coprocess = new BashCoprocess(builder.start(), pumps);
+
+        /* Remember the initial working directory so we can restore it after each command
+         */
+        coprocess.stdin.write("__jute_home=\"$PWD\"\n");
+        coprocess.stdin.flush();
+        return coprocess;
+    }
+
+    /**
+     * Internal record of a single command evaluated by the shell as part of a batch.
+     */
+    static final class Frame {
+
+        private final String command;
+        private final OutputStream out;
+        private final OutputStream err;
+
+        /** Exit status of the command or {@code -1} if it was never evaluated. */
+        int exitCode = -1;
+        /** Value of {@link System#nanoTime()} when the command completed. */
+        long endNanos;
+
+        Frame(String command, OutputStream out, OutputStream err) {
+            this.command = command;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    /**
+     * Evaluate the given command in this shell and wait for it to complete.
+     *
+     * @param command bash command to evaluate
+     * @param out destination of the command's {@code stdout}
+     * @param err destination of the command's {@code stderr}
+     *
+     * @return the exit status of the command.
+     *
+     * @throws IOException if an I/O error occurred while communicating with the process.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    int execute(String command, OutputStream out, OutputStream err) throws IOException, InterruptedException {
+
+        Frame frame = new Frame(command, out, err);
+        executeAll(Collections.singletonList(frame));
+        return frame.exitCode;
+    }
+
+    /**
+     * Evaluate the given commands in this shell one after another and wait for all of them
+     * to complete. Commands are written to the shell while the output of previous commands is
+     * being read, so the shell never waits for us between commands. When a command terminates
+     * the shell the commands that follow it are not evaluated and keep an exit status of {@code -1}.
+     *
+     * @param frames commands to evaluate paired with destinations for their output
+     *
+     * @throws IOException if an I/O error occurred while communicating with the process,
+     *                     or if the process was terminated or is no longer usable.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    void executeAll(List<Frame> frames) throws IOException, InterruptedException {
+
+        if (broken) {
+            throw new IOException("Bash coprocess is no longer usable");
+        }
+        CompletableFuture<Void> errFrames, writer;
+        try {
+            errFrames = CompletableFuture.runAsync(() -> readErrorFrames(frames), pumps);
+            writer = frames.size() == 1 ? CompletableFuture.completedFuture(null) :
+                    CompletableFuture.runAsync(() -> writeFrames(frames), pumps);
+        }
+        catch (RejectedExecutionException e) {
+            destroy();
+            throw new IOException("Bash coprocess pool has been closed", e);
+        }
+        try {
+            if (frames.size() == 1) {
+                writeFrame(frames.get(0));
+                stdin.flush();
+            }
+            for (Frame frame : frames)
+            {
+                String status = stdout.readFrame(frame.out);
+                frame.endNanos = System.nanoTime();
+                if (status == null)
+                {
+                    if (broken) {
+                        throw new IOException("Bash coprocess has been terminated");
+                    }
+                    /* The shell exited while running the command so the exit
+                     * status of the process is the exit status of the command
+                     */
+                    broken = true;
+                    frame.exitCode = process.waitFor();
+                    break;
+                }
+                frame.exitCode = Integer.parseInt(status);
+            }
+            errFrames.get();
+            if (!broken) writer.get();
+        }
+        catch (IOException | NumberFormatException e) {
+            broken = true;
+            throw e instanceof IOException ? (IOException) e : new IOException("Malformed command frame", e);
+        }
+        catch (ExecutionException e) {
+            broken = true;
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        catch (InterruptedException e) {
+            broken = true;
+            throw e;
+        }
+        finally {
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+
+        stdin.write("eval " + BashSyntax.singleQuote(frame.command) + " < /dev/null\n");
+        stdin.write("__jute_rc=$?; builtin cd -- \"$__jute_home\"\n");
+        stdin.write("printf '\\n%s %d\\n' " + marker + " \"$__jute_rc\"\n");
+        stdin.write("printf '\\n%s\\n' " + marker + " >&2\n");
+    }
+
+    private void writeFrames(List<Frame> frames) {
+
+        try {
+            for (Frame frame : frames) {
+                writeFrame(frame);
+            }
+            stdin.flush();
+        }
+        catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void readErrorFrames(List<Frame> frames) {
+
+        try {
+            for (Frame frame : frames) {
+                if (stderr.readFrame(frame.err) == null) break;
+            }
+        }
+        catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Verify that this shell is still responsive by evaluating a no-op command. A shell that
+     * does not respond in time is terminated so the thread waiting for its response is released.
+     *
+     * @param timeout maximum time to wait for the shell to respond
+     * @return {@code true} if the shell responded in time with a successful exit status,
+     *         {@code false} if it did not or could not be checked because the executor
+     *         rejected the check.
+     */
+    boolean ping(Duration timeout) {
+
+        if (broken || !process.isAlive()) {
+            return false;
+        }
+        CompletableFuture<Integer> result;
+        try {
+            result = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return execute(":", DISCARD, DISCARD);
+                }
+                catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, pumps);
+        }
+        catch (RejectedExecutionException e) {
+            /* The pumps are shut down when the pool is closed, and the caller
+             * is expected to discard a shell that did not pass the check
+             */
+            return false;
+        }
+        try {
+            return result.get(timeout.toMillis(), TimeUnit.MILLISECONDS) == 0;
+        }
+        catch (ExecutionException | TimeoutException e) {
+            LibraryLogger.warn("Bash coprocess failed health check: " + e);
+            destroy();
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Terminate this shell and all commands it is running. Any thread waiting for
+     * a command to complete will fail with an {@code IOException} shortly after.
+     */
+    void destroy() {
+        broken = true;
+        ProcessTree.destroy(process.toHandle());
+    }
+
+    boolean isUsable() {
+        return !broken && process.isAlive();
+    }
+
+    /**
+     * @return time in nanoseconds that elapsed since the last command completed.
+     */
+    long getIdleNanos() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    /**
+     * Ask the shell to exit by closing its {@code stdin} and forcibly
+     * terminate the process if it does not exit in a timely manner.
+     */
+    @Override
+    public void close() {
+
+        try {
+            stdin.close();
+            if (!process.waitFor(1, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        catch (IOException e) {
+            process.destroyForcibly();
+        }
+        catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
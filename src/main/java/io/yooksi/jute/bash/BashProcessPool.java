@@ -0,0 +1,352 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.IBuilder;
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Contract;
+
+import javax.validation.constraints.Positive;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This object represents a pool of long-lived bash processes used to execute commands
+ * without paying the cost of starting a new shell for every command.
+ * <p>
+ *     Shell processes are started lazily when a command is executed and no idle process is available,
+ *     up to the configured pool size. When the pool is exhausted callers wait until a process is
+ *     returned to the pool. Processes that have been idle for longer than the configured idle timeout
+ *     are terminated by a background thread, and processes that exited or stopped responding are
+ *     discarded and replaced with new ones.
+ * </p>
+ * Note that commands run in a shared shell context so a pool should only be used to run commands
+ * that don't depend on or modify shell state. Read {@link BashCoprocess} documentation for more information.
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class BashProcessPool implements AutoCloseable {
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final List<String> shell;
+    private final Map<String, String> environment;
+    private final int size;
+    private final Duration idleTimeout;
+    private final Duration healthCheckTimeout;
+    private final boolean validateOnBorrow;
+
+    private final Semaphore permits;
+    private final Deque<BashCoprocess> idle = new ArrayDeque<>();
+    private final Set<BashCoprocess> borrowed = new HashSet<>();
+    private final AtomicInteger live = new AtomicInteger();
+
+    private final ExecutorService pumps;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    private BashProcessPool(Builder builder) {
+
+        this.shell = builder.shell;
+        this.environment = builder.environment;
+        this.size = builder.size;
+        this.idleTimeout = builder.idleTimeout;
+        this.healthCheckTimeout = builder.healthCheckTimeout;
+        this.validateOnBorrow = builder.validateOnBorrow;
+        this.permits = new Semaphore(size, true);
+
+        String name = "jute-bash-pool-" + POOL_COUNT.incrementAndGet();
+        this.pumps = Executors.newCachedThreadPool(new DaemonThreadFactory(name + "-pump"));
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name + "-evictor"));
+
+        long period = Math.max(idleTimeout.toMillis() / 2, 1000);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Use {@link #create(List)} method to create a new {@code Builder} instance,
+     * then chain call available class methods to configure the pool.
+     * When all configurations have been setup use {@link #build()}
+     * method to build a new {@code BashProcessPool} instance.
+     */
+    public static class Builder implements IBuilder<BashProcessPool> {
+
+        private final List<String> shell;
+        private Map<String, String> environment = Map.of();
+        private int size = Runtime.getRuntime().availableProcessors();
+        private Duration idleTimeout = Duration.ofMinutes(1);
+        private Duration healthCheckTimeout = Duration.ofSeconds(5);
+        private boolean validateOnBorrow = false;
+
+        private Builder(List<String> shell) {
+            this.shell = List.copyOf(shell);
+        }
+        /**
+         * Set the maximum number of shell processes kept by the pool.
+         * This is also the maximum number of commands the pool can run concurrently.
+         */
+        @Contract("_ -> this")
+        public Builder setSize(@Positive int size) {
+
+            if (size <= 0) {
+                throw new IllegalArgumentException("Pool size must be a positive number.");
+            }
+            this.size = size;
+            return this;
+        }
+        /**
+         * Set how long a shell process can stay unused before it is terminated.
+         */
+        @Contract("_ -> this")
+        public Builder setIdleTimeout(Duration timeout) {
+            idleTimeout = timeout;
+            return this;
+        }
+        /**
+         * Set whether to verify that an idle shell process is responsive before using it.
+         * This adds a round trip to the shell for every command but makes sure commands
+         * are never sent to processes that stopped responding while sitting in the pool.
+         */
+        @Contract("_ -> this")
+        public Builder setValidateOnBorrow(boolean validate) {
+            validateOnBorrow = validate;
+            return this;
+        }
+        /**
+         * Set variables added to the environment of every shell process started by the pool.
+         * @see LaunchProfile#getEnvironment()
+         */
+        @Contract("_ -> this")
+        public Builder setEnvironment(Map<String, String> environment) {
+            this.environment = Map.copyOf(environment);
+            return this;
+        }
+        /**
+         * Set how long to wait for a shell process to respond to a health check.
+         */
+        @Contract("_ -> this")
+        public Builder setHealthCheckTimeout(Duration timeout) {
+            healthCheckTimeout = timeout;
+            return this;
+        }
+        @Override
+        public BashProcessPool build() {
+            return new BashProcessPool(this);
+        }
+    }
+
+    /**
+     * @param shell program and arguments used to launch a bash process that reads
+     *              commands from {@code stdin}, for example {@code bash -s}.
+     *
+     * @return a new {@code Builder} instance intended to be used to
+     *         build a custom configured {@code BashProcessPool} instance.
+     */
+    public static Builder create(List<String> shell) {
+        return new Builder(shell);
+    }
+
+    /**
+     * Execute the given command in one of the pooled shell processes
+     * and discard the output. The calling thread waits until the command
+     * completes or until a shell process becomes available.
+     *
+     * @return the exit status of the command.
+     * @see #execute(String, OutputStream, OutputStream)
+     */
+    public int execute(String command) throws IOException, InterruptedException {
+        return execute(command, OutputStream.nullOutputStream(), OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Execute the given command in one of the pooled shell processes.
+     * The calling thread waits until the command completes or until
+     * a shell process becomes available.
+     *
+     * @param command bash command to execute
+     * @param out destination of the command's {@code stdout}
+     * @param err destination of the command's {@code stderr}
+     *
+     * @return the exit status of the command.
+     *
+     * @throws IllegalStateException if this pool has been closed.
+     * @throws IOException if an I/O error occurred while starting or communicating with the shell.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    public int execute(String command, OutputStream out, OutputStream err) throws IOException, InterruptedException {
+
+        BashCoprocess coprocess = borrow();
+        try {
+            return coprocess.execute(command, out, err);
+        }
+        finally {
+            giveBack(coprocess);
+        }
+    }
+
+    /**
+     * Take an idle shell process from the pool or start a new one if none are available.
+     * Idle processes that are no longer usable are discarded in the process.
+     */
+    BashCoprocess borrow() throws IOException, InterruptedException {
+
+        if (closed) {
+            throw new IllegalStateException("BashProcessPool has been closed");
+        }
+        permits.acquire();
+        try {
+            BashCoprocess coprocess;
+            while ((coprocess = pollIdle()) != null)
+            {
+                if (coprocess.isUsable() && (!validateOnBorrow || coprocess.ping(healthCheckTimeout))) {
+                    return lend(coprocess);
+                }
+                LibraryLogger.debug("Discarding unusable bash coprocess.");
+                discard(coprocess);
+            }
+            coprocess = BashCoprocess.start(shell, environment, pumps);
+            live.incrementAndGet();
+            return lend(coprocess);
+        }
+        catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Record the given shell process as borrowed so that it can be terminated when the pool
+     * is closed. A process started after the pool was closed is terminated right away.
+     */
+    private BashCoprocess lend(BashCoprocess coprocess) {
+
+        boolean open;
+        synchronized (idle)
+        {
+            open = !closed;
+            borrowed.add(coprocess);
+        }
+        if (!open) coprocess.destroy();
+        return coprocess;
+    }
+
+    /**
+     * Return a borrowed shell process to the pool or discard it if it is no longer usable.
+     */
+    void giveBack(BashCoprocess coprocess) {
+
+        boolean terminated;
+        try {
+            synchronized (idle)
+            {
+                borrowed.remove(coprocess);
+                terminated = closed && borrowed.isEmpty();
+                if (!closed && coprocess.isUsable()) {
+                    idle.addFirst(coprocess);
+                    return;
+                }
+            }
+            discard(coprocess);
+            if (terminated) pumps.shutdown();
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    private BashCoprocess pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    private void discard(BashCoprocess coprocess) {
+        live.decrementAndGet();
+        coprocess.close();
+    }
+
+    /**
+     * Terminate shell processes that have been idle for longer than the idle timeout.
+     * The most recently used processes are always kept at the head of the queue,
+     * so we only ever have to look at the tail.
+     */
+    private void evictIdle() {
+
+        long timeout = idleTimeout.toNanos();
+        while (true)
+        {
+            BashCoprocess coprocess;
+            synchronized (idle)
+            {
+                coprocess = idle.peekLast();
+                if (coprocess == null || (coprocess.isUsable() && coprocess.getIdleNanos() < timeout)) {
+                    return;
+                }
+                idle.pollLast();
+            }
+            LibraryLogger.debug("Evicting idle bash coprocess.");
+            discard(coprocess);
+        }
+    }
+
+    /**
+     * @return number of shell processes currently owned by this pool, both idle and in use.
+     */
+    public int getSize() {
+        return live.get();
+    }
+
+    /**
+     * @return number of shell processes currently waiting in the pool to be used.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * @return maximum number of shell processes this pool will keep.
+     */
+    public int getMaxSize() {
+        return size;
+    }
+
+    /**
+     * Terminate all shell processes and stop accepting new commands. Commands running in
+     * processes that are currently in use fail with an {@code IOException}, and the threads
+     * that pump their output are stopped once the last of these processes is returned.
+     */
+    @Override
+    public void close() {
+
+        List<BashCoprocess> inUse;
+        synchronized (idle)
+        {
+            closed = true;
+            inUse = new ArrayList<>(borrowed);
+        }
+        evictor.shutdownNow();
+        BashCoprocess coprocess;
+        while ((coprocess = pollIdle()) != null) {
+            discard(coprocess);
+        }
+        for (BashCoprocess process : inUse) {
+            process.destroy();
+        }
+        if (inUse.isEmpty()) pumps.shutdown();
+    }
+}
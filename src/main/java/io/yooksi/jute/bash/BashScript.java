@@ -6,10 +6,24 @@ import io.yooksi.commons.util.ArrayUtils;
 import io.yooksi.commons.util.FileUtils;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * This object represents a programmatically constructed bash script.
@@ -24,9 +38,30 @@ import java.util.List;
 @SuppressWarnings("unused")
 public class BashScript {
 
+    /**
+     * Describes when commands written by a {@link #stream(Path, RedirectOutput, SyncPolicy) streaming}
+     * builder are forced to the storage device, which is a trade-off between speed and durability.
+     */
+    public enum SyncPolicy {
+        /**
+         * Never force commands to the storage device, leaving it to the operating system.
+         * This is the fastest policy and the same guarantee a regular script gets.
+         */
+        NONE,
+        /**
+         * Force the whole script to the storage device once when the script is built.
+         */
+        ON_BUILD,
+        /**
+         * Force every command to the storage device as soon as it is finalized, so that the
+         * script is complete up to the last finalized command even if the builder is abandoned.
+         */
+        EVERY_COMMAND
+    }
+
     private final UnixPath path;
-    private final java.io.File file;
-    private final List<String> commands;
+    private final File file;
+    private final @Nullable List<String> commands;
 
     /**
      * @param path bash script file path
@@ -36,14 +71,14 @@ public class BashScript {
      * @throws IllegalStateException when an I/O exception occurs while writing to file.
      *         We are using a {@code RuntimeException} here to get around interface contracts.
      */
-    private BashScript(UnixPath path, List<String> commands, boolean write) throws IllegalStateException {
+    private BashScript(UnixPath path, @Nullable List<String> commands, boolean write) throws IllegalStateException {
 
         try {
             this.path = path;
-            this.file = new java.io.File(path.toString());
+            this.file = new File(path.toString());
             this.commands = commands;
 
-            if (write) {
+            if (write && commands != null) {
                 FileUtils.writeLines(file, commands);
             }
         }
@@ -58,16 +93,31 @@ public class BashScript {
      * instance, then chain call available class methods to construct each command.
      * When all commands have been constructed use {@link #build()} to finalize all
      * information and build a new {@code BashScript} instance.
+     * <p>
+     *     Builders created with one of the {@code stream} methods don't hold on to finalized
+     *     commands, instead each command is written to the script file as soon as it is finalized.
+     * </p>
      */
     public static class Builder implements IBuilder<BashScript> {
 
+        /**
+         * Delimiter of here-documents written by {@link #withInput(Iterable)}.
+         */
+        private static final String INPUT_DELIMITER = "__JUTE_INPUT__";
+
         private final Path scriptPath;
         private final @Nullable RedirectOutput redirect;
 
         private final boolean write;
+        private final @Nullable ScriptWriter writer;
 
         private final StringBuilder command = new StringBuilder();
-        private final List<String> lines = new java.util.ArrayList<>();
+        private final List<String> lines = new ArrayList<>();
+        private long lineCount;
+
+        /* Input lines of the current command, written to a here-document when the command is finalized
+         */
+        private @Nullable Iterable<? extends CharSequence> input;
 
         /**
          * @param script abstract path to the bash script file
@@ -79,6 +129,20 @@ public class BashScript {
             this.scriptPath = script;
             this.redirect = redirect;
             this.write = write;
+            this.writer = null;
+        }
+
+        /**
+         * @param script abstract path to the bash script file
+         * @param redirect instructions on how to redirect command output
+         * @param writer used to write each command as soon as it is finalized
+         */
+        private Builder(Path script, @Nullable RedirectOutput redirect, ScriptWriter writer) {
+
+            this.scriptPath = script;
+            this.redirect = redirect;
+            this.write = true;
+            this.writer = writer;
         }
 
         /**
@@ -100,6 +164,56 @@ public class BashScript {
             return next(redirect);
         }
 
+        /**
+         * Feed the given text to {@code stdin} of the current command. The text is written to the
+         * script as a here-document with a quoted delimiter, so it is never interpreted by the shell
+         * and is not subject to command line length limits. Text that does not end with a line feed
+         * is terminated with one, as here-documents always end with a complete line.
+         * <p>
+         *     This method has no effect if it's not called on an active command, so it should be called
+         *     right after the command is appended, and before its output is {@link #toFile redirected}.
+         * </p>
+         */
+        public Builder withInput(CharSequence text) {
+
+            List<CharSequence> inputLines = new ArrayList<>();
+            int start = 0, end;
+            while ((end = indexOf(text, '\n', start)) >= 0)
+            {
+                inputLines.add(text.subSequence(start, end));
+                start = end + 1;
+            }
+            if (start < text.length()) {
+                inputLines.add(text.subSequence(start, text.length()));
+            }
+            return withInput(inputLines);
+        }
+
+        /**
+         * Feed the given lines to {@code stdin} of the current command, each followed by a line feed.
+         * Lines are only iterated when the command is finalized, and streaming builders write them
+         * to the script one by one, so large inputs like file lists can be generated lazily.
+         * The lines are iterated twice, once to choose a delimiter none of them is equal to.
+         *
+         * @throws IllegalArgumentException when the command is finalized if a line contains a line feed.
+         * @see #withInput(CharSequence)
+         */
+        public Builder withInput(Iterable<? extends CharSequence> lines) {
+
+            if (command.length() > 0) {
+                input = lines;
+            }
+            return this;
+        }
+
+        private static int indexOf(CharSequence text, char c, int from) {
+
+            for (int i = from; i < text.length(); i++) {
+                if (text.charAt(i) == c) return i;
+            }
+            return -1;
+        }
+
         /**
          * <p>Append a single {@code BashCommand} to this script.</p>
          * <i>Note that this process will reset the current command.</i>
@@ -117,6 +231,47 @@ public class BashScript {
             return next();
         }
 
+        /**
+         * <p>Append all given bash commands to this script in iteration order.</p>
+         * <i>Note that this process will reset the current command.</i>
+         */
+        public Builder appendCmds(Iterable<? extends BashCommand> cmds) {
+
+            for (BashCommand cmd : cmds) {
+                appendCmd(cmd);
+            }
+            return next();
+        }
+
+        /**
+         * <p>Append a group of commands that run as background jobs according to the given graph.</p>
+         * The output of every command in the group is redirected the same way the output
+         * of other commands is, except that it is always appended to the file, and that
+         * framed output of the whole group is delivered as a single frame.
+         * <i>Note that this process will reset the current command.</i>
+         *
+         * @see JobGraph
+         */
+        public Builder appendJobs(JobGraph graph) {
+
+            next();
+            if (redirect != null && redirect.type == RedirectOutput.Type.FRAMED)
+            {
+                /* Jobs write to stdout concurrently so the whole group forms a single frame
+                 */
+                List<String> jobLines = graph.toLines(null);
+                int last = jobLines.size() - 1;
+                jobLines.subList(0, last).forEach(this::emit);
+                emit(jobLines.get(last) + redirect.frame(lineCount));
+                return this;
+            }
+            if (redirect != null && lineCount == 0 && redirect.type == RedirectOutput.Type.OVERWRITE) {
+                emit(": " + RedirectOutput.Type.OVERWRITE.value + ' ' + redirect.path);
+            }
+            graph.toLines(redirect).forEach(this::emit);
+            return this;
+        }
+
         /**
          * Construct the current command from the given parameters.
          * <p><i>
@@ -180,19 +335,76 @@ public class BashScript {
 
             if (command.length() > 0)
             {
-                if (redirect != null)
+                String delimiter = input != null ? getInputDelimiter(input) : null;
+                if (delimiter != null) {
+                    command.append(" <<'").append(delimiter).append('\'');
+                }
+                if (redirect != null && redirect.type == RedirectOutput.Type.FRAMED) {
+                    command.append(redirect.frame(lineCount));
+                }
+                else if (redirect != null)
                 {
-                    String operator = !lines.isEmpty() && redirect.type == RedirectOutput.Type.OVERWRITE ?
+                    String operator = lineCount > 0 && redirect.type == RedirectOutput.Type.OVERWRITE ?
                             RedirectOutput.Type.APPEND.value : redirect.type.value;
 
                     appendArgs(operator, redirect.path.toString());
                 }
-                lines.add(command.toString());
+                emit(command);
+                if (input != null) {
+                    emitInput(input, Objects.requireNonNull(delimiter));
+                }
                 resetCommand();
             }
             return this;
         }
 
+        /**
+         * @return delimiter of a here-document with the given lines. The delimiter depends only on
+         *         the lines, so that scripts with the same commands and input are identical, and
+         *         differs from {@link #INPUT_DELIMITER} only if one of the lines is equal to it.
+         */
+        private static String getInputDelimiter(Iterable<? extends CharSequence> input) {
+
+            Set<String> reserved = new HashSet<>();
+            for (CharSequence line : input)
+            {
+                String sLine = line.toString();
+                if (sLine.startsWith(INPUT_DELIMITER)) reserved.add(sLine);
+            }
+            String delimiter = INPUT_DELIMITER;
+            for (int i = 1; reserved.contains(delimiter); i++) {
+                delimiter = INPUT_DELIMITER + '_' + i;
+            }
+            return delimiter;
+        }
+
+        /**
+         * Store the lines of a here-document followed by its delimiter.
+         */
+        private void emitInput(Iterable<? extends CharSequence> input, String delimiter) {
+
+            for (CharSequence line : input)
+            {
+                if (indexOf(line, '\n', 0) >= 0) {
+                    throw new IllegalArgumentException("Input line contains a line feed");
+                }
+                emit(line);
+            }
+            emit(delimiter);
+        }
+
+        /**
+         * Store a finalized line of the script.
+         */
+        private void emit(CharSequence line) {
+
+            if (writer != null) {
+                writer.write(line);
+            }
+            else lines.add(line.toString());
+            lineCount++;
+        }
+
         /**
          * Finalize, store and reset the current command.
          * @see #next(RedirectOutput)
@@ -203,11 +415,112 @@ public class BashScript {
 
         private void resetCommand() {
             command.delete(0, command.length());
+            input = null;
+        }
+
+        /**
+         * Finalize the current command and return all commands of the script
+         * without building it. Used to build scripts with a different path.
+         *
+         * @throws IllegalStateException if this is a streaming builder.
+         */
+        List<String> finish() throws IllegalStateException {
+
+            if (writer != null) {
+                throw new IllegalStateException("Streaming builders don't hold on to commands");
+            }
+            next();
+            return lines;
         }
 
         @Override
         public BashScript build() {
-            next(); return new BashScript(UnixPath.get(scriptPath), lines, write);
+
+            next();
+            if (writer != null)
+            {
+                writer.close();
+                return new BashScript(UnixPath.get(scriptPath), null, false);
+            }
+            return new BashScript(UnixPath.get(scriptPath), lines, write);
+        }
+    }
+
+    /**
+     * Internal writer that encodes commands into a buffer and writes the buffer to the script
+     * file whenever it fills up, so the amount of memory used does not depend on script size.
+     * Commands are written with the same charset and line separator as regular scripts.
+     */
+    private static final class ScriptWriter {
+
+        private final FileChannel channel;
+        private final SyncPolicy sync;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private ScriptWriter(Path path, SyncPolicy sync) throws IllegalStateException {
+
+            try {
+                this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                this.sync = sync;
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(
+                        new IOException("Failed to create new BashScript file", e));
+            }
+        }
+
+        private void write(CharSequence command) throws IllegalStateException {
+
+            try {
+                encode(CharBuffer.wrap(command));
+                encode(CharBuffer.wrap(System.lineSeparator()));
+                if (sync == SyncPolicy.EVERY_COMMAND)
+                {
+                    flush();
+                    channel.force(false);
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(
+                        new IOException("Failed to write command to BashScript file", e));
+            }
+        }
+
+        private void encode(CharBuffer chars) throws IOException {
+
+            CoderResult result;
+            while ((result = encoder.encode(chars, buffer, false)).isOverflow()) {
+                flush();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
+
+        private void flush() throws IOException {
+
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        private void close() throws IllegalStateException {
+
+            try (channel) {
+                encoder.encode(CharBuffer.allocate(0), buffer, true);
+                encoder.flush(buffer);
+                flush();
+                if (sync != SyncPolicy.NONE) {
+                    channel.force(true);
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(
+                        new IOException("Failed to write BashScript file", e));
+            }
         }
     }
 
@@ -229,13 +542,68 @@ public class BashScript {
         return new Builder(path, redirect, write);
     }
 
+    /**
+     * @return new {@code BashScript} that represents an existing script file with the given commands.
+     */
+    static BashScript existing(UnixPath path, List<String> commands) {
+        return new BashScript(path, commands, false);
+    }
+
+    /**
+     * @return new {@code BashScript} with the given commands that are written to file if requested.
+     * @throws IllegalStateException when an I/O exception occurs while writing to file.
+     */
+    static BashScript of(UnixPath path, List<String> commands, boolean write) throws IllegalStateException {
+        return new BashScript(path, commands, write);
+    }
+
+    /**
+     * @param path abstract location of the script file
+     * @param redirect how to redirect <b>all</b> commands or {@code null} to not redirect them
+     * @param sync when to force written commands to the storage device
+     * @return new {@code Builder} that writes each command to a file under
+     *         given path as soon as it is finalized.
+     *
+     * @throws IllegalStateException when an I/O exception occurs while creating the file.
+     */
+    public static Builder stream(Path path, @Nullable RedirectOutput redirect, SyncPolicy sync) {
+        return new Builder(path, redirect, new ScriptWriter(path, sync));
+    }
+    /**
+     * @param path abstract location of the script file
+     * @return new {@code Builder} that writes each command to a file under
+     *         given path as soon as it is finalized.
+     *
+     * @see #stream(Path, RedirectOutput, SyncPolicy)
+     */
+    public static Builder stream(Path path) {
+        return stream(path, null, SyncPolicy.NONE);
+    }
+
     public UnixPath getPath() {
         return path;
     }
-    public java.io.File getFile() {
+    public File getFile() {
         return file;
     }
+    /**
+     * @return list of commands in this script. Scripts built by a {@link #stream(Path)
+     *         streaming} builder don't hold on to their commands, so they are read
+     *         from the script file every time this method is called.
+     *
+     * @throws IllegalStateException when an I/O exception occurs while reading the file.
+     */
     public List<String> getCommands() {
-        return commands;
+
+        if (commands != null) {
+            return commands;
+        }
+        try {
+            return Files.readAllLines(file.toPath(), Charset.defaultCharset());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(
+                    new IOException("Failed to read BashScript file", e));
+        }
     }
 }
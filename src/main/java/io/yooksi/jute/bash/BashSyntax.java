@@ -0,0 +1,44 @@
+package io.yooksi.jute.bash;
+
+import java.util.UUID;
+
+/**
+ * Internal helper methods for producing bash syntax that is safe to feed to a shell.
+ *
+ * @see <a href=https://tiswww.case.edu/php/chet/bash/bashref.html#Quoting>
+ *      Bash Reference Manual: Quoting</a>
+ */
+final class BashSyntax {
+
+    private BashSyntax() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Enclose the given text in single quotation marks. Enclosing characters in single quotes
+     * preserves the literal value of each character within the quotes. A single quote may not
+     * occur between single quotes, so every contained single quote is closed, escaped and reopened.
+     *
+     * @return the given text as a single bash word with no characters interpreted by the shell.
+     */
+    static String singleQuote(String text) {
+
+        StringBuilder sb = new StringBuilder(text.length() + 2).append('\'');
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                sb.append("'\\''");
+            }
+            else sb.append(c);
+        }
+        return sb.append('\'').toString();
+    }
+
+    /**
+     * @return a random token that is extremely unlikely to appear in command output.
+     */
+    static String newMarker() {
+        return "__JUTE_" + UUID.randomUUID().toString().replace("-", "") + "__";
+    }
+}
@@ -0,0 +1,61 @@
+package io.yooksi.jute.bash;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Internal pool of equally sized direct {@code ByteBuffer}s used to pump and store command output.
+ * <p>
+ *     Allocating direct buffers is expensive, so buffers are recycled once they are no longer needed.
+ *     The pool retains at most a fixed number of free buffers. Buffers that are never returned to the
+ *     pool are not leaked, they are simply reclaimed by the garbage collector like any other buffer.
+ * </p>
+ */
+final class ByteBufferPool {
+
+    static final ByteBufferPool SHARED = new ByteBufferPool(64 * 1024, 256);
+
+    private final int bufferSize;
+    private final int maxRetained;
+
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+
+    ByteBufferPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * @return a cleared direct buffer taken from the pool or a newly allocated one.
+     */
+    ByteBuffer acquire() {
+
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            retained.decrementAndGet();
+            return buffer.clear();
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Return the given buffer to the pool. The buffer must not be used after being released.
+     */
+    void release(ByteBuffer buffer) {
+
+        if (buffer.isDirect() && buffer.capacity() == bufferSize)
+        {
+            if (retained.incrementAndGet() <= maxRetained) {
+                free.offer(buffer);
+            }
+            else retained.decrementAndGet();
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
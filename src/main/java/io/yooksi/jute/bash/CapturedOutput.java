@@ -0,0 +1,403 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.LineSeparator;
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object represents command output stored in memory in a chain of pooled direct buffers.
+ * <p>
+ *     The amount of stored output is bounded by a limit defined by {@link OutputCapture#buffer(long)}.
+ *     Output that exceeds the limit is counted but not stored, in which case the output is considered
+ *     to be <i>truncated</i>. Buffers are returned to the pool when the output is {@link #release() released}.
+ * </p><p>
+ *     Output captured with {@link OutputCapture#spill(long)} is moved to a temporary file once it
+ *     grows beyond the spill threshold, and is never truncated. Spilled output is accessed through
+ *     read-only buffers mapped from the file, so it does not occupy heap memory.
+ *     The file is deleted when the output is released.
+ * </p>
+ * Lines of the output can be accessed individually with {@link #getLine(long, Charset)}. Lines
+ * are found through a sparse index built the first time it is needed, which records the position
+ * of every {@value #LINE_INDEX_INTERVAL}th line, so the index is small even for huge outputs.
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CapturedOutput {
+
+    /** Number of lines between two positions recorded by the line index. */
+    static final int LINE_INDEX_INTERVAL = 64;
+
+    /** Maximum size of a single region of a spill file mapped into memory. */
+    private static final int MAP_REGION_SIZE = 1 << 30;
+
+    private final ByteBufferPool pool;
+    private final long limit;
+    private final long spillThreshold;
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private long size;
+    private boolean truncated;
+    private boolean released;
+
+    private @Nullable FileChannel spill;
+    private ByteBuffer @Nullable [] mapped;
+    private long @Nullable [] lineIndex;
+    private long lineCount, indexedSize = -1;
+
+    CapturedOutput(ByteBufferPool pool, long limit) {
+        this(pool, limit, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param spillThreshold number of bytes stored in memory before the output is moved to a file
+     */
+    CapturedOutput(ByteBufferPool pool, long limit, long spillThreshold) {
+        this.pool = pool;
+        this.limit = limit;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Store the remaining bytes of the given buffer, or as many of them as the limit allows.
+     * All remaining bytes are always consumed, even if they are not stored.
+     *
+     * @throws IOException if an I/O error occurred while writing spilled output.
+     */
+    synchronized void store(ByteBuffer src) throws IOException {
+
+        if (!released && spill == null && size + src.remaining() > spillThreshold) {
+            spill = createSpill();
+        }
+        if (!released && spill != null)
+        {
+            int length = src.remaining();
+            while (src.hasRemaining()) spill.write(src);
+            size += length;
+            return;
+        }
+        while (src.hasRemaining())
+        {
+            if (released || size >= limit)
+            {
+                truncated = true;
+                src.position(src.limit());
+                break;
+            }
+            ByteBuffer last = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+            if (last == null || !last.hasRemaining()) {
+                buffers.add(last = pool.acquire());
+            }
+            int length = (int) Math.min(Math.min(src.remaining(), last.remaining()), limit - size);
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            last.put(slice);
+            src.position(src.position() + length);
+            size += length;
+        }
+    }
+
+    /**
+     * @return number of bytes stored in memory.
+     */
+    @Contract(pure = true)
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Move output stored in memory to a new temporary file and return the buffers to the pool.
+     * The file is deleted as soon as the channel is closed, while mapped regions stay valid.
+     */
+    private FileChannel createSpill() throws IOException {
+
+        Path file = Files.createTempFile("jute-output", ".spill");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            for (ByteBuffer buffer : buffers)
+            {
+                buffer.flip();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                pool.release(buffer);
+            }
+            buffers.clear();
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * @return {@code true} if the output was moved from memory to a temporary file.
+     */
+    @Contract(pure = true)
+    public synchronized boolean isSpilled() {
+        return spill != null;
+    }
+
+    /**
+     * @return {@code true} if some of the output was discarded because it exceeded the limit.
+     */
+    @Contract(pure = true)
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return an array of read-only buffers that together contain the stored output in natural
+     *         order. Note that the buffers share content with this object and become invalid
+     *         once this output is {@link #release() released}. Spilled output is returned
+     *         as regions of at most one gigabyte mapped from the file.
+     *
+     * @throws UncheckedIOException if spilled output could not be mapped into memory.
+     */
+    public synchronized ByteBuffer[] getBuffers() {
+
+        checkNotReleased();
+        if (spill != null) {
+            return getMappedBuffers(spill);
+        }
+        ByteBuffer[] result = new ByteBuffer[buffers.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buffers.get(i).duplicate().flip().asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    private ByteBuffer[] getMappedBuffers(FileChannel channel) {
+
+        long mappedSize = 0;
+        if (mapped != null) {
+            for (ByteBuffer buffer : mapped) mappedSize += buffer.capacity();
+        }
+        if (mapped == null || mappedSize != size)
+        {
+            try {
+                int count = (int) ((size + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE);
+                ByteBuffer[] regions = new ByteBuffer[count];
+                for (int i = 0; i < count; i++)
+                {
+                    long position = (long) i * MAP_REGION_SIZE;
+                    long length = Math.min(MAP_REGION_SIZE, size - position);
+                    regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                }
+                mapped = regions;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Unable to map spilled output", e);
+            }
+        }
+        ByteBuffer[] result = new ByteBuffer[mapped.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = mapped[i].duplicate();
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the stored output as a byte array.
+     * @throws IllegalStateException if the output is too large to fit in an array.
+     */
+    public synchronized byte[] toByteArray() {
+
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Captured output is too large to fit in an array");
+        }
+        byte[] result = new byte[(int) size];
+        int offset = 0;
+        for (ByteBuffer buffer : getBuffers())
+        {
+            int length = buffer.remaining();
+            buffer.get(result, offset, length);
+            offset += length;
+        }
+        return result;
+    }
+
+    /**
+     * Write the stored output to the given channel.
+     */
+    public synchronized void writeTo(WritableByteChannel channel) throws IOException {
+
+        if (spill != null)
+        {
+            for (long position = 0; position < size; ) {
+                position += spill.transferTo(position, size - position, channel);
+            }
+            return;
+        }
+        for (ByteBuffer buffer : getBuffers()) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return the stored output decoded with the given charset.
+     */
+    public String toString(Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    /**
+     * @return the stored output decoded with the given charset and split into lines.
+     *         Empty lines are preserved, including those at the end of the output, and
+     *         the line feed that terminates the last line does not start another line.
+     */
+    public String[] toLines(Charset charset) {
+
+        String output = toString(charset);
+        if (output.isEmpty()) {
+            return new String[0];
+        }
+        String[] lines = output.split(LineSeparator.Unix, -1);
+        return output.endsWith(LineSeparator.Unix) ? Arrays.copyOf(lines, lines.length - 1) : lines;
+    }
+
+    /**
+     * @return the number of lines in the stored output, counted the same way
+     *         as the lines returned by {@link #toLines(Charset)}.
+     */
+    public synchronized long getLineCount() {
+
+        indexLines();
+        return lineCount;
+    }
+
+    /**
+     * Decode a single line of the stored output without decoding the rest of it.
+     *
+     * @param index zero-based index of the line
+     * @return the line without the line feed that terminates it.
+     *
+     * @throws IndexOutOfBoundsException if the output does not contain the line.
+     */
+    public synchronized String getLine(long index, Charset charset) {
+
+        indexLines();
+        if (index < 0 || index >= lineCount) {
+            throw new IndexOutOfBoundsException("Line " + index + " out of bounds for length " + lineCount);
+        }
+        ByteBuffer[] segments = getBuffers();
+        long start = lineIndex[(int) (index / LINE_INDEX_INTERVAL)];
+        for (long skip = index % LINE_INDEX_INTERVAL; skip > 0; start++) {
+            if (byteAt(segments, start) == '\n') skip--;
+        }
+        long end = start;
+        while (end < size && byteAt(segments, end) != '\n') end++;
+
+        if (end - start > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Line is too large to fit in a string");
+        }
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(segments, start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Build the line index if it does not cover all of the stored output.
+     * The index is built in a single pass over the output.
+     */
+    private void indexLines() {
+
+        if (indexedSize == size) {
+            return;
+        }
+        long[] index = new long[16];
+        long count = 0, position = 0;
+        int entries = 0;
+        boolean lineStart = true;
+        for (ByteBuffer segment : getBuffers())
+        {
+            int limit = segment.limit();
+            for (int i = segment.position(); i < limit; i++, position++)
+            {
+                if (lineStart)
+                {
+                    if (count % LINE_INDEX_INTERVAL == 0)
+                    {
+                        if (entries == index.length) {
+                            index = Arrays.copyOf(index, entries * 2);
+                        }
+                        index[entries++] = position;
+                    }
+                    count++;
+                    lineStart = false;
+                }
+                if (segment.get(i) == '\n') lineStart = true;
+            }
+        }
+        lineIndex = Arrays.copyOf(index, Math.max(entries, 1));
+        lineCount = count;
+        indexedSize = size;
+    }
+
+    /**
+     * @return the byte at the given position of output split into segments
+     *         which, except for the last one, are all of equal size.
+     */
+    private static byte byteAt(ByteBuffer[] segments, long position) {
+
+        int segmentSize = segments[0].remaining();
+        ByteBuffer segment = segments[(int) (position / segmentSize)];
+        return segment.get(segment.position() + (int) (position % segmentSize));
+    }
+
+    /**
+     * @return the stored output decoded with the default charset.
+     */
+    @Override
+    public String toString() {
+        return toString(Charset.defaultCharset());
+    }
+
+    /**
+     * Return all buffers to the pool. Any output written after this
+     * method was called is treated as output that exceeds the limit.
+     */
+    public synchronized void release() {
+
+        if (!released)
+        {
+            released = true;
+            buffers.forEach(pool::release);
+            buffers.clear();
+            mapped = null;
+            lineIndex = null;
+            if (spill != null) {
+                try {
+                    spill.close();
+                }
+                catch (IOException e) {
+                    LibraryLogger.error("Unable to delete spilled output", e);
+                }
+            }
+        }
+    }
+
+    private void checkNotReleased() {
+
+        if (released) {
+            throw new IllegalStateException("Captured output has already been released");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package io.yooksi.jute.bash;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Internal execution of a command that was split into several invocations, usually to keep
+ * each invocation within the platform limit on argument length. Invocations run with at most
+ * the given parallelism, and their results are merged into a single result once all of them
+ * completed, with output concatenated in the order the invocations were given.
+ *
+ * @see GitBash#runChunkedAsync(List, CommandOptions, int)
+ */
+final class ChunkedRun {
+
+    private final GitBash bash;
+    private final List<? extends BashCommand> chunks;
+    private final CommandOptions options, chunkOptions;
+    private final int parallelism;
+
+    private final @Nullable CommandResult[] results;
+    private final List<CompletableFuture<CommandResult>> running = new ArrayList<>();
+    private final CompletableFuture<CommandResult> merged = new CompletableFuture<>();
+    private final long start = System.nanoTime();
+
+    private int next, active, completed;
+
+    private ChunkedRun(GitBash bash, List<? extends BashCommand> chunks, CommandOptions options, int parallelism) {
+
+        this.bash = bash;
+        this.chunks = List.copyOf(chunks);
+        this.options = options;
+        this.parallelism = parallelism;
+        this.results = new CommandResult[this.chunks.size()];
+        this.chunkOptions = options.toBuilder().setStdout(chunkCapture(options.getStdout()))
+                .setStderr(chunkCapture(options.getStderr())).build();
+    }
+
+    /**
+     * Output written to a channel is captured by each invocation and copied to the channel
+     * when the results are merged, as invocations that run in parallel would interleave it.
+     */
+    private static OutputCapture chunkCapture(OutputCapture capture) {
+        return capture.type == OutputCapture.Type.CHANNEL ? OutputCapture.spill(OutputCapture.DEFAULT_LIMIT) : capture;
+    }
+
+    static CompletableFuture<CommandResult> start(GitBash bash, List<? extends BashCommand> chunks,
+                                                  CommandOptions options, int parallelism) {
+
+        if (chunks.isEmpty()) {
+            throw new IllegalArgumentException("No commands to run");
+        }
+        ChunkedRun run = new ChunkedRun(bash, chunks, options, parallelism);
+        run.merged.whenComplete((r, e) -> {
+            if (e != null) run.abort();
+        });
+        run.drain();
+        return run.merged;
+    }
+
+    private void drain() {
+
+        List<Integer> started = new ArrayList<>();
+        synchronized (this)
+        {
+            while (!merged.isDone() && active < parallelism && next < chunks.size())
+            {
+                active++;
+                started.add(next++);
+            }
+        }
+        for (int index : started) {
+            start(index);
+        }
+    }
+
+    private void start(int index) {
+
+        CompletableFuture<CommandResult> future;
+        try {
+            future = bash.runCommandAsync(chunks.get(index), chunkOptions);
+        }
+        catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        synchronized (this) {
+            running.add(future);
+        }
+        CompletableFuture<CommandResult> started = future;
+        future.whenComplete((r, e) -> {
+            synchronized (this) {
+                running.remove(started);
+            }
+            if (e != null) {
+                merged.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+            else record(index, r);
+        });
+    }
+
+    private void record(int index, CommandResult result) {
+
+        boolean done;
+        synchronized (this)
+        {
+            if (merged.isDone())
+            {
+                result.close();
+                return;
+            }
+            results[index] = result;
+            active--;
+            done = ++completed == results.length;
+        }
+        if (done) {
+            merge();
+        }
+        else drain();
+    }
+
+    /**
+     * Combine results of all invocations into a single result. The exit status is that of the
+     * first invocation that failed, and cpu time is only known if it is known for every invocation.
+     */
+    private synchronized void merge() {
+
+        OutputCapture.Target out = options.getStdout().open();
+        OutputCapture.Target err = options.getStderr().open();
+        int exitCode = 0;
+        @Nullable Duration cpuTime = Duration.ZERO;
+        try {
+            for (CommandResult result : results)
+            {
+                if (result == null) {
+                    return;
+                }
+                if (exitCode == 0) {
+                    exitCode = result.getExitCode();
+                }
+                Duration time = result.getCpuTime();
+                cpuTime = cpuTime != null && time != null ? cpuTime.plus(time) : null;
+
+                CapturedOutput stdout = result.getStdout(), stderr = result.getStderr();
+                if (stdout != null) stdout.writeTo(out);
+                if (stderr != null) stderr.writeTo(err);
+                result.close();
+            }
+        }
+        catch (IOException e) {
+            merged.completeExceptionally(e);
+            return;
+        }
+        Duration wallTime = Duration.ofNanos(System.nanoTime() - start);
+        CommandResult result = new CommandResult(exitCode, wallTime, cpuTime, out, err);
+        if (!merged.complete(result)) {
+            result.close();
+        }
+    }
+
+    /**
+     * Cancel invocations that are still running and release output of those that completed.
+     */
+    private void abort() {
+
+        List<CompletableFuture<CommandResult>> futures;
+        synchronized (this) {
+            futures = new ArrayList<>(running);
+        }
+        for (CompletableFuture<CommandResult> future : futures) {
+            future.cancel(true);
+        }
+        synchronized (this)
+        {
+            for (int i = 0; i < results.length; i++)
+            {
+                CommandResult result = results[i];
+                if (result != null) result.close();
+                results[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.yooksi.jute.bash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Service provider interface for executing commands without starting a process.
+ * <p>
+ *     {@link GitBash} asks each of its {@link GitBash#addBackend(CommandBackend) backends}
+ *     in turn whether it supports a command, and the command is executed by the first backend
+ *     that does. Commands that no backend supports are executed by a command line process.
+ *     Backends are expected to produce the same output and exit status as the command line
+ *     program would, and to declare commands for which that is not possible as unsupported.
+ * </p>
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface CommandBackend {
+
+    /**
+     * @return {@code true} if this backend is able to execute the given command.
+     *         This method is called for every command and should be cheap.
+     */
+    boolean supports(BashCommand command);
+
+    /**
+     * @return {@code true} if this backend is able to execute the given command in the given
+     *         working directory. {@link GitBash} calls this method to choose a backend, and by
+     *         default it returns the same as {@link #supports(BashCommand)}.
+     */
+    default boolean supports(BashCommand command, Path directory) {
+        return supports(command);
+    }
+
+    /**
+     * Execute a supported command in the calling thread.
+     *
+     * @param command command to execute, only ever one this backend declared as supported
+     *                in the given directory
+     * @param directory working directory of the command
+     * @param out destination of the standard output of the command
+     * @param err destination of the standard error of the command
+     *
+     * @return exit status of the command, the same status the command line program would exit with.
+     *
+     * @throws IOException if an I/O error occurred while executing the command.
+     * @throws InterruptedException if the current thread was interrupted while executing the command.
+     */
+    int execute(BashCommand command, Path directory, OutputStream out,
+                OutputStream err) throws IOException, InterruptedException;
+}
@@ -0,0 +1,149 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.IBuilder;
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * This object represents a set of options that control how a {@link BashCommand}
+ * is executed by {@link GitBash}. Options are immutable and can be shared between threads.
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CommandOptions {
+
+    /**
+     * Options used when none are supplied. Output of both streams is discarded.
+     * @see OutputCapture#discard()
+     */
+    public static final CommandOptions DEFAULT = create().build();
+
+    /**
+     * Options that store output of both streams in memory.
+     * @see OutputCapture#buffer()
+     */
+    public static final CommandOptions BUFFERED = create()
+            .setStdout(OutputCapture.buffer()).setStderr(OutputCapture.buffer()).build();
+
+    private final OutputCapture stdout;
+    private final OutputCapture stderr;
+    private final @Nullable Duration timeout;
+    private final @Nullable Path directory;
+
+    private CommandOptions(Builder builder) {
+        this.stdout = builder.stdout;
+        this.stderr = builder.stderr;
+        this.timeout = builder.timeout;
+        this.directory = builder.directory;
+    }
+
+    /**
+     * Use {@link #create()} method to create a new {@code Builder} instance,
+     * then chain call available class methods to configure the options.
+     * When all configurations have been setup use {@link #build()}
+     * method to build a new {@code CommandOptions} instance.
+     */
+    public static class Builder implements IBuilder<CommandOptions> {
+
+        private OutputCapture stdout = OutputCapture.discard();
+        private OutputCapture stderr = OutputCapture.discard();
+        private @Nullable Duration timeout;
+        private @Nullable Path directory;
+
+        private Builder() {}
+
+        private Builder(CommandOptions options) {
+            this.stdout = options.stdout;
+            this.stderr = options.stderr;
+            this.timeout = options.timeout;
+            this.directory = options.directory;
+        }
+        /**
+         * Set how to capture the standard output of the command.
+         */
+        @Contract("_ -> this")
+        public Builder setStdout(OutputCapture capture) {
+            stdout = capture;
+            return this;
+        }
+        /**
+         * Set how to capture the standard error of the command.
+         */
+        @Contract("_ -> this")
+        public Builder setStderr(OutputCapture capture) {
+            stderr = capture;
+            return this;
+        }
+        /**
+         * Set the maximum time the command is allowed to run. When the time runs out the
+         * command is terminated together with all of its descendant processes.
+         *
+         * @param timeout maximum running time or {@code null} to use the
+         *                {@link GitBash#setDefaultTimeout(Duration) default timeout}.
+         */
+        @Contract("_ -> this")
+        public Builder setTimeout(@Nullable Duration timeout) {
+
+            if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+                throw new IllegalArgumentException("Timeout must be a positive duration.");
+            }
+            this.timeout = timeout;
+            return this;
+        }
+        /**
+         * Set the working directory of the command. This is also used to find
+         * the repository a {@link RepositoryScheduler scheduled} command runs against.
+         *
+         * @param directory working directory or {@code null} to use
+         *                  the working directory of this virtual machine.
+         */
+        @Contract("_ -> this")
+        public Builder setDirectory(@Nullable Path directory) {
+            this.directory = directory;
+            return this;
+        }
+        @Override
+        public CommandOptions build() {
+            return new CommandOptions(this);
+        }
+    }
+
+    /**
+     * @return a new {@code Builder} instance intended to be used to
+     *         build a custom configured {@code CommandOptions} instance.
+     */
+    public static Builder create() {
+        return new Builder();
+    }
+
+    /**
+     * @return a new {@code Builder} instance initialized with values of these options.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    @Contract(pure = true)
+    public OutputCapture getStdout() {
+        return stdout;
+    }
+
+    @Contract(pure = true)
+    public OutputCapture getStderr() {
+        return stderr;
+    }
+
+    @Contract(pure = true)
+    public @Nullable Duration getTimeout() {
+        return timeout;
+    }
+
+    @Contract(pure = true)
+    public @Nullable Path getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,270 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This object holds the output, exit status and running time of executed commands so that
+ * they can be served back later without executing the commands again.
+ * <p>
+ *     Executions are grouped by the command and its working directory. A command executed more
+ *     than once is recorded every time, and the executions are {@link #next(BashCommand, Path)
+ *     served back} in the order they were recorded. Recordings are stored in a compact compressed
+ *     binary file with {@link #save(Path)} and read back with {@link #load(Path)}.
+ * </p>
+ * Recordings are safe to use from multiple threads.
+ *
+ * @see RecordingBackend
+ * @see ReplayBackend
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CommandRecording {
+
+    private static final int MAGIC = 0x4A524543;
+    private static final int VERSION = 1;
+
+    private final Map<String, Executions> executions = new LinkedHashMap<>();
+    private final Set<String> commands = new HashSet<>();
+    private int size;
+
+    /**
+     * This object represents a single recorded execution of a command.
+     */
+    public static final class Execution {
+
+        private final String command;
+        private final String directory;
+        private final int exitCode;
+        private final long nanos;
+        private final byte[] stdout;
+        private final byte[] stderr;
+
+        private Execution(String command, String directory, int exitCode, long nanos, byte[] stdout, byte[] stderr) {
+            this.command = command;
+            this.directory = directory;
+            this.exitCode = exitCode;
+            this.nanos = nanos;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        @Contract(pure = true)
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * @return absolute path of the working directory the command was executed in.
+         */
+        @Contract(pure = true)
+        public String getDirectory() {
+            return directory;
+        }
+
+        @Contract(pure = true)
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return the time it took the command to complete when it was recorded.
+         */
+        public Duration getDuration() {
+            return Duration.ofNanos(nanos);
+        }
+
+        public byte[] getStdout() {
+            return stdout.clone();
+        }
+
+        public byte[] getStderr() {
+            return stderr.clone();
+        }
+
+        byte[] stdout() {
+            return stdout;
+        }
+
+        byte[] stderr() {
+            return stderr;
+        }
+    }
+
+    /**
+     * Internal list of executions of a single command and the position of the next one to serve.
+     */
+    private static final class Executions {
+
+        private final List<Execution> list = new ArrayList<>();
+        private int next;
+    }
+
+    /**
+     * Record a single execution of a command.
+     *
+     * @param directory working directory of the command
+     * @param duration time it took the command to complete
+     */
+    public void add(BashCommand command, Path directory, int exitCode,
+                    Duration duration, byte[] stdout, byte[] stderr) {
+
+        add(new Execution(command.toString(), normalize(directory),
+                exitCode, duration.toNanos(), stdout.clone(), stderr.clone()));
+    }
+
+    private synchronized void add(Execution execution) {
+
+        executions.computeIfAbsent(key(execution.command, execution.directory),
+                k -> new Executions()).list.add(execution);
+        commands.add(execution.command);
+        size++;
+    }
+
+    /**
+     * @return {@code true} if at least one execution of the given command was recorded in any directory.
+     */
+    public synchronized boolean contains(BashCommand command) {
+        return commands.contains(command.toString());
+    }
+
+    /**
+     * @return {@code true} if at least one execution of the given command in the given directory was recorded.
+     */
+    public synchronized boolean contains(BashCommand command, Path directory) {
+        return executions.containsKey(key(command.toString(), normalize(directory)));
+    }
+
+    /**
+     * Get the next recorded execution of the given command in the given directory. Executions
+     * are served in the order they were recorded, and once all of them have been served
+     * they are served again from the start.
+     *
+     * @return the next execution or {@code null} if the command was never recorded.
+     */
+    public synchronized @Nullable Execution next(BashCommand command, Path directory) {
+
+        Executions recorded = executions.get(key(command.toString(), normalize(directory)));
+        if (recorded == null) {
+            return null;
+        }
+        Execution execution = recorded.list.get(recorded.next);
+        recorded.next = (recorded.next + 1) % recorded.list.size();
+        return execution;
+    }
+
+    /**
+     * @return all recorded executions in the order their commands were first recorded.
+     */
+    public synchronized List<Execution> getExecutions() {
+
+        List<Execution> result = new ArrayList<>(size);
+        executions.values().forEach(e -> result.addAll(e.list));
+        return result;
+    }
+
+    /**
+     * @return total number of recorded executions.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Write all recorded executions to the given file, replacing its contents.
+     * @throws IOException if an I/O error occurred while writing the file.
+     */
+    public void save(Path file) throws IOException {
+
+        List<Execution> list = getExecutions();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(file)))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(list.size());
+            for (Execution execution : list)
+            {
+                writeBytes(out, execution.command.getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, execution.directory.getBytes(StandardCharsets.UTF_8));
+                out.writeInt(execution.exitCode);
+                out.writeLong(execution.nanos);
+                writeBytes(out, execution.stdout);
+                writeBytes(out, execution.stderr);
+            }
+        }
+    }
+
+    /**
+     * Read a recording previously written with {@link #save(Path)}.
+     * @throws IOException if an I/O error occurred or the file is not a valid recording.
+     */
+    public static CommandRecording load(Path file) throws IOException {
+
+        CommandRecording recording = new CommandRecording();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file)))))
+        {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("File is not a command recording: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported command recording version " + version + ": " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String command = new String(readBytes(in), StandardCharsets.UTF_8);
+                String directory = new String(readBytes(in), StandardCharsets.UTF_8);
+                int exitCode = in.readInt();
+                long nanos = in.readLong();
+                recording.add(new Execution(command, directory, exitCode, nanos, readBytes(in), readBytes(in)));
+            }
+        }
+        return recording;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Malformed command recording");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String normalize(Path directory) {
+        return directory.toAbsolutePath().normalize().toString();
+    }
+
+    private static String key(String command, String directory) {
+        return directory + '\0' + command;
+    }
+}
@@ -0,0 +1,131 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+
+/**
+ * This object represents the outcome of a completed {@link BashCommand}.
+ * <p>
+ *     When command output was captured in memory with {@link OutputCapture#buffer()} the result
+ *     holds on to pooled buffers, which are returned to the pool when the result is {@link #close() closed}.
+ *     Results that are never closed don't leak memory, their buffers are just not reused.
+ * </p>
+ */
+@MethodsNotNull
+@SuppressWarnings("unused")
+public class CommandResult implements AutoCloseable {
+
+    private final int exitCode;
+    private final Duration wallTime;
+    private final @Nullable Duration cpuTime;
+
+    private final long bytesOut;
+    private final long bytesErr;
+    private final @Nullable CapturedOutput stdout;
+    private final @Nullable CapturedOutput stderr;
+
+    CommandResult(int exitCode, Duration wallTime, @Nullable Duration cpuTime,
+                  OutputCapture.Target out, OutputCapture.Target err) {
+
+        this.exitCode = exitCode;
+        this.wallTime = wallTime;
+        this.cpuTime = cpuTime;
+        this.bytesOut = out.isDiscarding() ? -1 : out.getCount();
+        this.bytesErr = err.isDiscarding() ? -1 : err.getCount();
+        this.stdout = out.getCaptured();
+        this.stderr = err.getCaptured();
+    }
+
+    /**
+     * @return the exit status of the command. By convention
+     *         a value of {@code 0} indicates successful completion.
+     */
+    @Contract(pure = true)
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return {@code true} if the command exited with status {@code 0}.
+     */
+    @Contract(pure = true)
+    public boolean isSuccess() {
+        return exitCode == 0;
+    }
+
+    /**
+     * @return elapsed real time between starting the command and its completion.
+     */
+    @Contract(pure = true)
+    public Duration getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * @return total CPU time accumulated by the command process as reported by the operating system,
+     *         or {@code null} if it was not available. This is a best-effort value as the information
+     *         is only available while the process exists, and does not include time spent in
+     *         descendant processes or in shell processes shared between commands.
+     */
+    @Contract(pure = true)
+    public @Nullable Duration getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return total number of bytes the command wrote to {@code stdout}, or {@code -1} if the stream
+     *         was {@link OutputCapture#discard() discarded}, in which case the bytes are not counted.
+     */
+    @Contract(pure = true)
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return total number of bytes the command wrote to {@code stderr}, or {@code -1} if the stream
+     *         was {@link OutputCapture#discard() discarded}, in which case the bytes are not counted.
+     */
+    @Contract(pure = true)
+    public long getBytesErr() {
+        return bytesErr;
+    }
+
+    /**
+     * @return {@code stdout} of the command stored in memory or {@code null} if the stream was
+     *         not captured with {@link OutputCapture#buffer()} or {@link OutputCapture#spill(long)}.
+     */
+    @Contract(pure = true)
+    public @Nullable CapturedOutput getStdout() {
+        return stdout;
+    }
+
+    /**
+     * @return {@code stderr} of the command stored in memory or {@code null} if the stream was
+     *         not captured with {@link OutputCapture#buffer()} or {@link OutputCapture#spill(long)}.
+     */
+    @Contract(pure = true)
+    public @Nullable CapturedOutput getStderr() {
+        return stderr;
+    }
+
+    /**
+     * Release all captured output held by this result.
+     * @see CapturedOutput#release()
+     */
+    @Override
+    public void close() {
+
+        if (stdout != null) stdout.release();
+        if (stderr != null) stderr.release();
+    }
+
+    @Override
+    public String toString() {
+
+        String format = "CommandResult{exitCode=%d, wallTime=%dms, bytesOut=%d, bytesErr=%d}";
+        return String.format(format, exitCode, wallTime.toMillis(), bytesOut, bytesErr);
+    }
+}
@@ -0,0 +1,26 @@
+package io.yooksi.jute.bash;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Exception thrown when a command does not complete within the time it was given.
+ * The process executing the command, and all of its descendants, are terminated.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CommandTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    private static final String messageFormat = "Command did not complete within %dms: %s";
+
+    private final Duration timeout;
+
+    public CommandTimeoutException(String command, Duration timeout) {
+        super(String.format(messageFormat, timeout.toMillis(), command));
+        this.timeout = timeout;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,497 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.IBuilder;
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import javax.validation.constraints.Positive;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * This object runs the same command in many repositories at once.
+ * <p>
+ *     Each repository root becomes the working directory of one execution of the command, and
+ *     at most {@link Builder#setParallelism(int) parallelism} executions run at the same time.
+ *     Queued executions are started from the thread that completed a previous execution, so no
+ *     thread is blocked waiting for a free slot. Outcomes are made available in the order the
+ *     executions complete, see {@link Run#take()}, and aggregated once all of them have completed.
+ * </p>
+ * Runners are immutable and can be used to start any number of runs.
+ *
+ * @see GitBash#runCommandAsync(BashCommand, CommandOptions)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class FanOutRunner {
+
+    private final GitBash bash;
+    private final int parallelism;
+    private final CommandOptions options;
+
+    private FanOutRunner(Builder builder) {
+        this.bash = builder.bash;
+        this.parallelism = builder.parallelism;
+        this.options = builder.options;
+    }
+
+    /**
+     * Use {@link #create(GitBash)} method to create a new {@code Builder} instance,
+     * then chain call available class methods to configure the runner.
+     * When all configurations have been setup use {@link #build()}
+     * method to build a new {@code FanOutRunner} instance.
+     */
+    public static class Builder implements IBuilder<FanOutRunner> {
+
+        private final GitBash bash;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private CommandOptions options;
+
+        private Builder(GitBash bash) {
+            this.bash = bash;
+            this.options = bash.getDefaultOptions();
+        }
+        /**
+         * Set the maximum number of executions that run at the same time.
+         * By default this is the number of available processors.
+         */
+        @Contract("_ -> this")
+        public Builder setParallelism(@Positive int parallelism) {
+
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("Parallelism must be a positive number.");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+        /**
+         * Set options used to execute the command in every repository. The working directory
+         * given in the options is replaced by each repository root. By default the
+         * {@link GitBash#setDefaultOptions(CommandOptions) default options} are used.
+         */
+        @Contract("_ -> this")
+        public Builder setOptions(CommandOptions options) {
+            this.options = options;
+            return this;
+        }
+        @Override
+        public FanOutRunner build() {
+            return new FanOutRunner(this);
+        }
+    }
+
+    /**
+     * @return a new {@code Builder} instance intended to be used
+     *         to build a custom configured {@code FanOutRunner} instance.
+     */
+    public static Builder create(GitBash bash) {
+        return new Builder(bash);
+    }
+
+    /**
+     * Start executing the given command in every given repository.
+     *
+     * @param roots root directories of repositories, duplicates are executed only once
+     * @return a run that tracks the executions as they complete.
+     */
+    public Run run(Collection<Path> roots, BashCommand command) {
+        return start(roots, o -> bash.runCommandAsync(command, o));
+    }
+
+    /**
+     * Start executing the given script in every given repository. Note that
+     * a relative script path is resolved against each repository root.
+     *
+     * @see #run(Collection, BashCommand)
+     */
+    public Run run(Collection<Path> roots, BashScript script) {
+        return start(roots, o -> bash.runBashScriptAsync(script, o));
+    }
+
+    private Run start(Collection<Path> roots, Function<CommandOptions, CompletableFuture<CommandResult>> task) {
+
+        Run run = new Run(new LinkedHashSet<>(roots), task);
+        run.drain();
+        return run;
+    }
+
+    /**
+     * This object represents the outcome of executing the command in a single repository.
+     */
+    public static final class Outcome {
+
+        private final Path root;
+        private final @Nullable CommandResult result;
+        private final @Nullable Throwable failure;
+
+        private Outcome(Path root, @Nullable CommandResult result, @Nullable Throwable failure) {
+            this.root = root;
+            this.result = result;
+            this.failure = failure;
+        }
+
+        /**
+         * @return root directory of the repository the command was executed in.
+         */
+        @Contract(pure = true)
+        public Path getRoot() {
+            return root;
+        }
+
+        /**
+         * @return the result of the command or {@code null} if the command could not be executed.
+         */
+        @Contract(pure = true)
+        public @Nullable CommandResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return the reason the command could not be executed or {@code null} if it was executed.
+         */
+        @Contract(pure = true)
+        public @Nullable Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return {@code true} if the command was executed and exited with status {@code 0}.
+         */
+        public boolean isSuccess() {
+            return result != null && result.isSuccess();
+        }
+    }
+
+    /**
+     * This object tracks executions of a single command across repositories.
+     * Closing the run cancels executions that have not completed yet and
+     * releases captured output held by all results.
+     */
+    public final class Run implements AutoCloseable {
+
+        private final List<Path> roots;
+        private final Function<CommandOptions, CompletableFuture<CommandResult>> task;
+        private final BlockingQueue<Outcome> completed = new LinkedBlockingQueue<>();
+        private final Map<Path, Outcome> outcomes = new LinkedHashMap<>();
+        private final List<CompletableFuture<CommandResult>> running = new ArrayList<>();
+        private final CompletableFuture<Run> completion = new CompletableFuture<>();
+        private final long start = System.nanoTime();
+
+        private int next, active, taken;
+        private long end;
+        private boolean cancelled, draining;
+
+        private Run(Collection<Path> roots, Function<CommandOptions, CompletableFuture<CommandResult>> task) {
+
+            this.roots = List.copyOf(roots);
+            this.task = task;
+            if (this.roots.isEmpty()) {
+                complete();
+            }
+        }
+
+        /**
+         * Start as many queued executions as the parallelism level allows. Executions
+         * are started outside of the monitor because they may complete immediately.
+         * Executions that complete immediately free their slot while the run is being
+         * drained, so instead of draining again recursively the run is drained in a loop
+         * until no more executions can be started.
+         */
+        private void drain() {
+
+            synchronized (this)
+            {
+                if (draining) return;
+                draining = true;
+            }
+            while (true)
+            {
+                List<Path> started = new ArrayList<>();
+                synchronized (this)
+                {
+                    while (!cancelled && active < parallelism && next < roots.size())
+                    {
+                        active++;
+                        started.add(roots.get(next++));
+                    }
+                    if (started.isEmpty())
+                    {
+                        draining = false;
+                        break;
+                    }
+                }
+                for (Path root : started) {
+                    start(root);
+                }
+            }
+        }
+
+        private void start(Path root) {
+
+            CompletableFuture<CommandResult> future;
+            try {
+                future = task.apply(options.toBuilder().setDirectory(root).build());
+            }
+            catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            synchronized (this) {
+                running.add(future);
+            }
+            CompletableFuture<CommandResult> started = future;
+            future.whenComplete((r, e) -> {
+                synchronized (this) {
+                    running.remove(started);
+                }
+                Throwable failure = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                record(new Outcome(root, failure == null ? r : null, failure));
+                drain();
+            });
+        }
+
+        private void record(Outcome outcome) {
+
+            boolean done;
+            synchronized (this)
+            {
+                outcomes.put(outcome.root, outcome);
+                active--;
+                done = outcomes.size() == roots.size();
+            }
+            completed.add(outcome);
+            if (done) {
+                complete();
+            }
+        }
+
+        private void complete() {
+
+            synchronized (this) {
+                end = System.nanoTime();
+            }
+            completion.complete(this);
+        }
+
+        /**
+         * Wait for the next execution to complete.
+         *
+         * @return the outcome of the next completed execution or {@code null}
+         *         if the outcomes of all executions have already been taken.
+         *
+         * @throws InterruptedException if the current thread is interrupted while waiting.
+         */
+        public @Nullable Outcome take() throws InterruptedException {
+
+            synchronized (this)
+            {
+                if (taken == roots.size()) {
+                    return null;
+                }
+                taken++;
+            }
+            try {
+                return completed.take();
+            }
+            catch (InterruptedException e)
+            {
+                synchronized (this) {
+                    taken--;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Wait for the next execution to complete for at most the given amount of time.
+         *
+         * @return the outcome of the next completed execution or {@code null} if no execution
+         *         completed in time or the outcomes of all executions have already been taken.
+         *
+         * @throws InterruptedException if the current thread is interrupted while waiting.
+         */
+        public @Nullable Outcome poll(Duration timeout) throws InterruptedException {
+
+            synchronized (this)
+            {
+                if (taken == roots.size()) {
+                    return null;
+                }
+                taken++;
+            }
+            Outcome outcome = null;
+            try {
+                outcome = completed.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            finally {
+                if (outcome == null) {
+                    synchronized (this) {
+                        taken--;
+                    }
+                }
+            }
+            return outcome;
+        }
+
+        /**
+         * @return a future that completes with this run once all executions have completed.
+         */
+        public CompletableFuture<Run> completion() {
+            return completion;
+        }
+
+        /**
+         * Wait for all executions to complete.
+         * @throws InterruptedException if the current thread is interrupted while waiting.
+         */
+        public Run await() throws InterruptedException {
+
+            try {
+                return completion.get();
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Cancel all executions that have not completed yet. Executions that were not started
+         * are never started, and those that are running are terminated. Cancelled executions
+         * complete with a {@link CancellationException} failure.
+         */
+        public void cancel() {
+
+            List<CompletableFuture<CommandResult>> futures;
+            List<Path> skipped;
+            synchronized (this)
+            {
+                cancelled = true;
+                futures = new ArrayList<>(running);
+                skipped = roots.subList(next, roots.size());
+                active += skipped.size();
+                next = roots.size();
+            }
+            for (Path root : skipped) {
+                record(new Outcome(root, null, new CancellationException()));
+            }
+            for (CompletableFuture<CommandResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        /**
+         * @return outcomes of all completed executions by repository root, in the order the roots were given.
+         */
+        public synchronized Map<Path, Outcome> getOutcomes() {
+
+            Map<Path, Outcome> result = new LinkedHashMap<>();
+            for (Path root : roots)
+            {
+                Outcome outcome = outcomes.get(root);
+                if (outcome != null) result.put(root, outcome);
+            }
+            return result;
+        }
+
+        /**
+         * @return results of all completed executions by repository root, including commands that
+         *         exited with a non-zero status, but not executions that could not be executed.
+         */
+        public synchronized Map<Path, CommandResult> getResults() {
+
+            Map<Path, CommandResult> result = new LinkedHashMap<>();
+            getOutcomes().forEach((root, outcome) -> {
+                if (outcome.result != null) result.put(root, outcome.result);
+            });
+            return result;
+        }
+
+        /**
+         * @return reasons executions could not be executed by repository root.
+         */
+        public synchronized Map<Path, Throwable> getFailures() {
+
+            Map<Path, Throwable> result = new LinkedHashMap<>();
+            getOutcomes().forEach((root, outcome) -> {
+                if (outcome.failure != null) result.put(root, outcome.failure);
+            });
+            return result;
+        }
+
+        /**
+         * @return total number of repositories the command is executed in.
+         */
+        public int getTotalCount() {
+            return roots.size();
+        }
+
+        public synchronized int getCompletedCount() {
+            return outcomes.size();
+        }
+
+        /**
+         * @return the number of executions that could not be executed or exited with a non-zero status.
+         */
+        public synchronized int getFailedCount() {
+            return (int) outcomes.values().stream().filter(o -> !o.isSuccess()).count();
+        }
+
+        /**
+         * @return the time elapsed since the run was started until
+         *         all executions completed or until now if they haven't.
+         */
+        public synchronized Duration getElapsedTime() {
+            return Duration.ofNanos((end != 0 ? end : System.nanoTime()) - start);
+        }
+
+        /**
+         * @return the number of completed executions per second.
+         */
+        public double getThroughput() {
+
+            long nanos = getElapsedTime().toNanos();
+            return nanos > 0 ? getCompletedCount() * 1e9 / nanos : 0;
+        }
+
+        /**
+         * @return the average wall time of commands that were executed.
+         * @see CommandResult#getWallTime()
+         */
+        public synchronized Duration getAverageWallTime() {
+
+            long total = 0, count = 0;
+            for (Outcome outcome : outcomes.values())
+            {
+                if (outcome.result != null)
+                {
+                    total += outcome.result.getWallTime().toNanos();
+                    count++;
+                }
+            }
+            return count > 0 ? Duration.ofNanos(total / count) : Duration.ZERO;
+        }
+
+        @Override
+        public void close() {
+
+            cancel();
+            for (CommandResult result : getResults().values()) {
+                result.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This object creates history in a single repository by streaming commands to
+ * a long-lived {@code git fast-import} process.
+ * <p>
+ *     Objects are written straight into the object database without touching the
+ *     work tree or the index, which makes creating large numbers of commits as fast as
+ *     writing the data itself. Every blob and commit is given a mark that later commands
+ *     can refer to instead of an object name. Blobs with the same content are only sent
+ *     to git once, and subsequent requests for the same content return the existing mark.
+ * </p><p>
+ *     References are updated when a {@link #checkpoint() checkpoint} is made and when
+ *     the writer is closed. A checkpoint can also be made automatically after a number
+ *     of commits, see {@link #setCheckpointInterval(int)}.
+ * </p>
+ * Writers are safe to use from multiple threads.
+ *
+ * @see #open(GitBash, Path)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class FastImportWriter implements AutoCloseable {
+
+    /** Mode of regular non-executable files. */
+    public static final String MODE_FILE = "100644";
+    /** Mode of executable files. */
+    public static final String MODE_EXECUTABLE = "100755";
+    /** Mode of symbolic links, the blob content is the link target. */
+    public static final String MODE_SYMLINK = "120000";
+
+    private final Process process;
+    private final OutputStream stdin;
+    private final BufferedReader stdout;
+    private final Path marksFile;
+    private final CompletableFuture<String> stderr = new CompletableFuture<>();
+
+    private final Map<String, String> blobMarks = new HashMap<>();
+    private final MessageDigest digest;
+
+    private int nextMark = 1;
+    private int checkpointInterval, checkpointCount;
+    private int commitsSinceCheckpoint;
+    private long blobCount, duplicateCount, commitCount;
+    private boolean closed;
+
+    /**
+     * Create a new writer that creates history in the repository in the given directory. The process
+     * is launched with the environment of the {@link GitBash#setLaunchProfile(LaunchProfile) launch profile}
+     * of the given {@code GitBash} instance, and the caller is responsible for closing the writer,
+     * which is when references are updated.
+     *
+     * @param repository root directory of the repository or any directory inside of it
+     * @throws IOException if the process could not be started.
+     */
+    public static FastImportWriter open(GitBash bash, Path repository) throws IOException {
+        return new FastImportWriter(GitBash.getGitProgram(), repository,
+                bash.getLaunchProfile().getEnvironment(), bash.getExecutor());
+    }
+
+    FastImportWriter(String git, Path directory, Map<String, String> environment, Executor executor) throws IOException {
+
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.marksFile = Files.createTempFile("fast-import", ".marks");
+        List<String> cmd = List.of(git, "fast-import", "--quiet", "--done",
+                "--export-marks=" + marksFile.toAbsolutePath());
+
+        ProcessBuilder builder = new ProcessBuilder(cmd).directory(directory.toFile());
+        builder.environment().putAll(environment);
+
+        LibraryLogger.debug("Starting git fast-import: " + String.join(" ", cmd));
+        try {
+            this.process = builder.start();
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(marksFile);
+            throw e;
+        }
+        this.stdin = new BufferedOutputStream(process.getOutputStream(), 65536);
+        this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        executor.execute(() -> readErrors(process.getErrorStream()));
+    }
+
+    /**
+     * Write a blob with the given content unless a blob with the same content has already
+     * been written, in which case the mark of the existing blob is returned instead.
+     *
+     * @return mark that refers to the blob, for example {@code :1}.
+     * @throws IOException if an I/O error occurred while writing to git.
+     */
+    public synchronized String blob(byte[] content) throws IOException {
+
+        ensureOpen();
+        String id = getBlobId(content);
+        String existing = blobMarks.get(id);
+        if (existing != null)
+        {
+            duplicateCount++;
+            return existing;
+        }
+        String mark = ":" + nextMark++;
+        try {
+            writeLine("blob");
+            writeLine("mark " + mark);
+            writeData(content);
+        }
+        catch (IOException e) {
+            throw fail(e);
+        }
+        blobMarks.put(id, mark);
+        blobCount++;
+        return mark;
+    }
+
+    /**
+     * @see #blob(byte[])
+     */
+    public String blob(String content) throws IOException {
+        return blob(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Start describing a new commit on the given reference. The commit is not written
+     * until {@link Commit#write()} is called, but blobs given to the commit are.
+     *
+     * @param ref full name of the reference to commit to, for example {@code refs/heads/master}
+     * @throws IllegalArgumentException if the reference name is empty or contains whitespace.
+     */
+    public Commit commit(String ref) {
+        return new Commit(checkName(ref, "reference name"));
+    }
+
+    /**
+     * Create or move a reference to point to the given commit.
+     *
+     * @param ref full name of the reference, for example {@code refs/heads/feature}
+     * @param from mark or name of the commit the reference should point to
+     *
+     * @throws IOException if an I/O error occurred while writing to git.
+     * @throws IllegalArgumentException if the reference or commit name is empty or contains whitespace.
+     */
+    public synchronized void reset(String ref, String from) throws IOException {
+
+        checkName(ref, "reference name");
+        checkName(from, "commit name");
+        ensureOpen();
+        try {
+            writeLine("reset " + ref);
+            writeLine("from " + from);
+            writeLine("");
+        }
+        catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Ask git to finish the current pack file, update references and export marks, and wait
+     * for it to do so. Objects written before a checkpoint are safe even if the writer is not
+     * closed properly, and their marks can be {@link #readMarks() read} once this method returns.
+     * <p>
+     *     Git reports that the checkpoint is complete by printing a progress message, which
+     *     is read from its standard output. Note that the wait cannot be interrupted.
+     * </p>
+     *
+     * @throws IOException if an I/O error occurred while communicating with git.
+     */
+    public synchronized void checkpoint() throws IOException {
+
+        ensureOpen();
+        String progress = "progress jute checkpoint " + ++checkpointCount;
+        try {
+            writeLine("checkpoint");
+            writeLine("");
+            writeLine(progress);
+            stdin.flush();
+
+            String line;
+            while ((line = stdout.readLine()) != null && !line.equals(progress)) {
+                LibraryLogger.debug("git fast-import: %s", line);
+            }
+            if (line == null) {
+                throw new EOFException("git fast-import exited before completing the checkpoint");
+            }
+        }
+        catch (IOException e) {
+            throw fail(e);
+        }
+        commitsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Set the number of commits after which a {@link #checkpoint() checkpoint} is made
+     * automatically. Checkpoints are not made automatically when the interval is {@code 0},
+     * which is the default.
+     */
+    public synchronized void setCheckpointInterval(int commits) {
+
+        if (commits < 0) {
+            throw new IllegalArgumentException("Checkpoint interval must not be negative.");
+        }
+        this.checkpointInterval = commits;
+    }
+
+    public synchronized int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @return the number of distinct blobs written to git.
+     */
+    public synchronized long getBlobCount() {
+        return blobCount;
+    }
+
+    /**
+     * @return the number of blobs that were not written because a blob with the same content was.
+     */
+    public synchronized long getDuplicateBlobCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return the number of commits written to git.
+     */
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Read the object names of all marked objects. Marks are exported by git when a
+     * {@link #checkpoint() checkpoint} is made and when the writer is closed, so
+     * objects marked since the last checkpoint are not included while the writer is open.
+     * Marks of objects written before a checkpoint are available once it returns.
+     *
+     * @return map of marks, for example {@code :1}, to full hexadecimal object names.
+     * @throws IOException if an I/O error occurred while reading the exported marks.
+     */
+    public Map<String, String> readMarks() throws IOException {
+
+        Map<String, String> marks = new LinkedHashMap<>();
+        if (!Files.exists(marksFile)) {
+            return marks;
+        }
+        for (String line : Files.readAllLines(marksFile, StandardCharsets.UTF_8))
+        {
+            int separator = line.indexOf(' ');
+            if (separator > 0) {
+                marks.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        return marks;
+    }
+
+    /**
+     * Tell git that the stream is complete and wait for it to update references and exit.
+     * Marks remain available through {@link #readMarks()} until the marks file is deleted
+     * by {@link #deleteMarks()}.
+     *
+     * @throws IOException if git could not be communicated with or exited with an error.
+     *                     If the current thread is interrupted while waiting for git, the process
+     *                     is terminated, the interrupt status is restored and an
+     *                     {@code InterruptedIOException} is thrown.
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (this)
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeLine("done");
+                stdin.close();
+            }
+            catch (IOException e) {
+                throw fail(e);
+            }
+        }
+        int exitCode;
+        try (stdout) {
+            exitCode = process.waitFor();
+        }
+        catch (InterruptedException e)
+        {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for git fast-import to exit");
+        }
+        if (exitCode != 0) {
+            throw new IOException("git fast-import exited with status " + exitCode + getErrorMessage());
+        }
+        LibraryLogger.debug("git fast-import wrote %d commits and %d blobs (%d duplicates)",
+                commitCount, blobCount, duplicateCount);
+    }
+
+    /**
+     * Delete the file marks are exported to. This should be called once the marks are
+     * no longer needed, and the writer should not be used after calling this method.
+     */
+    public void deleteMarks() throws IOException {
+        Files.deleteIfExists(marksFile);
+    }
+
+    /**
+     * This object describes a single commit. All methods except {@link #write()} return
+     * this object so that calls can be chained.
+     */
+    public class Commit {
+
+        private final String ref;
+        private final List<String> changes = new ArrayList<>();
+        private final List<String> merges = new ArrayList<>();
+        private @Nullable String author, committer, from;
+        private byte[] message = new byte[0];
+
+        private Commit(String ref) {
+            this.ref = ref;
+        }
+
+        /**
+         * Set the author of the commit. The committer is used as the author when not set.
+         *
+         * @throws IllegalArgumentException if the name or email contains a line break, {@code <} or {@code >}.
+         */
+        public Commit setAuthor(String name, String email, ZonedDateTime when) {
+            this.author = formatIdentity(name, email, when);
+            return this;
+        }
+
+        /**
+         * Set the committer of the commit, this is required.
+         *
+         * @throws IllegalArgumentException if the name or email contains a line break, {@code <} or {@code >}.
+         */
+        public Commit setCommitter(String name, String email, ZonedDateTime when) {
+            this.committer = formatIdentity(name, email, when);
+            return this;
+        }
+
+        public Commit setMessage(String message) {
+            this.message = message.getBytes(StandardCharsets.UTF_8);
+            return this;
+        }
+
+        /**
+         * Set the first parent of the commit. This is only needed for the first commit written to
+         * a reference that already exists in the repository, or to start the reference from
+         * another commit, as otherwise the previous commit written to the reference is the parent.
+         *
+         * @param commit mark or name of the parent commit
+         */
+        public Commit setParent(String commit) {
+            this.from = checkName(commit, "commit name");
+            return this;
+        }
+
+        /**
+         * Add another parent to make this a merge commit.
+         *
+         * @param commit mark or name of the merged commit
+         */
+        public Commit addMerge(String commit) {
+            merges.add(checkName(commit, "commit name"));
+            return this;
+        }
+
+        /**
+         * Create or replace a regular file with a blob previously written to git.
+         *
+         * @param path path of the file relative to the repository root
+         * @param blob mark or name of the blob
+         */
+        public Commit modify(String path, String blob) {
+            return modify(MODE_FILE, path, blob);
+        }
+
+        /**
+         * Create or replace a file of the given mode with a blob previously written to git.
+         *
+         * @param mode one of {@link #MODE_FILE}, {@link #MODE_EXECUTABLE} or {@link #MODE_SYMLINK}
+         */
+        public Commit modify(String mode, String path, String blob) {
+            changes.add("M " + checkName(mode, "file mode") + ' ' + checkName(blob, "blob name") + ' ' + quotePath(path));
+            return this;
+        }
+
+        /**
+         * Create or replace a regular file with the given content.
+         * The content is written to git immediately unless it has been written before.
+         *
+         * @throws IOException if an I/O error occurred while writing to git.
+         */
+        public Commit modify(String path, byte[] content) throws IOException {
+            return modify(MODE_FILE, path, blob(content));
+        }
+
+        /**
+         * Remove a file or a directory with all of its content.
+         */
+        public Commit delete(String path) {
+            changes.add("D " + quotePath(path));
+            return this;
+        }
+
+        /**
+         * Remove all files so that the commit only contains files modified after this call.
+         */
+        public Commit deleteAll() {
+            changes.add("deleteall");
+            return this;
+        }
+
+        /**
+         * Write the commit to git.
+         *
+         * @return mark that refers to the commit, for example {@code :2}.
+         * @throws IOException if an I/O error occurred while writing to git.
+         * @throws IllegalStateException if the committer has not been set.
+         */
+        public String write() throws IOException {
+
+            if (committer == null) {
+                throw new IllegalStateException("Committer has not been set.");
+            }
+            synchronized (FastImportWriter.this)
+            {
+                ensureOpen();
+                String mark = ":" + nextMark++;
+                try {
+                    writeLine("commit " + ref);
+                    writeLine("mark " + mark);
+                    if (author != null) {
+                        writeLine("author " + author);
+                    }
+                    writeLine("committer " + committer);
+                    writeData(message);
+                    if (from != null) {
+                        writeLine("from " + from);
+                    }
+                    for (String merge : merges) {
+                        writeLine("merge " + merge);
+                    }
+                    for (String change : changes) {
+                        writeLine(change);
+                    }
+                    writeLine("");
+                }
+                catch (IOException e) {
+                    throw fail(e);
+                }
+                commitCount++;
+                if (checkpointInterval > 0 && ++commitsSinceCheckpoint >= checkpointInterval) {
+                    checkpoint();
+                }
+                return mark;
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Fast import writer has been closed.");
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        stdin.write(line.getBytes(StandardCharsets.UTF_8));
+        stdin.write('\n');
+    }
+
+    private void writeData(byte[] data) throws IOException {
+        writeLine("data " + data.length);
+        stdin.write(data);
+        stdin.write('\n');
+    }
+
+    /**
+     * @return the name git gives to a blob with the given content.
+     */
+    private String getBlobId(byte[] content) {
+
+        digest.reset();
+        digest.update(("blob " + content.length + '\0').getBytes(StandardCharsets.US_ASCII));
+        byte[] hash = digest.digest(content);
+
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writing usually fails because git exited after finding an error in the stream,
+     * in which case the reason is found in the error output of the process.
+     */
+    private IOException fail(IOException e) {
+
+        closed = true;
+        try {
+            if (!process.waitFor(1, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return new IOException("Unable to write to git fast-import" + getErrorMessage(), e);
+    }
+
+    private String getErrorMessage() {
+
+        String message = stderr.getNow("").trim();
+        return message.isEmpty() ? "" : ": " + message;
+    }
+
+    private void readErrors(InputStream in) {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (in) {
+            in.transferTo(buffer);
+        }
+        catch (IOException e) {
+            LibraryLogger.error("Unable to read git fast-import error output", e);
+        }
+        stderr.complete(buffer.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Quote a path the way fast-import expects paths that start with a
+     * quotation mark or contain line breaks to be quoted.
+     */
+    static String quotePath(String path) {
+
+        if (path.isEmpty() || (path.charAt(0) != '"' && path.indexOf('\n') < 0)) {
+            return path;
+        }
+        StringBuilder sb = new StringBuilder(path.length() + 8).append('"');
+        for (int i = 0; i < path.length(); i++)
+        {
+            char c = path.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                sb.append("\\n");
+            }
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Object names, marks and reference names are written as a single field of a command,
+     * and a name with whitespace in it would change the meaning of the command.
+     *
+     * @throws IllegalArgumentException if the name is empty or contains whitespace or control characters.
+     */
+    private static String checkName(String name, String what) {
+
+        boolean valid = !name.isEmpty();
+        for (int i = 0; i < name.length() && valid; i++) {
+            valid = name.charAt(i) > ' ' && name.charAt(i) != 0x7f;
+        }
+        if (!valid) {
+            throw new IllegalArgumentException(String.format("Invalid %s: \"%s\"", what, name));
+        }
+        return name;
+    }
+
+    private static String formatIdentity(String name, String email, ZonedDateTime when) {
+
+        for (String part : new String[] { name, email })
+        {
+            if (part.indexOf('\n') >= 0 || part.indexOf('<') >= 0 || part.indexOf('>') >= 0) {
+                throw new IllegalArgumentException("Identity must not contain line breaks, '<' or '>': " + part);
+            }
+        }
+
+        int offset = when.getOffset().getTotalSeconds() / 60;
+        return String.format("%s <%s> %d %c%02d%02d", name, email, when.toEpochSecond(),
+                offset < 0 ? '-' : '+', Math.abs(offset) / 60, Math.abs(offset) % 60);
+    }
+}
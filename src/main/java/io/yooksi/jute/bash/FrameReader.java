@@ -0,0 +1,147 @@
+package io.yooksi.jute.bash;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Internal reader that splits a process output stream into frames delimited by marker lines.
+ * <p>
+ *     A frame is terminated by a line that starts with the marker. Every marker line is expected
+ *     to be preceded by an additional line feed written by the shell which guarantees that the marker
+ *     always starts at the beginning of a line. That line feed is not part of the frame content and
+ *     is silently dropped, so output that does not end with a line feed is preserved exactly.
+ * </p>
+ * Content is copied to the frame destination as it arrives, so the amount of memory used by
+ * the reader does not depend on the length of lines or the size of frames.
+ */
+final class FrameReader {
+
+    private final InputStream in;
+    private final byte[] marker;
+    private final byte[] buffer;
+
+    private int pos, limit;
+    private boolean eof;
+
+    FrameReader(InputStream in, String marker) {
+
+        this.in = in;
+        this.marker = marker.getBytes(StandardCharsets.US_ASCII);
+        this.buffer = new byte[Math.max(8192, this.marker.length * 2)];
+    }
+
+    /**
+     * Copy the content of the next frame to the given stream.
+     *
+     * @param out destination of the frame content
+     * @return the remainder of the marker line that terminated the frame (without leading
+     *         or trailing whitespace), or {@code null} if the end of stream was reached first.
+     *
+     * @throws IOException if an I/O error occurred while reading or writing content.
+     */
+    @Nullable String readFrame(OutputStream out) throws IOException {
+
+        boolean pendingNewline = false;
+        while (true)
+        {
+            /* We are at the start of a line here so make sure we have
+             * enough bytes buffered to recognize a marker line
+             */
+            fill(marker.length);
+            if (pos == limit)
+            {
+                if (pendingNewline) {
+                    out.write('\n');
+                }
+                return null;
+            }
+            else if (startsWithMarker())
+            {
+                pos += marker.length;
+                return readLineRemainder();
+            }
+            if (pendingNewline) {
+                out.write('\n');
+            }
+            pendingNewline = copyLine(out);
+            if (!pendingNewline) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Copy bytes up to the next line feed to the given stream. The line feed is consumed
+     * but not copied as we don't know yet if it belongs to the content or the marker line.
+     *
+     * @return {@code true} if a line feed was found, {@code false} if the end of stream was reached.
+     */
+    private boolean copyLine(OutputStream out) throws IOException {
+
+        while (true)
+        {
+            for (int i = pos; i < limit; i++)
+            {
+                if (buffer[i] == '\n')
+                {
+                    out.write(buffer, pos, i - pos);
+                    pos = i + 1;
+                    return true;
+                }
+            }
+            out.write(buffer, pos, limit - pos);
+            pos = limit;
+            fill(1);
+            if (pos == limit) {
+                return false;
+            }
+        }
+    }
+
+    private String readLineRemainder() throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+        copyLine(line);
+        return line.toString(StandardCharsets.UTF_8.name()).trim();
+    }
+
+    private boolean startsWithMarker() {
+
+        if (limit - pos < marker.length) {
+            return false;
+        }
+        for (int i = 0; i < marker.length; i++) {
+            if (buffer[pos + i] != marker[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read from the underlying stream until at least {@code count} bytes are
+     * available in the buffer or the end of stream has been reached.
+     */
+    private void fill(int count) throws IOException {
+
+        if (limit - pos >= count || eof) {
+            return;
+        }
+        if (pos > 0)
+        {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos; pos = 0;
+        }
+        while (limit < count)
+        {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true; return;
+            }
+            limit += read;
+        }
+    }
+}
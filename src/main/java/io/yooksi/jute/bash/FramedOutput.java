@@ -0,0 +1,199 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * This object delivers the output of each command of a running {@link BashScript} to a
+ * consumer as soon as the command completes, without writing the output to a file.
+ * <p>
+ *     Scripts built with the {@link #redirect()} of this object leave command output on
+ *     {@code stdout} and terminate the output of every command with a marker line that holds
+ *     the index and exit status of the command. Capturing {@code stdout} of the script with
+ *     {@link #capture()} splits it back into one {@link Frame} per command, which is passed
+ *     to the consumer on the thread that reads the output. Output is preserved exactly,
+ *     including output that does not end with a line feed.
+ * </p>
+ * Output of commands that are not redirected becomes part of the frame of the next framed
+ * command. The marker is random, so output of one script is never mistaken for a marker line.
+ * Note that the output of a single command is held in memory until the command completes.
+ *
+ * <pre>{@code
+ * FramedOutput output = FramedOutput.create(frame -> handle(frame));
+ * BashScript script = BashScript.create(path, output.redirect(), true).echo("text").build();
+ * bash.runBashScriptAsync(script, CommandOptions.create().setStdout(output.capture()).build());
+ * }</pre>
+ *
+ * @see RedirectOutput.Type#FRAMED
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class FramedOutput {
+
+    private final String marker = BashSyntax.newMarker();
+    private final RedirectOutput redirect = RedirectOutput.framed(marker);
+    private final Consumer<Frame> consumer;
+
+    private FramedOutput(Consumer<Frame> consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * @param consumer receives the output of each command as soon as the command completes
+     * @return a new {@code FramedOutput} with a unique marker.
+     */
+    public static FramedOutput create(Consumer<Frame> consumer) {
+        return new FramedOutput(consumer);
+    }
+
+    /**
+     * This object represents the output of a single command.
+     */
+    public static final class Frame {
+
+        private final long index;
+        private final int exitCode;
+        private final byte[] content;
+
+        private Frame(long index, int exitCode, byte[] content) {
+            this.index = index;
+            this.exitCode = exitCode;
+            this.content = content;
+        }
+
+        /**
+         * @return index of the command in the {@link BashScript#getCommands() script commands}.
+         */
+        @Contract(pure = true)
+        public long getIndex() {
+            return index;
+        }
+
+        @Contract(pure = true)
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return the exact bytes the command wrote to {@code stdout}.
+         */
+        @Contract(pure = true)
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @return command output decoded with the given charset.
+         */
+        public String getText(Charset charset) {
+            return new String(content, charset);
+        }
+
+        /**
+         * @return command output decoded with the default charset.
+         */
+        @Override
+        public String toString() {
+            return getText(Charset.defaultCharset());
+        }
+    }
+
+    /**
+     * @return {@code RedirectOutput} that frames the output of every command.
+     */
+    public RedirectOutput redirect() {
+        return redirect;
+    }
+
+    /**
+     * @return {@code OutputCapture} that splits {@code stdout} of a script into frames
+     *         and passes them to the consumer. A new decoder is created for every call,
+     *         so each execution of a script should use its own capture.
+     */
+    public OutputCapture capture() {
+        return OutputCapture.stream(new Decoder());
+    }
+
+    /**
+     * Internal stream that collects script output until a complete marker line is written.
+     * Marker lines are recognized in the same format as {@link FrameReader} expects them.
+     */
+    private final class Decoder extends OutputStream {
+
+        private final byte[] newline = { '\n' };
+        private final byte[] markerBytes = marker.getBytes(StandardCharsets.US_ASCII);
+        private byte[] buffer = new byte[8192];
+        private int size, lineStart;
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) {
+
+            int end = off + len;
+            for (int i = off; i < end; i++)
+            {
+                if (bytes[i] == '\n')
+                {
+                    append(bytes, off, i - off);
+                    off = i + 1;
+                    if (!endLine()) append(newline, 0, 1);
+                }
+            }
+            append(bytes, off, end - off);
+        }
+
+        private void append(byte[] bytes, int off, int len) {
+
+            if (size + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + len));
+            }
+            System.arraycopy(bytes, off, buffer, size, len);
+            size += len;
+        }
+
+        /**
+         * Called at the end of every line before its line feed is appended.
+         *
+         * @return {@code true} if the line was a marker line that completed a frame.
+         */
+        private boolean endLine() {
+
+            if (!isMarkerLine())
+            {
+                lineStart = size + 1;
+                return false;
+            }
+            String[] fields = new String(buffer, lineStart + markerBytes.length,
+                    size - lineStart - markerBytes.length, StandardCharsets.US_ASCII).trim().split(" ");
+
+            /* The line feed that precedes the marker line was written by the shell
+             */
+            int contentEnd = Math.max(0, lineStart - 1);
+            byte[] content = Arrays.copyOf(buffer, contentEnd);
+            size = lineStart = 0;
+            consumer.accept(new Frame(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), content));
+            return true;
+        }
+
+        private boolean isMarkerLine() {
+
+            if (size - lineStart < markerBytes.length) {
+                return false;
+            }
+            for (int i = 0; i < markerBytes.length; i++) {
+                if (buffer[lineStart + i] != markerBytes[i]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -2,13 +2,35 @@ package io.yooksi.jute.bash;
 
 import io.yooksi.commons.define.MethodsNotNull;
 import io.yooksi.commons.logger.LibraryLogger;
-import io.yooksi.commons.util.ArrayUtils;
 import io.yooksi.commons.util.StringUtils;
 import io.yooksi.commons.util.SystemUtils;
+import org.jetbrains.annotations.Nullable;
 
+import javax.validation.constraints.Positive;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 /**
  * This object represents a git bash command line application program.
@@ -29,15 +51,106 @@ public class GitBash {
     private static final String CLI_APP_NAME =
             System.getProperty("bash.cli.name", "git-bash.exe");
 
+    /**
+     * Name or path of the git program used to execute commands directly
+     * without a shell. The program is expected to be found on the system path.
+     *
+     * @see #setDirectExecution(boolean)
+     */
+    private static final String GIT_APP_NAME =
+            System.getProperty("git.cli.path", "git");
+
     /**
      * Default {@code GitBash} instance available for public use.
      * @see #get()
      */
     private static final GitBash BASH = new GitBash();
 
+    /**
+     * Environment variables that describe the state of a particular shell
+     * and are never included in a {@link #captureEnvironment() snapshot}.
+     */
+    private static final Set<String> SHELL_STATE_VARIABLES =
+            Set.of("_", "PWD", "OLDPWD", "SHLVL", "PS1");
+
     private final boolean isOsUnix;
     private final UnixPath path;
-    private final String[] cmdPrefix;
+
+    /**
+     * Pool of long-lived shell processes used to execute commands.
+     * When {@code null} a new process is started for every command.
+     */
+    private volatile @Nullable BashProcessPool processPool;
+
+    /**
+     * Executor used to start processes for asynchronous commands.
+     * @see #runCommandAsync(BashCommand)
+     */
+    private volatile Executor executor = createDefaultExecutor();
+
+    /**
+     * Options used to execute commands when none are supplied by the caller.
+     */
+    private volatile CommandOptions defaultOptions = CommandOptions.DEFAULT;
+
+    /**
+     * Maximum time a command is allowed to run when its options do not specify a timeout.
+     * When {@code null} commands are allowed to run indefinitely.
+     */
+    private volatile @Nullable Duration defaultTimeout;
+
+    /**
+     * Whether commands that provide {@link BashCommand#getArguments() arguments}
+     * should be executed directly, without starting a shell to interpret them.
+     */
+    private volatile boolean directExecution = true;
+
+    /**
+     * Scheduler that coordinates access to repositories or {@code null} if commands
+     * should be executed as soon as they are submitted.
+     */
+    private volatile @Nullable RepositoryScheduler scheduler;
+
+    /**
+     * Backends used to execute commands without starting a process.
+     * @see #addBackend(CommandBackend)
+     */
+    private final List<CommandBackend> backends = new CopyOnWriteArrayList<>();
+
+    /**
+     * Describes how shell processes that interpret commands are launched.
+     * @see #setLaunchProfile(LaunchProfile)
+     */
+    private volatile LaunchProfile launchProfile;
+
+    /**
+     * Maximum number of bytes available to the arguments of a single command,
+     * determined the first time it is requested or {@code 0} if not determined yet.
+     * @see #getArgumentLimit()
+     */
+    private volatile long argumentLimit;
+
+    /**
+     * Limit on argument and environment size assumed when it cannot be queried from the system.
+     * This is the limit Linux enforced before it was derived from the stack size.
+     */
+    private static final long DEFAULT_ARG_MAX = 128 * 1024;
+
+    /**
+     * Maximum length of a command line accepted by {@code CreateProcess} on Windows.
+     */
+    private static final long WINDOWS_ARG_MAX = 32767;
+
+    /**
+     * Maximum size of a single argument on Linux, {@code MAX_ARG_STRLEN}. Commands that are
+     * interpreted by a shell are passed to it as a single argument and are subject to this limit.
+     */
+    private static final long MAX_ARG_STRLEN = 128 * 1024;
+
+    /**
+     * Number of bytes left unused by {@link #getArgumentLimit()}, the same headroom {@code xargs} leaves.
+     */
+    private static final long ARG_HEADROOM = 2048;
 
     /**
      * Internal constructor only used by {@link #BASH}.
@@ -68,10 +181,10 @@ public class GitBash {
                 }
             }
             else path = UnixPath.get(property);
-            cmdPrefix = new String[]{path.toString(), "-i", "-c"};
+            launchProfile = LaunchProfile.INTERACTIVE;
         }
         else {
-            path = null; cmdPrefix = null;
+            path = null; launchProfile = LaunchProfile.DEFAULT;
         }
     }
 
@@ -86,28 +199,648 @@ public class GitBash {
         }
         isOsUnix = false;
         path = UnixPath.get(gitBashPath);
-        cmdPrefix = new String[] { path.toString(), "-i", "-c" };
+        launchProfile = LaunchProfile.INTERACTIVE;
+    }
+
+    /**
+     * Execute a git bash command with {@code ProcessBuilder} and wait for it to complete.
+     * The command is executed with the {@link #setDefaultOptions(CommandOptions) default options}.
+     *
+     * @see #runCommand(BashCommand, CommandOptions)
+     */
+    public CommandResult runCommand(BashCommand command) throws IOException, InterruptedException {
+        return runCommand(command, defaultOptions);
     }
 
     /**
-     * Execute a git bash command with {@code ProcessBuilder}.
+     * Execute a git bash command with {@code ProcessBuilder} and wait for it to complete.
+     *
+     * @param options describes how to execute the command and what to do with its output
+     * @return the result of the completed command.
      *
      * @throws NullPointerException if the return value of {@link BashCommand#toString()}
      * for the supplied {@code BashCommand} is {@code null}.
      *
-     * @throws IOException if an I/O error occurs while starting {@code ProcessBuilder}.
+     * @throws IOException if an I/O error occurs while starting {@code ProcessBuilder}
+     * or while writing command output to its destination.
      *
      * @throws InterruptedException if the current thread is interrupted by another thread
      * while it is waiting, then the wait is ended and this exception is thrown.
      */
-    public void runCommand(BashCommand command) throws IOException, InterruptedException {
+    public CommandResult runCommand(BashCommand command, CommandOptions options) throws IOException, InterruptedException {
+
+        BashProcessPool pool = getProcessPool(command);
+        if (pool != null && scheduler == null && getBackend(command, getDirectory(options)) == null)
+        {
+            CompletableFuture<CommandResult> result = new CompletableFuture<>();
+            RunningProcess.scheduleTimeout(result, getTimeout(options), command.toString());
+            runPooledCommand(pool, command, options, result);
+            return await(result);
+        }
+        return await(runCommandAsync(command, options));
+    }
+
+    /**
+     * @return the process pool that should be used to execute the given command or {@code null}
+     *         if a new process should be started. Commands that can be executed directly never
+     *         go through a shell, so they are never executed in the pool.
+     */
+    private @Nullable BashProcessPool getProcessPool(BashCommand command) {
+        return getDirectArguments(command) == null ? processPool : null;
+    }
+
+    /**
+     * @return the program name and arguments used to execute the given command directly
+     *         or {@code null} if the command should be interpreted by a shell.
+     */
+    private @Nullable List<String> getDirectArguments(BashCommand command) {
+
+        List<String> arguments = directExecution ? command.getArguments() : null;
+        if (arguments == null) {
+            return null;
+        }
+        String program = command.getType() == BashCommand.Type.GIT ? GIT_APP_NAME : command.getType().getName();
+        List<String> result = new ArrayList<>(arguments.size() + 1);
+        result.add(program);
+        result.addAll(arguments);
+        return result;
+    }
 
-        String sCommand = isOsUnix ? command.toString() : StringUtils.quote(command.toString(), false);
-        String[] cmd = isOsUnix ? new String[] { sCommand } : ArrayUtils.add(cmdPrefix, sCommand);
+    /**
+     * @return maximum time a command executed with the given options is allowed to run.
+     */
+    @Nullable Duration getTimeout(CommandOptions options) {
 
-        LibraryLogger.debug("Running git bash command: " + sCommand);
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.start().waitFor();
+        Duration timeout = options.getTimeout();
+        return timeout != null ? timeout : defaultTimeout;
+    }
+
+    /**
+     * Execute a git bash command in a shell process owned by the given pool and complete the
+     * given future with the result. When the future is completed before the command, either by
+     * a timeout or by cancellation, the shell and all processes it started are terminated.
+     * The terminated shell is then discarded by the pool instead of being reused.
+     */
+    private void runPooledCommand(BashProcessPool pool, BashCommand command, CommandOptions options,
+                                  CompletableFuture<CommandResult> control) {
+
+        if (control.isDone()) {
+            return;
+        }
+        LibraryLogger.debug("Running pooled git bash command: " + command.toString());
+        OutputCapture.Target out = options.getStdout().open();
+        OutputCapture.Target err = options.getStderr().open();
+        try {
+            BashCoprocess coprocess = pool.borrow();
+            try {
+                control.whenComplete((r, e) -> {
+                    if (e != null) coprocess.destroy();
+                });
+                long start = System.nanoTime();
+                int exitCode = coprocess.execute(getShellCommand(command, options), out.asStream(), err.asStream());
+
+                CommandResult result = new CommandResult(exitCode,
+                        Duration.ofNanos(System.nanoTime() - start), null, out, err);
+                if (!control.complete(result)) result.close();
+            }
+            finally {
+                pool.giveBack(coprocess);
+            }
+        }
+        catch (IOException | RuntimeException | Error e) {
+            control.completeExceptionally(e);
+        }
+        catch (InterruptedException e)
+        {
+            control.completeExceptionally(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the first backend that supports the given command in the given directory or
+     *         {@code null} if the command should be executed by a command line process.
+     */
+    private @Nullable CommandBackend getBackend(BashCommand command, Path directory) {
+
+        for (CommandBackend backend : backends) {
+            if (backend.supports(command, directory)) return backend;
+        }
+        return null;
+    }
+
+    /**
+     * Execute a command with the given backend in the calling thread and complete the given
+     * future with the result. When the future is completed before the command, either by a
+     * timeout or by cancellation, the thread executing the command is interrupted.
+     */
+    private void runBackendCommand(CommandBackend backend, BashCommand command, CommandOptions options,
+                                   CompletableFuture<CommandResult> control) {
+
+        if (control.isDone()) {
+            return;
+        }
+        LibraryLogger.debug("Running git bash command in process: " + command.toString());
+        OutputCapture.Target out = options.getStdout().open();
+        OutputCapture.Target err = options.getStderr().open();
+
+        Thread thread = Thread.currentThread();
+        AtomicBoolean running = new AtomicBoolean(true);
+        control.whenComplete((r, e) -> {
+            synchronized (running) {
+                if (e != null && running.get()) thread.interrupt();
+            }
+        });
+        long start = System.nanoTime();
+        try {
+            int exitCode = backend.execute(command, getDirectory(options), out.asStream(), err.asStream());
+            CommandResult result = new CommandResult(exitCode,
+                    Duration.ofNanos(System.nanoTime() - start), null, out, err);
+            if (!control.complete(result)) result.close();
+        }
+        catch (IOException | RuntimeException | Error e) {
+            control.completeExceptionally(e);
+        }
+        catch (InterruptedException e) {
+            control.completeExceptionally(e);
+        }
+        finally {
+            /* Clear the interrupt raised by an early completion so it doesn't leak to the next task
+             */
+            synchronized (running) {
+                running.set(false);
+            }
+            if (control.isCompletedExceptionally()) Thread.interrupted();
+        }
+    }
+
+    /**
+     * Execute a git bash command without blocking the calling thread.
+     * The command is executed with the {@link #setDefaultOptions(CommandOptions) default options}.
+     *
+     * @see #runCommandAsync(BashCommand, CommandOptions)
+     */
+    public CompletableFuture<CommandResult> runCommandAsync(BashCommand command) {
+        return runCommandAsync(command, defaultOptions);
+    }
+
+    /**
+     * Execute a git bash command without blocking the calling thread. The process is started
+     * by this instance's {@link #getExecutor() executor} and the returned future is completed
+     * from {@link Process#onExit()} once all captured output has been written to its destination.
+     * Output streams are pumped on the executor only when they are not discarded.
+     * When a {@link #setProcessPool(BashProcessPool) process pool} is used the command is
+     * executed entirely on the executor instead.
+     * <p>
+     *     Cancelling the returned future terminates the command together with all of its
+     *     descendant processes. The same happens when the command runs longer than the
+     *     {@link CommandOptions#getTimeout() timeout} given in the options.
+     * </p><p>
+     *     Commands supported by one of the {@link #addBackend(CommandBackend) backends} are executed
+     *     by the backend on the executor without starting a process. Cancelling such a command,
+     *     or letting it time out, interrupts the thread that is executing it.
+     * </p>
+     * When a {@link #setScheduler(RepositoryScheduler) scheduler} is used the command is started
+     * only once the scheduler allows it to access its repository, and the timeout only covers
+     * the time the command spends running after it was started.
+     *
+     * @param options describes how to execute the command and what to do with its output
+     * @return a future that completes with the result of the command, or exceptionally with
+     *         {@link CommandTimeoutException} if the command did not complete in time, or
+     *         {@link IOException} if the command could not be started.
+     *
+     * @see #runCommand(BashCommand, CommandOptions)
+     */
+    public CompletableFuture<CommandResult> runCommandAsync(BashCommand command, CommandOptions options) {
+
+        RepositoryScheduler scheduler = this.scheduler;
+        if (scheduler != null) {
+            return scheduler.submit(getDirectory(options), command.isReadOnly(), () -> startCommand(command, options));
+        }
+        return startCommand(command, options);
+    }
+
+    /**
+     * Start executing the given command without waiting for a scheduler.
+     * @see #runCommandAsync(BashCommand, CommandOptions)
+     */
+    private CompletableFuture<CommandResult> startCommand(BashCommand command, CommandOptions options) {
+
+        BashProcessPool pool = getProcessPool(command);
+        Duration timeout = getTimeout(options);
+        CommandBackend backend = getBackend(command, getDirectory(options));
+        if (backend != null)
+        {
+            CompletableFuture<CommandResult> result = new CompletableFuture<>();
+            RunningProcess.scheduleTimeout(result, timeout, command.toString());
+            executor.execute(() -> runBackendCommand(backend, command, options, result));
+            return result;
+        }
+        else if (pool != null)
+        {
+            CompletableFuture<CommandResult> result = new CompletableFuture<>();
+            RunningProcess.scheduleTimeout(result, timeout, command.toString());
+            executor.execute(() -> runPooledCommand(pool, command, options, result));
+            return result;
+        }
+        return RunningProcess.launch(createProcess(command, options), options, executor, timeout, command.toString());
+    }
+
+    /**
+     * Execute a git bash command and publish its standard output in chunks of bytes as it is
+     * produced. The command is started once the subscriber requests the first chunk, and output
+     * is only read from the command while the subscriber has outstanding demand, so output of any
+     * size is processed with constant memory. Cancelling the subscription terminates the command
+     * together with all of its descendant processes.
+     * <p>
+     *     The standard output capture given in the options is ignored, while the standard error
+     *     is captured as usual. The command is always executed in a new process, even when it is
+     *     supported by a {@link #addBackend(CommandBackend) backend} or a process pool is used, but
+     *     it does wait for its turn when a {@link #setScheduler(RepositoryScheduler) scheduler} is used.
+     * </p>
+     * The subscriber is completed normally when the command exits with status {@code 0}, and
+     * with {@link IOException} when it exits with any other status or can't be started, or with
+     * {@link CommandTimeoutException} when it runs longer than the timeout. Only one subscriber
+     * is accepted by the returned publisher.
+     *
+     * @param options describes how to execute the command and what to do with its error output
+     * @return a publisher of chunks of output, each backed by its own array.
+     */
+    public Flow.Publisher<ByteBuffer> publishOutput(BashCommand command, CommandOptions options) {
+        return createPublisher(command, options, OutputPublisher::chunks);
+    }
+
+    /**
+     * Execute a git bash command and publish its standard output line by line decoded as {@code UTF-8}.
+     * @see #publishLines(BashCommand, CommandOptions, Charset)
+     */
+    public Flow.Publisher<String> publishLines(BashCommand command, CommandOptions options) {
+        return publishLines(command, options, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Execute a git bash command and publish its standard output line by line as it is produced.
+     * Published lines don't include line terminators. Lines are read from the command only while
+     * the subscriber has outstanding demand, see {@link #publishOutput(BashCommand, CommandOptions)}.
+     *
+     * @param charset used to decode the output of the command
+     */
+    public Flow.Publisher<String> publishLines(BashCommand command, CommandOptions options, Charset charset) {
+        return createPublisher(command, options, OutputPublisher.lines(charset));
+    }
+
+    private <T> Flow.Publisher<T> createPublisher(BashCommand command, CommandOptions options,
+                                                  Function<InputStream, OutputPublisher.Decoder<T>> decoder) {
+
+        RepositoryScheduler scheduler = this.scheduler;
+        return new OutputPublisher<>(createProcess(command, options), options.getStderr(), decoder,
+                executor, getTimeout(options), command.toString(), task -> scheduler != null ?
+                scheduler.submit(getDirectory(options), command.isReadOnly(), task) : task.get());
+    }
+
+    /**
+     * Execute invocations of a command that was split into several invocations, for example
+     * by {@code GitCommand.forPaths}, and wait for all of them to complete.
+     *
+     * @see #runChunkedAsync(List, CommandOptions, int)
+     */
+    public CommandResult runChunked(List<? extends BashCommand> chunks, CommandOptions options,
+                                    @Positive int parallelism) throws IOException, InterruptedException {
+        return await(runChunkedAsync(chunks, options, parallelism));
+    }
+
+    /**
+     * Execute invocations of a command that was split into several invocations, usually to keep
+     * each invocation within the {@link #getArgumentLimit() argument limit}, without blocking the
+     * calling thread. Invocations are executed the same way {@link #runCommandAsync(BashCommand,
+     * CommandOptions)} executes them, with at most the given number running at the same time.
+     * <p>
+     *     Once all invocations complete their results are merged into a single result. The exit status
+     *     is that of the first invocation, in the given order, that exited with a non-zero status, and
+     *     output of all invocations is concatenated in the given order. Output captured to a channel is
+     *     spilled by each invocation and written to the channel only when the results are merged.
+     * </p>
+     * If an invocation cannot be executed the returned future completes exceptionally and the
+     * other invocations are cancelled. Cancelling the returned future cancels all invocations.
+     * Note that commands which modify a repository, like {@code git add}, compete for the index
+     * lock when they run in parallel, unless they are coordinated by a {@link #setScheduler
+     * scheduler}, so they should be executed with parallelism of {@code 1}.
+     *
+     * @param options the timeout applies to each invocation rather than to all of them
+     * @param parallelism maximum number of invocations that run at the same time
+     * @throws IllegalArgumentException if there are no invocations or parallelism is not positive.
+     */
+    public CompletableFuture<CommandResult> runChunkedAsync(List<? extends BashCommand> chunks,
+                                                            CommandOptions options, @Positive int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be a positive number.");
+        }
+        return ChunkedRun.start(this, chunks, options, parallelism);
+    }
+
+    /**
+     * Get the number of bytes that the arguments of a single command can occupy, which is the
+     * system limit on the size of arguments and environment of a new process reduced by the
+     * size of the environment commands are executed with and some headroom. On Windows this
+     * is the maximum length of a command line instead. The limit is determined once, using
+     * {@code getconf ARG_MAX} on Unix systems.
+     * <p>
+     *     When {@link #setDirectExecution(boolean) direct execution} is disabled on Unix systems
+     *     the whole command is passed to the shell as a single argument, so the limit is capped
+     *     at the maximum size of a single argument, {@code 128 KiB}, reduced by the headroom.
+     * </p><p>
+     *     Each argument occupies its length in {@code UTF-8} bytes plus one terminating byte and
+     *     the size of a pointer, {@code 8} bytes, which is also a safe estimate for Windows.
+     * </p>
+     * @see #getArgumentSize(String)
+     */
+    public long getArgumentLimit() {
+
+        long limit = argumentLimit;
+        if (limit == 0) {
+            argumentLimit = limit = computeArgumentLimit();
+        }
+        if (isOsUnix && !directExecution) {
+            limit = Math.min(limit, MAX_ARG_STRLEN - ARG_HEADROOM);
+        }
+        return limit;
+    }
+
+    /**
+     * @return name or path of the git program that is executed when a command is
+     *         {@link #setDirectExecution(boolean) executed directly}, which is the value of the
+     *         {@code git.cli.path} system property or {@code git} when the property is not set.
+     */
+    public static String getGitProgram() {
+        return GIT_APP_NAME;
+    }
+
+    /**
+     * @return the number of bytes the given argument occupies within the {@link #getArgumentLimit() argument limit}.
+     */
+    public static long getArgumentSize(String argument) {
+
+        long size = 1 + 8;
+        for (int i = 0; i < argument.length(); i++)
+        {
+            char c = argument.charAt(i);
+            size += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return size;
+    }
+
+    private long computeArgumentLimit() {
+
+        if (!isOsUnix) {
+            return WINDOWS_ARG_MAX - ARG_HEADROOM;
+        }
+        long limit = queryArgMax() - ARG_HEADROOM;
+        Map<String, String> environment = new HashMap<>(System.getenv());
+        environment.putAll(launchProfile.getEnvironment());
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            limit -= entry.getKey().length() + entry.getValue().length() + 2 + 8;
+        }
+        return Math.max(ARG_HEADROOM, limit);
+    }
+
+    private static long queryArgMax() {
+
+        try {
+            Process process = new ProcessBuilder("getconf", "ARG_MAX").redirectErrorStream(true).start();
+            String output;
+            try (InputStream in = process.getInputStream()) {
+                output = new String(in.readAllBytes(), StandardCharsets.US_ASCII).trim();
+            }
+            if (process.waitFor() == 0) {
+                return Long.parseLong(output);
+            }
+            LibraryLogger.warn("Unable to query ARG_MAX: " + output);
+        }
+        catch (IOException | NumberFormatException e) {
+            LibraryLogger.warn("Unable to query ARG_MAX: " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return DEFAULT_ARG_MAX;
+    }
+
+    /**
+     * Execute the given commands one after another in a single shell process
+     * with the {@link #setDefaultOptions(CommandOptions) default options}.
+     *
+     * @see #runCommands(List, CommandOptions)
+     */
+    public List<CommandResult> runCommands(List<? extends BashCommand> commands) throws IOException, InterruptedException {
+        return runCommands(commands, defaultOptions);
+    }
+
+    /**
+     * Execute the given commands one after another in a single shell process and wait for all
+     * of them to complete. The commands are written to the shell as a single stream in which each
+     * command is followed by a marker carrying its exit status. The output is then split on these
+     * markers to produce a separate result for each command, so the cost of starting a shell is
+     * paid once per batch instead of once per command. When a {@link #setProcessPool(BashProcessPool)
+     * process pool} is used the batch is executed in one of the pooled shell processes.
+     * <p>
+     *     Every command is always interpreted by the shell, even when {@link #setDirectExecution(boolean)
+     *     direct execution} is enabled. Commands run with {@code stdin} redirected from {@code /dev/null}
+     *     and in the same shell context, so variables set by one command are visible to the commands that
+     *     follow it, but the working directory is restored after each command. When a command exits the
+     *     shell the commands that follow it are not executed and are reported with exit status {@code -1}.
+     * </p>
+     * When a {@link #setScheduler(RepositoryScheduler) scheduler} is used the batch is scheduled
+     * as a single command that is read-only only if every command in the batch is read-only.
+     *
+     * @param options describes what to do with the output of each command. The timeout
+     *                applies to the batch as a whole rather than to each command.
+     * @return a {@code List} of results in the same order as the given commands. The wall time of each
+     *         result is the time that elapsed between completion of the previous command and the command itself.
+     *
+     * @throws CommandTimeoutException if the batch did not complete in time. The shell and all
+     *         processes started by it are terminated before the exception is thrown.
+     * @throws IOException if an I/O error occurred while starting or communicating with the shell.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    public List<CommandResult> runCommands(List<? extends BashCommand> commands,
+                                           CommandOptions options) throws IOException, InterruptedException {
+
+        if (commands.isEmpty()) {
+            return Collections.emptyList();
+        }
+        RepositoryScheduler scheduler = this.scheduler;
+        if (scheduler != null)
+        {
+            boolean readOnly = commands.stream().allMatch(BashCommand::isReadOnly);
+            return scheduler.run(getDirectory(options), readOnly, () -> runBatch(commands, options));
+        }
+        return runBatch(commands, options);
+    }
+
+    /**
+     * Execute the given commands in a single shell process without waiting for a scheduler.
+     * @see #runCommands(List, CommandOptions)
+     */
+    private List<CommandResult> runBatch(List<? extends BashCommand> commands,
+                                         CommandOptions options) throws IOException, InterruptedException {
+
+        List<BashCoprocess.Frame> frames = new ArrayList<>(commands.size());
+        List<OutputCapture.Target[]> targets = new ArrayList<>(commands.size());
+        for (BashCommand command : commands)
+        {
+            OutputCapture.Target out = options.getStdout().open();
+            OutputCapture.Target err = options.getStderr().open();
+            frames.add(new BashCoprocess.Frame(getShellCommand(command, options), out.asStream(), err.asStream()));
+            targets.add(new OutputCapture.Target[] { out, err });
+        }
+        LibraryLogger.debug("Running batch of %d git bash commands", commands.size());
+        long start = System.nanoTime();
+
+        BashProcessPool pool = processPool;
+        if (pool != null)
+        {
+            BashCoprocess coprocess = pool.borrow();
+            try {
+                executeBatch(coprocess, frames, getTimeout(options));
+            }
+            finally {
+                pool.giveBack(coprocess);
+            }
+        }
+        else {
+            try (BashCoprocess coprocess = BashCoprocess.start(getStdinShell(),
+                launchProfile.getEnvironment(), executor)) {
+                executeBatch(coprocess, frames, getTimeout(options));
+            }
+        }
+        List<CommandResult> results = new ArrayList<>(frames.size());
+        for (int i = 0; i < frames.size(); i++)
+        {
+            BashCoprocess.Frame frame = frames.get(i);
+            long end = frame.endNanos != 0 ? frame.endNanos : start;
+            Duration wallTime = Duration.ofNanos(Math.max(0, end - start));
+            results.add(new CommandResult(frame.exitCode, wallTime, null, targets.get(i)[0], targets.get(i)[1]));
+            start = end;
+        }
+        return results;
+    }
+
+    /**
+     * Execute a batch of commands in the given shell in the calling thread. When the batch does
+     * not complete in time the shell is terminated, which in turn ends the execution of the batch.
+     *
+     * @throws CommandTimeoutException if the batch did not complete in time.
+     */
+    private static void executeBatch(BashCoprocess coprocess, List<BashCoprocess.Frame> frames,
+                                     @Nullable Duration timeout) throws IOException, InterruptedException {
+
+        CompletableFuture<Void> control = new CompletableFuture<>();
+        control.whenComplete((r, e) -> {
+            if (e != null) coprocess.destroy();
+        });
+        RunningProcess.scheduleTimeout(control, timeout, "batch of " + frames.size() + " commands");
+        try {
+            coprocess.executeAll(frames);
+        }
+        catch (IOException e)
+        {
+            if (!control.isCompletedExceptionally()) {
+                throw e;
+            }
+        }
+        finally {
+            control.complete(null);
+        }
+        if (control.isCompletedExceptionally()) {
+            await(control);
+        }
+    }
+
+    /**
+     * Wait for the given command future to complete and unwrap the exception it completed with.
+     * When the current thread is interrupted while waiting the future is cancelled,
+     * which terminates the command if it is still running.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(true);
+            throw e;
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return working directory of commands executed with the given options.
+     */
+    static Path getDirectory(CommandOptions options) {
+
+        Path directory = options.getDirectory();
+        return directory != null ? directory : Paths.get("");
+    }
+
+    /**
+     * @return the given command in a form that can be evaluated by a long-lived shell. When the
+     *         options specify a working directory the command is evaluated only if the shell was
+     *         able to change to that directory. The shell restores its own working directory
+     *         after each command.
+     */
+    private static String getShellCommand(BashCommand command, CommandOptions options) {
+
+        Path directory = options.getDirectory();
+        if (directory == null) {
+            return command.toString();
+        }
+        String path = BashSyntax.singleQuote(UnixPath.get(directory).toString());
+        return "builtin cd -- " + path + " && eval " + BashSyntax.singleQuote(command.toString());
+    }
+
+    /**
+     * Create a new {@code ProcessBuilder} configured to execute the given command.
+     * Commands that provide arguments are executed directly when direct execution is enabled,
+     * all other commands are interpreted by a shell.
+     */
+    ProcessBuilder createProcess(BashCommand command, CommandOptions options) {
+
+        LaunchProfile profile = launchProfile;
+        List<String> arguments = getDirectArguments(command);
+        ProcessBuilder builder;
+        if (arguments != null)
+        {
+            LibraryLogger.debug("Running git command: " + String.join(" ", arguments));
+            builder = new ProcessBuilder(arguments);
+        }
+        else {
+            String sCommand = isOsUnix ? command.toString() : StringUtils.quote(command.toString(), false);
+            List<String> cmd = profile.getShellCommand(getShellProgram(), false);
+            cmd.add(sCommand);
+
+            LibraryLogger.debug("Running git bash command: " + sCommand);
+            builder = new ProcessBuilder(cmd);
+        }
+        profile.applyTo(builder);
+        Path directory = options.getDirectory();
+        if (directory != null) {
+            builder.directory(directory.toFile());
+        }
+        return builder;
     }
 
     /**
@@ -116,8 +849,7 @@ public class GitBash {
     public void runBashScript(BashScript script) {
 
         try {
-            String command = StringUtils.quote(script.getPath().toString(), true);
-            runCommand(new BashCommand(BashCommand.Type.SCRIPT, command));
+            runCommand(createScriptCommand(script));
         }
         catch (IOException | InterruptedException e)
         {
@@ -126,6 +858,252 @@ public class GitBash {
         }
     }
 
+    /**
+     * Execute a script {@code BashCommand} for the given {@code BashScript}
+     * without blocking the calling thread. Unlike {@link #runBashScript(BashScript)}
+     * exceptions are not logged but used to complete the returned future.
+     *
+     * @see #runCommandAsync(BashCommand)
+     */
+    public CompletableFuture<CommandResult> runBashScriptAsync(BashScript script) {
+        return runCommandAsync(createScriptCommand(script));
+    }
+
+    /**
+     * Execute a script {@code BashCommand} for the given {@code BashScript}
+     * with the given options without blocking the calling thread.
+     *
+     * @see #runCommandAsync(BashCommand, CommandOptions)
+     */
+    public CompletableFuture<CommandResult> runBashScriptAsync(BashScript script, CommandOptions options) {
+        return runCommandAsync(createScriptCommand(script), options);
+    }
+
+    private static BashCommand createScriptCommand(BashScript script) {
+
+        String command = StringUtils.quote(script.getPath().toString(), true);
+        return new BashCommand(BashCommand.Type.SCRIPT, command);
+    }
+
+    /**
+     * Set the executor used to start processes for asynchronous commands.
+     * By default virtual threads are used when the runtime supports them,
+     * otherwise a shared pool of daemon threads is used.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set whether commands that provide {@link BashCommand#getArguments() arguments}, such as
+     * every {@code GitCommand}, should be executed by starting the program directly instead of
+     * asking a shell to interpret them. This is enabled by default as it avoids the cost of starting
+     * a shell and the need to quote arguments. When direct execution is enabled such commands are
+     * not executed in a {@link #setProcessPool(BashProcessPool) process pool} either.
+     */
+    public void setDirectExecution(boolean enabled) {
+        this.directExecution = enabled;
+    }
+
+    public boolean isDirectExecution() {
+        return directExecution;
+    }
+
+    /**
+     * Set options used to execute commands when none are supplied by the caller.
+     * @see CommandOptions#DEFAULT
+     */
+    public void setDefaultOptions(CommandOptions options) {
+        this.defaultOptions = options;
+    }
+
+    public CommandOptions getDefaultOptions() {
+        return defaultOptions;
+    }
+
+    /**
+     * Set the maximum time a command is allowed to run when its options do not
+     * specify a {@link CommandOptions#getTimeout() timeout}. Commands that run longer
+     * are terminated together with all of their descendant processes.
+     *
+     * @param timeout maximum running time or {@code null} to let commands run indefinitely.
+     */
+    public void setDefaultTimeout(@Nullable Duration timeout) {
+
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("Timeout must be a positive duration.");
+        }
+        this.defaultTimeout = timeout;
+    }
+
+    public @Nullable Duration getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * @return an executor that runs each task in a new virtual thread if supported by the
+     *         runtime, otherwise an executor that runs tasks in a cached pool of daemon threads.
+     */
+    private static Executor createDefaultExecutor() {
+
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new DaemonThreadFactory("jute-git-bash"));
+        }
+    }
+
+    /**
+     * Create a new {@code BashProcessPool} builder configured to launch
+     * the same shell used by this {@code GitBash} instance.
+     */
+    public BashProcessPool.Builder createProcessPool() {
+        return BashProcessPool.create(getStdinShell()).setEnvironment(launchProfile.getEnvironment());
+    }
+
+    /**
+     * @return program and arguments used to launch a shell that reads commands from {@code stdin}.
+     */
+    List<String> getStdinShell() {
+        return launchProfile.getShellCommand(getShellProgram(), true);
+    }
+
+    /**
+     * @return name or path of the program used to launch a shell.
+     */
+    private String getShellProgram() {
+        return path != null ? path.toString() : "bash";
+    }
+
+    /**
+     * Set how shell processes that interpret commands are launched. Note that the profile is not
+     * applied to shell processes that were already started by a {@link #setProcessPool(BashProcessPool)
+     * process pool}, and pools should be created after the profile is set.
+     * <p>
+     *     To launch commands with minimal shell work use a non-interactive profile that
+     *     skips startup files and carries an environment snapshot captured once:
+     * </p>
+     * <pre>{@code
+     * bash.setLaunchProfile(LaunchProfile.create().setStartupFiles(false)
+     *         .setEnvironment(bash.captureEnvironment()).build());
+     * }</pre>
+     * @see LaunchProfile#DEFAULT
+     * @see LaunchProfile#INTERACTIVE
+     */
+    public void setLaunchProfile(LaunchProfile profile) {
+        this.launchProfile = profile;
+    }
+
+    public LaunchProfile getLaunchProfile() {
+        return launchProfile;
+    }
+
+    /**
+     * Launch an interactive login shell that reads all the user's startup files and capture
+     * the environment it ends up with. Variables that describe the state of the shell itself,
+     * such as the working directory, are not included.
+     *
+     * @return a snapshot of the environment suitable for {@link LaunchProfile.Builder#setEnvironment(Map)}.
+     *
+     * @throws IOException if an I/O error occurred while running the shell
+     *                     or if the shell exited with a non-zero exit status.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    public Map<String, String> captureEnvironment() throws IOException, InterruptedException {
+
+        List<String> cmd = LaunchProfile.INTERACTIVE.getShellCommand(getShellProgram(), false);
+        cmd.add(1, "-l");
+        cmd.add(isOsUnix ? "env -0" : StringUtils.quote("env -0", false));
+
+        ProcessBuilder builder = new ProcessBuilder(cmd);
+        CommandOptions options = CommandOptions.create().setStdout(OutputCapture.buffer()).build();
+        try (CommandResult result = await(RunningProcess.launch(builder, options,
+                executor, getTimeout(options), String.join(" ", cmd))))
+        {
+            CapturedOutput output = result.getStdout();
+            if (!result.isSuccess() || output == null) {
+                throw new IOException("Unable to capture shell environment, exit status " + result.getExitCode());
+            }
+            Map<String, String> environment = new HashMap<>();
+            for (String entry : output.toString(StandardCharsets.UTF_8).split("\0"))
+            {
+                int separator = entry.indexOf('=');
+                if (separator > 0)
+                {
+                    String name = entry.substring(0, separator);
+                    if (!SHELL_STATE_VARIABLES.contains(name)) {
+                        environment.put(name, entry.substring(separator + 1));
+                    }
+                }
+            }
+            return environment;
+        }
+    }
+
+    /**
+     * Execute all subsequent commands in shell processes owned by the given pool
+     * instead of starting a new process for every command. Note that this instance
+     * does not take ownership of the pool, and the caller is responsible for closing it.
+     *
+     * @param pool pool of shell processes to use or {@code null} to
+     *             go back to starting a new process for every command.
+     *
+     * @see #createProcessPool()
+     */
+    public void setProcessPool(@Nullable BashProcessPool pool) {
+        this.processPool = pool;
+    }
+
+    public @Nullable BashProcessPool getProcessPool() {
+        return processPool;
+    }
+
+    /**
+     * Schedule all subsequent commands with the given scheduler so that commands that modify a
+     * repository never run concurrently with other commands against the same repository. The
+     * repository of a command is found from the {@link CommandOptions#getDirectory() directory}
+     * it runs in, and commands are classified by {@link BashCommand#isReadOnly()}.
+     *
+     * @param scheduler scheduler to use or {@code null} to execute commands as soon as they are submitted.
+     */
+    public void setScheduler(@Nullable RepositoryScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public @Nullable RepositoryScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Add a backend that executes supported commands without starting a process. Backends
+     * are consulted in the order they were added and each command is executed by the first
+     * backend that supports it, or by a command line process if none of them does. Note that
+     * commands executed with {@link #runCommands(List)} are always interpreted by a shell.
+     */
+    public void addBackend(CommandBackend backend) {
+        backends.add(backend);
+    }
+
+    /**
+     * @return {@code true} if the given backend was used by this instance and has been removed.
+     */
+    public boolean removeBackend(CommandBackend backend) {
+        return backends.remove(backend);
+    }
+
+    /**
+     * @return unmodifiable list of backends in the order they are consulted.
+     */
+    public List<CommandBackend> getBackends() {
+        return Collections.unmodifiableList(backends);
+    }
+
     /**
      * @return default {@code GitBash} instance.
      */
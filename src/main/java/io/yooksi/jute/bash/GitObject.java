@@ -0,0 +1,84 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * This object represents a single object read from a git object database.
+ * Objects read with {@link GitObjectReader#read(String)} carry their content,
+ * while objects read with {@link GitObjectReader#info(String)} only carry information about it.
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GitObject {
+
+    public enum Type {
+        BLOB, TREE, COMMIT, TAG;
+
+        /**
+         * @return the type with the given name as printed by git, for example {@code blob}.
+         * @throws IllegalArgumentException if the name does not represent a known object type.
+         */
+        static Type fromName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final String id;
+    private final Type type;
+    private final long size;
+    private final @Nullable ByteBuffer content;
+
+    GitObject(String id, Type type, long size, @Nullable ByteBuffer content) {
+        this.id = id;
+        this.type = type;
+        this.size = size;
+        this.content = content;
+    }
+
+    /**
+     * @return full hexadecimal name of the object.
+     */
+    @Contract(pure = true)
+    public String getId() {
+        return id;
+    }
+
+    @Contract(pure = true)
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return size of the object content in bytes.
+     */
+    @Contract(pure = true)
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return read-only view of the raw object content or {@code null} if the
+     *         content was not read. Each call returns a new independent view.
+     */
+    public @Nullable ByteBuffer getContent() {
+        return content != null ? content.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return the object content decoded with the given charset or an empty string if the content was not read.
+     */
+    public String toString(Charset charset) {
+        return content != null ? charset.decode(content.duplicate()).toString() : "";
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase(Locale.ROOT) + ' ' + id;
+    }
+}
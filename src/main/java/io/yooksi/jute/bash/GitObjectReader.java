@@ -0,0 +1,422 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This object reads objects from the object database of a single repository through
+ * long-lived {@code git cat-file --batch} and {@code git cat-file --batch-check} processes.
+ * <p>
+ *     Requests are pipelined: each request is written to the process as soon as it is made,
+ *     without waiting for the responses to previous requests, and responses are parsed by a
+ *     background task in the order the requests were made. Object content is read in a binary
+ *     safe manner into byte buffers. The processes are started lazily the first time they are
+ *     needed and are kept alive until the reader is closed.
+ * </p>
+ * Readers are safe to use from multiple threads.
+ *
+ * @see #open(GitBash, Path)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GitObjectReader implements AutoCloseable {
+
+    private final List<String> command;
+    private final Path directory;
+    private final Map<String, String> environment;
+    private final Executor executor;
+
+    private @Nullable Batch contents;
+    private @Nullable Batch infos;
+    private boolean closed;
+
+    GitObjectReader(String git, Path directory, Map<String, String> environment, Executor executor) {
+        this.command = List.of(git, "cat-file");
+        this.directory = directory;
+        this.environment = environment;
+        this.executor = executor;
+    }
+
+    /**
+     * Create a new reader that reads objects from the repository in the given directory. The processes
+     * are launched with the environment of the {@link GitBash#setLaunchProfile(LaunchProfile) launch profile}
+     * of the given {@code GitBash} instance, and the caller is responsible for closing the reader
+     * when it is no longer needed.
+     *
+     * @param repository root directory of the repository or any directory inside of it
+     */
+    public static GitObjectReader open(GitBash bash, Path repository) {
+        return new GitObjectReader(GitBash.getGitProgram(), repository,
+                bash.getLaunchProfile().getEnvironment(), bash.getExecutor());
+    }
+
+    /**
+     * Read the type, size and content of an object and wait for the response.
+     *
+     * @param revision name of the object in any form understood by git, for example
+     *                 a full or abbreviated object name or {@code HEAD:README.md}
+     *
+     * @return the object or {@code null} if the object does not exist.
+     *
+     * @throws IOException if an I/O error occurred while communicating with git.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    public @Nullable GitObject read(String revision) throws IOException, InterruptedException {
+        return await(readAsync(revision));
+    }
+
+    /**
+     * Request the type, size and content of an object without waiting for the response.
+     *
+     * @see #read(String)
+     * @return a future that completes with the object or {@code null} if the object
+     *         does not exist, or exceptionally if git could not be communicated with.
+     */
+    public CompletableFuture<GitObject> readAsync(String revision) {
+        return getBatch(true).request(revision);
+    }
+
+    /**
+     * Read the type and size of an object, but not its content, and wait for the response.
+     *
+     * @return the object without content or {@code null} if the object does not exist.
+     *
+     * @throws IOException if an I/O error occurred while communicating with git.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    public @Nullable GitObject info(String revision) throws IOException, InterruptedException {
+        return await(infoAsync(revision));
+    }
+
+    /**
+     * Request the type and size of an object without waiting for the response.
+     *
+     * @see #info(String)
+     */
+    public CompletableFuture<GitObject> infoAsync(String revision) {
+        return getBatch(false).request(revision);
+    }
+
+    /**
+     * Request the type, size and content of multiple objects at once. All requests are
+     * written to git before the output is flushed, which is cheaper than making them one by one.
+     *
+     * @return futures that complete with the objects in the same order as the given revisions.
+     */
+    public List<CompletableFuture<GitObject>> readAllAsync(List<String> revisions) {
+        return getBatch(true).requestAll(revisions);
+    }
+
+    private synchronized Batch getBatch(boolean content) {
+
+        if (closed) {
+            throw new IllegalStateException("Object reader has been closed.");
+        }
+        Batch batch = content ? contents : infos;
+        if (batch == null || !batch.isAlive())
+        {
+            batch = new Batch(content);
+            if (content) contents = batch; else infos = batch;
+        }
+        return batch;
+    }
+
+    /**
+     * Terminate the git processes used by this reader. Requests
+     * that have not been answered yet complete exceptionally.
+     */
+    @Override
+    public void close() {
+
+        Batch[] batches;
+        synchronized (this)
+        {
+            closed = true;
+            batches = new Batch[] { contents, infos };
+            contents = infos = null;
+        }
+        for (Batch batch : batches) {
+            if (batch != null) batch.close();
+        }
+    }
+
+    private static @Nullable GitObject await(CompletableFuture<GitObject> future) throws IOException, InterruptedException {
+
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Internal representation of a single {@code git cat-file} process and its pending requests.
+     */
+    private final class Batch {
+
+        private final boolean content;
+        private final @Nullable Process process;
+        private final @Nullable OutputStream stdin;
+        /*
+         * Requests are written while holding the write lock, but the pending queue is never
+         * guarded by it. Git stops reading requests when its output is not being consumed,
+         * so the response reader must be able to take requests off the queue while a large
+         * number of requests is being written.
+         */
+        private final Object writeLock = new Object();
+        private final Deque<CompletableFuture<GitObject>> pending = new ConcurrentLinkedDeque<>();
+        private volatile @Nullable IOException failure;
+
+        private Batch(boolean content) {
+
+            this.content = content;
+            List<String> cmd = new ArrayList<>(command);
+            cmd.add(content ? "--batch" : "--batch-check");
+
+            ProcessBuilder builder = new ProcessBuilder(cmd).directory(directory.toFile())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD);
+            builder.environment().putAll(environment);
+
+            Process process = null;
+            OutputStream stdin = null;
+            try {
+                LibraryLogger.debug("Starting git object reader: " + String.join(" ", cmd));
+                Process started = builder.start();
+                stdin = new BufferedOutputStream(started.getOutputStream());
+                InputStream stdout = new BufferedInputStream(started.getInputStream());
+                executor.execute(() -> readResponses(started, stdout));
+                process = started;
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            this.process = process;
+            this.stdin = stdin;
+        }
+
+        private CompletableFuture<GitObject> request(String revision) {
+            return requestAll(List.of(revision)).get(0);
+        }
+
+        private List<CompletableFuture<GitObject>> requestAll(List<String> revisions) {
+
+            for (String revision : revisions) {
+                if (revision.indexOf('\n') >= 0) {
+                    throw new IllegalArgumentException("Object name must not contain a line break: " + revision);
+                }
+            }
+            List<CompletableFuture<GitObject>> futures = new ArrayList<>(revisions.size());
+            synchronized (writeLock)
+            {
+                for (String revision : revisions)
+                {
+                    CompletableFuture<GitObject> future = new CompletableFuture<>();
+                    futures.add(future);
+                    if (failure != null) {
+                        future.completeExceptionally(failure);
+                        continue;
+                    }
+                    /* The request has to be queued before it is written
+                     * because the response may arrive before write returns
+                     */
+                    pending.addLast(future);
+                    try {
+                        stdin.write((revision + '\n').getBytes(StandardCharsets.UTF_8));
+                    }
+                    catch (IOException e) {
+                        fail(e);
+                    }
+                }
+                try {
+                    if (failure == null) stdin.flush();
+                }
+                catch (IOException e) {
+                    fail(e);
+                }
+            }
+            /* Requests queued after the batch failed would otherwise never complete
+             */
+            if (failure != null) {
+                fail(failure);
+            }
+            return futures;
+        }
+
+        /**
+         * Parse responses in the order requests were made until the end of stream is reached.
+         * Each response starts with a header line {@code <id> <type> <size>}, optionally followed
+         * by the content and a line feed, or with {@code <name> missing} or {@code <name> ambiguous}
+         * if the object does not exist. Names may contain spaces, so responses for objects that do
+         * not exist are recognized by their suffix.
+         */
+        private void readResponses(Process process, InputStream stdout) {
+
+            try {
+                String header;
+                while ((header = readLine(stdout)) != null)
+                {
+                    GitObject object = null;
+                    if (!header.endsWith(" missing") && !header.endsWith(" ambiguous"))
+                    {
+                        String[] parts = header.split(" ");
+                        if (parts.length != 3 || !isObjectId(parts[0])) {
+                            throw new IOException("Malformed response from git cat-file: " + header);
+                        }
+                        long size = Long.parseLong(parts[2]);
+                        ByteBuffer buffer = null;
+                        if (content)
+                        {
+                            if (size > Integer.MAX_VALUE - 8) {
+                                throw new IOException("Object is too large to read into memory: " + parts[0]);
+                            }
+                            byte[] bytes = new byte[(int) size];
+                            readFully(stdout, bytes);
+                            if (stdout.read() != '\n') {
+                                throw new IOException("Malformed response from git cat-file after object " + parts[0]);
+                            }
+                            buffer = ByteBuffer.wrap(bytes);
+                        }
+                        object = new GitObject(parts[0], GitObject.Type.fromName(parts[1]), size, buffer);
+                    }
+                    CompletableFuture<GitObject> future = pending.pollFirst();
+                    if (future != null) future.complete(object);
+                }
+                int exitCode = process.waitFor();
+                fail(new IOException("git cat-file exited with status " + exitCode));
+            }
+            catch (IOException e) {
+                fail(e);
+            }
+            catch (RuntimeException e) {
+                fail(new IOException("Malformed response from git cat-file", e));
+            }
+            catch (InterruptedException e)
+            {
+                fail(new IOException(e));
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Mark this batch as failed and complete all pending requests with the given exception.
+         */
+        private void fail(IOException e) {
+
+            synchronized (pending)
+            {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            IOException cause = Objects.requireNonNull(failure);
+            CompletableFuture<GitObject> future;
+            while ((future = pending.pollFirst()) != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+
+        private boolean isAlive() {
+            return failure == null && process != null && process.isAlive();
+        }
+
+        private void close() {
+
+            if (process == null) {
+                return;
+            }
+            try {
+                synchronized (writeLock) {
+                    stdin.close();
+                }
+                if (!process.waitFor(1, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            }
+            catch (IOException e) {
+                process.destroyForcibly();
+            }
+            catch (InterruptedException e)
+            {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            fail(new IOException("Object reader has been closed."));
+        }
+    }
+
+    /**
+     * @return the next line without the line feed or {@code null} if the end of stream was reached.
+     */
+    private static @Nullable String readLine(InputStream in) throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream(96);
+        int b;
+        while ((b = in.read()) != '\n')
+        {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString(StandardCharsets.UTF_8.name()) : null;
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * @return {@code true} if the given string is a full hexadecimal object name.
+     */
+    private static boolean isObjectId(String id) {
+
+        if (id.length() != 40 && id.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++)
+        {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            int count = in.read(bytes, offset, bytes.length - offset);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of git cat-file output");
+            }
+            offset += count;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import javax.validation.constraints.Positive;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * This object describes a group of commands that run as background jobs of a
+ * {@link BashScript}, where each command can depend on the completion of other commands.
+ * <p>
+ *     Commands are run in stages. Every stage runs all commands whose dependencies completed in
+ *     previous stages, and a {@code wait} barrier ends the stage once all of its commands complete.
+ *     At most {@link #create(int) maxJobs} commands run at the same time. A command only runs if
+ *     all of its dependencies exited with status {@code 0}, otherwise it is skipped and recorded
+ *     with the status {@value #SKIPPED_STATUS}.
+ * </p><p>
+ *     The exit status of every command is collected, and written as a {@code <name> <status>} line
+ *     to the {@link #setStatusFile(UnixPath) status file} if one is set. The script continues with
+ *     the next command once all jobs complete, and the status of the group, available as {@code $?}
+ *     to the next command, is {@code 0} only if every job exited with status {@code 0}.
+ * </p>
+ * Dependencies must be added before the commands that depend on them, so a graph never contains cycles.
+ * Note that the group requires bash {@code 4.3} or newer, and that jobs run concurrently, so their
+ * redirected output is always appended to the redirection file.
+ *
+ * @see BashScript.Builder#appendJobs(JobGraph)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class JobGraph {
+
+    /** Exit status recorded for commands skipped because a dependency failed. */
+    public static final int SKIPPED_STATUS = 125;
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    private final int maxJobs;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private @Nullable UnixPath statusFile;
+
+    private JobGraph(int maxJobs) {
+        this.maxJobs = maxJobs;
+    }
+
+    /**
+     * @param maxJobs maximum number of commands that run at the same time,
+     *                usually the number of available processors
+     * @return a new empty {@code JobGraph}.
+     */
+    public static JobGraph create(@Positive int maxJobs) {
+
+        if (maxJobs <= 0) {
+            throw new IllegalArgumentException("Maximum number of jobs must be a positive number.");
+        }
+        return new JobGraph(maxJobs);
+    }
+
+    /**
+     * @return {@code JobGraph} that runs the given commands concurrently without any dependencies.
+     *         Commands are named {@code job1}, {@code job2} and so on in the order they are given.
+     */
+    public static JobGraph parallel(@Positive int maxJobs, BashCommand... commands) {
+
+        JobGraph graph = create(maxJobs);
+        for (int i = 0; i < commands.length; i++) {
+            graph.add("job" + (i + 1), commands[i]);
+        }
+        return graph;
+    }
+
+    /**
+     * Internal record of a single command and the stage it runs in.
+     */
+    private static final class Job {
+
+        private final String name;
+        private final String command;
+        private final List<String> dependencies;
+        private final int stage;
+
+        private Job(String name, String command, List<String> dependencies, int stage) {
+            this.name = name;
+            this.command = command;
+            this.dependencies = dependencies;
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * Add a command that runs once all of the given dependencies exited with status {@code 0}.
+     *
+     * @param name unique name of the command, made of letters, digits, {@code _}, {@code .} and {@code -}
+     * @param dependencies names of previously added commands that must complete first
+     *
+     * @throws IllegalArgumentException if the name is invalid or already used,
+     *         or a dependency has not been added yet.
+     */
+    @Contract("_, _, _ -> this")
+    public JobGraph add(String name, BashCommand command, String... dependencies) {
+
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid job name: " + name);
+        }
+        if (jobs.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate job name: " + name);
+        }
+        int stage = 0;
+        for (String dependency : dependencies)
+        {
+            Job job = jobs.get(dependency);
+            if (job == null) {
+                throw new IllegalArgumentException("Job " + name + " depends on unknown job " + dependency);
+            }
+            stage = Math.max(stage, job.stage + 1);
+        }
+        jobs.put(name, new Job(name, command.toString(), List.of(dependencies), stage));
+        return this;
+    }
+
+    /**
+     * Set the file the exit status of every command is written to when all commands completed.
+     */
+    @Contract("_ -> this")
+    public JobGraph setStatusFile(@Nullable UnixPath file) {
+        this.statusFile = file;
+        return this;
+    }
+
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Generate the script lines that run this graph.
+     *
+     * @param redirect how to redirect the output of every command or {@code null}
+     */
+    List<String> toLines(@Nullable RedirectOutput redirect) {
+
+        List<String> lines = new ArrayList<>();
+        lines.add("jute_jobs=$(mktemp -d) jute_failed=0");
+        lines.add("jute_slot() { while [ \"$(jobs -pr | wc -l)\" -ge " + maxJobs + " ]; do wait -n; done; }");
+
+        List<List<Job>> stages = new ArrayList<>();
+        for (Job job : jobs.values())
+        {
+            while (stages.size() <= job.stage) stages.add(new ArrayList<>());
+            stages.get(job.stage).add(job);
+        }
+        String target = redirect != null ? ' ' + RedirectOutput.Type.APPEND.value + ' ' + redirect.path : "";
+        for (List<Job> stage : stages)
+        {
+            for (Job job : stage)
+            {
+                StringBuilder sb = new StringBuilder("jute_slot; { ");
+                if (!job.dependencies.isEmpty())
+                {
+                    sb.append("if ");
+                    for (int i = 0; i < job.dependencies.size(); i++)
+                    {
+                        if (i > 0) sb.append(" && ");
+                        sb.append("[ \"$(cat \"$jute_jobs/").append(job.dependencies.get(i)).append("\")\" = 0 ]");
+                    }
+                    sb.append("; then ");
+                }
+                sb.append(job.command).append(target).append("; jute_status=$?");
+                if (!job.dependencies.isEmpty()) {
+                    sb.append("; else jute_status=").append(SKIPPED_STATUS).append("; fi");
+                }
+                sb.append("; echo $jute_status > \"$jute_jobs/").append(job.name).append("\"; } &");
+                lines.add(sb.toString());
+            }
+            lines.add("wait");
+        }
+        StringBuilder summary = new StringBuilder("for jute_job in");
+        jobs.keySet().forEach(name -> summary.append(' ').append(name));
+        summary.append("; do jute_status=$(cat \"$jute_jobs/$jute_job\"); ")
+                .append("[ \"$jute_status\" = 0 ] || jute_failed=1; ")
+                .append("echo \"$jute_job $jute_status\"; done");
+        if (statusFile != null) {
+            summary.append(" > ").append(BashSyntax.singleQuote(statusFile.toString()));
+        }
+        else summary.append(" > /dev/null");
+        lines.add(summary.toString());
+        lines.add("rm -rf \"$jute_jobs\"; [ $jute_failed = 0 ]");
+        return lines;
+    }
+}
@@ -0,0 +1,160 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.IBuilder;
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This object describes how {@link GitBash} launches the shell processes that interpret commands.
+ * <p>
+ *     An interactive shell sources the user's startup files every time it is launched, which
+ *     can be expensive when every command runs in a new shell. A non-interactive profile that
+ *     skips startup files avoids this cost, while an environment snapshot captured once with
+ *     {@link GitBash#captureEnvironment()} gives commands access to the same {@code PATH}
+ *     and other variables the startup files would have defined.
+ * </p>
+ * Profiles are immutable and can be shared between threads.
+ *
+ * @see GitBash#setLaunchProfile(LaunchProfile)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LaunchProfile {
+
+    /**
+     * Non-interactive profile that lets bash decide which startup files to read.
+     * This is how commands are launched on Unix systems by default.
+     */
+    public static final LaunchProfile DEFAULT = create().build();
+
+    /**
+     * Interactive profile that reads the user's startup files before every command.
+     * This is how commands are launched by git bash on Windows by default.
+     */
+    public static final LaunchProfile INTERACTIVE = create().setInteractive(true).build();
+
+    private final boolean interactive;
+    private final boolean startupFiles;
+    private final Map<String, String> environment;
+
+    private LaunchProfile(Builder builder) {
+        this.interactive = builder.interactive;
+        this.startupFiles = builder.startupFiles;
+        this.environment = Map.copyOf(builder.environment);
+    }
+
+    /**
+     * Use {@link #create()} method to create a new {@code Builder} instance,
+     * then chain call available class methods to configure the profile.
+     * When all configurations have been setup use {@link #build()}
+     * method to build a new {@code LaunchProfile} instance.
+     */
+    public static class Builder implements IBuilder<LaunchProfile> {
+
+        private boolean interactive = false;
+        private boolean startupFiles = true;
+        private Map<String, String> environment = Map.of();
+
+        private Builder() {}
+
+        /**
+         * Set whether the shell should run in interactive mode ({@code -i}). Note that
+         * shells that read commands from {@code stdin} are never launched in interactive mode.
+         */
+        @Contract("_ -> this")
+        public Builder setInteractive(boolean interactive) {
+            this.interactive = interactive;
+            return this;
+        }
+        /**
+         * Set whether the shell is allowed to read the system and personal startup files.
+         * When disabled the shell is launched with {@code --noprofile --norc}.
+         */
+        @Contract("_ -> this")
+        public Builder setStartupFiles(boolean read) {
+            this.startupFiles = read;
+            return this;
+        }
+        /**
+         * Set variables added to the environment of every launched process. Variables
+         * replace those of the same name inherited from this virtual machine.
+         *
+         * @see GitBash#captureEnvironment()
+         */
+        @Contract("_ -> this")
+        public Builder setEnvironment(Map<String, String> environment) {
+            this.environment = environment;
+            return this;
+        }
+        @Override
+        public LaunchProfile build() {
+            return new LaunchProfile(this);
+        }
+    }
+
+    /**
+     * @return a new {@code Builder} instance intended to be used to
+     *         build a custom configured {@code LaunchProfile} instance.
+     */
+    public static Builder create() {
+        return new Builder();
+    }
+
+    /**
+     * @param shell program name or path of the shell
+     * @param stdin whether the shell should read commands from {@code stdin}
+     *              instead of a command string that follows the returned arguments.
+     *
+     * @return program and options used to launch the shell. Bash requires long
+     *         options to appear before single-character options so they come first.
+     */
+    List<String> getShellCommand(String shell, boolean stdin) {
+
+        List<String> command = new ArrayList<>(5);
+        command.add(shell);
+        if (!startupFiles) {
+            command.add("--noprofile");
+            command.add("--norc");
+        }
+        if (stdin) {
+            command.add("-s");
+        }
+        else {
+            if (interactive) command.add("-i");
+            command.add("-c");
+        }
+        return command;
+    }
+
+    /**
+     * Add the variables of this profile to the environment of the given process.
+     */
+    void applyTo(ProcessBuilder builder) {
+
+        if (!environment.isEmpty()) {
+            builder.environment().putAll(environment);
+        }
+    }
+
+    @Contract(pure = true)
+    public boolean isInteractive() {
+        return interactive;
+    }
+
+    @Contract(pure = true)
+    public boolean readsStartupFiles() {
+        return startupFiles;
+    }
+
+    /**
+     * @return unmodifiable map of variables added to the environment of every launched process.
+     */
+    @Contract(pure = true)
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+}
@@ -0,0 +1,221 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.validation.constraints.Positive;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This object describes what to do with an output stream of a command.
+ * Output can be discarded, stored in memory up to a limit, or written to a caller-supplied
+ * channel as it is produced. Only output captured with {@link #spill(long)} ever touches the
+ * filesystem, and only once it grows beyond the spill threshold.
+ *
+ * @see CommandOptions
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class OutputCapture {
+
+    /**
+     * Default maximum number of bytes stored in memory by {@link #buffer()}.
+     */
+    public static final long DEFAULT_LIMIT = 8 * 1024 * 1024;
+
+    private static final OutputCapture DISCARD = new OutputCapture(Type.DISCARD, null, 0);
+
+    enum Type {
+        DISCARD, BUFFER, SPILL, CHANNEL
+    }
+
+    final Type type;
+    private final @Nullable WritableByteChannel channel;
+    private final long limit;
+
+    private OutputCapture(Type type, @Nullable WritableByteChannel channel, long limit) {
+        this.type = type;
+        this.channel = channel;
+        this.limit = limit;
+    }
+
+    /**
+     * @return {@code OutputCapture} that discards all output.
+     */
+    public static OutputCapture discard() {
+        return DISCARD;
+    }
+
+    /**
+     * @return {@code OutputCapture} that stores up to {@link #DEFAULT_LIMIT} bytes in memory.
+     * @see #buffer(long)
+     */
+    public static OutputCapture buffer() {
+        return buffer(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit maximum number of bytes to store in memory. Output that exceeds
+     *              the limit is still read from the process, but is discarded.
+     *
+     * @return {@code OutputCapture} that stores output in pooled direct buffers.
+     * @see CapturedOutput
+     */
+    public static OutputCapture buffer(@Positive long limit) {
+
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Output limit must be a positive number.");
+        }
+        return new OutputCapture(Type.BUFFER, null, limit);
+    }
+
+    /**
+     * @param threshold maximum number of bytes to store in memory. When the output grows beyond
+     *                  the threshold it is moved to a temporary file, which is mapped into memory
+     *                  when the output is accessed. Spilled output is never truncated.
+     *
+     * @return {@code OutputCapture} that stores output in pooled direct buffers
+     *         and spills output larger than the threshold to a file.
+     * @see CapturedOutput#isSpilled()
+     */
+    public static OutputCapture spill(long threshold) {
+
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Spill threshold must not be negative.");
+        }
+        return new OutputCapture(Type.SPILL, null, threshold);
+    }
+
+    /**
+     * @return {@code OutputCapture} that writes output to the given channel as it is produced.
+     *         Note that the channel is not closed when the command completes.
+     */
+    public static OutputCapture channel(WritableByteChannel channel) {
+        return new OutputCapture(Type.CHANNEL, channel, 0);
+    }
+
+    /**
+     * @return {@code OutputCapture} that writes output to the given stream as it is produced.
+     *         Note that the stream is not closed when the command completes.
+     */
+    public static OutputCapture stream(OutputStream stream) {
+        return channel(Channels.newChannel(stream));
+    }
+
+    /**
+     * Create a new destination for a single output stream of a single command.
+     */
+    Target open() {
+
+        switch (type) {
+            case BUFFER:
+                return new Target(new CapturedOutput(ByteBufferPool.SHARED, limit));
+            case SPILL:
+                return new Target(new CapturedOutput(ByteBufferPool.SHARED, Long.MAX_VALUE, limit));
+            case CHANNEL:
+                return new Target(channel);
+            default:
+                return new Target();
+        }
+    }
+
+    /**
+     * Internal destination of a single output stream that counts all bytes written to it.
+     */
+    static final class Target implements WritableByteChannel {
+
+        private final @Nullable WritableByteChannel channel;
+        private final @Nullable CapturedOutput captured;
+        private volatile long count;
+
+        private Target(@Nullable WritableByteChannel channel, @Nullable CapturedOutput captured) {
+            this.channel = channel;
+            this.captured = captured;
+        }
+        private Target(WritableByteChannel channel) {
+            this(channel, null);
+        }
+        private Target(CapturedOutput captured) {
+            this(null, captured);
+        }
+        private Target() {
+            this(null, null);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+
+            final int length = src.remaining();
+            if (captured != null) {
+                captured.store(src);
+            }
+            else if (channel != null) {
+                while (src.hasRemaining()) channel.write(src);
+            }
+            else src.position(src.limit());
+
+            count += length;
+            return length;
+        }
+
+        /**
+         * Copy all bytes from the given stream to this destination until the end of stream
+         * is reached. Bytes are transferred through a pooled direct buffer.
+         */
+        void pump(InputStream in) throws IOException {
+
+            ByteBufferPool pool = ByteBufferPool.SHARED;
+            ByteBuffer buffer = pool.acquire();
+            try (ReadableByteChannel source = Channels.newChannel(in))
+            {
+                while (source.read(buffer) >= 0)
+                {
+                    buffer.flip();
+                    write(buffer);
+                    buffer.clear();
+                }
+            }
+            finally {
+                pool.release(buffer);
+            }
+        }
+
+        /**
+         * @return {@code OutputStream} view of this destination.
+         */
+        OutputStream asStream() {
+            return Channels.newOutputStream(this);
+        }
+
+        /**
+         * @return {@code true} if the stream this destination represents can be discarded
+         *         by the operating system instead of being read by this virtual machine.
+         */
+        boolean isDiscarding() {
+            return channel == null && captured == null;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Nullable CapturedOutput getCaptured() {
+            return captured;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Internal publisher of the standard output of a single command.
+ * <p>
+ *     The process is started once the subscriber requests the first item, and output is read
+ *     from the process only while the subscriber has outstanding demand. When demand runs out
+ *     the operating system pipe fills up and the process blocks until more items are requested,
+ *     so output of any size is consumed with constant memory. Cancelling the subscription
+ *     terminates the process together with all of its descendants.
+ * </p>
+ * All signals are delivered from a single task running on the executor. The output of a command
+ * can only be consumed once, so the publisher accepts only a single subscriber.
+ *
+ * @see GitBash#publishOutput(BashCommand, CommandOptions)
+ * @see GitBash#publishLines(BashCommand, CommandOptions)
+ */
+@MethodsNotNull
+final class OutputPublisher<T> implements Flow.Publisher<T> {
+
+    /** Size of byte chunks published by {@link #chunks(InputStream)}. */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * Reads items from the standard output of the process.
+     */
+    @FunctionalInterface
+    interface Decoder<T> {
+        /**
+         * @return the next item or {@code null} if the end of stream was reached.
+         */
+        @Nullable T next() throws IOException;
+    }
+
+    private final ProcessBuilder builder;
+    private final OutputCapture stderr;
+    private final Function<InputStream, Decoder<T>> decoder;
+    private final Executor executor;
+    private final @Nullable Duration timeout;
+    private final String description;
+    private final Function<Supplier<CompletableFuture<Void>>, CompletableFuture<Void>> scheduling;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param scheduling starts the task that supplies the future that completes when the stream
+     *                   terminates, either immediately or once a scheduler allows it to run.
+     */
+    OutputPublisher(ProcessBuilder builder, OutputCapture stderr, Function<InputStream, Decoder<T>> decoder,
+                    Executor executor, @Nullable Duration timeout, String description,
+                    Function<Supplier<CompletableFuture<Void>>, CompletableFuture<Void>> scheduling) {
+
+        this.builder = builder;
+        this.stderr = stderr;
+        this.decoder = decoder;
+        this.executor = executor;
+        this.timeout = timeout;
+        this.description = description;
+        this.scheduling = scheduling;
+    }
+
+    /**
+     * @return decoder that publishes output in chunks of at most {@link #CHUNK_SIZE} bytes.
+     *         Every chunk is backed by its own array so subscribers are free to keep it.
+     */
+    static Decoder<ByteBuffer> chunks(InputStream in) {
+
+        return () -> {
+            byte[] bytes = new byte[CHUNK_SIZE];
+            int count = in.read(bytes);
+            return count >= 0 ? ByteBuffer.wrap(bytes, 0, count) : null;
+        };
+    }
+
+    /**
+     * @return decoder that publishes output line by line without line terminators.
+     */
+    static Function<InputStream, Decoder<String>> lines(Charset charset) {
+
+        return in -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset));
+            return reader::readLine;
+        };
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+
+        if (!subscribed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) {}
+                @Override public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Command output can only be consumed once."));
+            return;
+        }
+        Stream stream = new Stream(subscriber);
+        subscriber.onSubscribe(stream);
+        stream.turn = scheduling.apply(() -> {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            executor.execute(() -> stream.run(done));
+            return done;
+        });
+    }
+
+    /**
+     * Internal subscription that streams output of a single process to a single subscriber.
+     */
+    private final class Stream implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final CompletableFuture<Void> control = new CompletableFuture<>();
+        private volatile @Nullable CompletableFuture<Void> turn;
+        private volatile @Nullable Process process;
+
+        private long demand;
+        private boolean cancelled;
+        private @Nullable Throwable error;
+
+        private Stream(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+
+            synchronized (this)
+            {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Requested number of items must be positive: " + n));
+                }
+                else demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+
+            synchronized (this)
+            {
+                cancelled = true;
+                notifyAll();
+            }
+            CompletableFuture<Void> turn = this.turn;
+            if (turn != null) {
+                turn.cancel(false);
+            }
+            destroy();
+        }
+
+        private synchronized void fail(Throwable e) {
+
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until the subscriber requests more items or the stream is terminated.
+         * @return {@code true} if the next item should be read.
+         */
+        private synchronized boolean awaitDemand() throws InterruptedException {
+
+            while (demand == 0 && !cancelled && error == null) {
+                wait();
+            }
+            return !cancelled && error == null;
+        }
+
+        private synchronized boolean isTerminated() {
+            return cancelled || error != null;
+        }
+
+        private void run(CompletableFuture<Void> done) {
+
+            Process process = null;
+            try {
+                if (!awaitDemand()) {
+                    signalTermination();
+                    return;
+                }
+                process = start();
+                Decoder<T> items = decoder.apply(process.getInputStream());
+
+                T item;
+                while (awaitDemand() && (item = items.next()) != null)
+                {
+                    synchronized (this) {
+                        demand--;
+                    }
+                    subscriber.onNext(item);
+                }
+                if (!isTerminated())
+                {
+                    int exitCode = process.waitFor();
+                    if (exitCode != 0) {
+                        fail(new IOException("Command exited with status " + exitCode + ": " + description));
+                    }
+                }
+                signalTermination();
+            }
+            catch (IOException e)
+            {
+                /* Reading fails when the process is terminated by a timeout or cancellation,
+                 * in which case the original reason takes precedence
+                 */
+                fail(e);
+                signalTermination();
+            }
+            catch (InterruptedException e)
+            {
+                fail(e);
+                signalTermination();
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e)
+            {
+                LibraryLogger.error("Output subscriber failed, cancelling command: " + description, e);
+                cancel();
+            }
+            finally {
+                control.complete(null);
+                if (process != null) {
+                    destroy();
+                }
+                done.complete(null);
+            }
+        }
+
+        private Process start() throws IOException {
+
+            OutputCapture.Target err = stderr.open();
+            builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+            builder.redirectError(err.isDiscarding() ? ProcessBuilder.Redirect.DISCARD : ProcessBuilder.Redirect.PIPE);
+
+            Process process = builder.start();
+            this.process = process;
+
+            RunningProcess.scheduleTimeout(control, timeout, description);
+            control.whenComplete((r, e) -> {
+                if (e != null) {
+                    fail(e);
+                    destroy();
+                }
+            });
+            if (!err.isDiscarding())
+            {
+                InputStream in = process.getErrorStream();
+                executor.execute(() -> {
+                    try {
+                        err.pump(in);
+                    }
+                    catch (IOException e) {
+                        LibraryLogger.error("Unable to read error output of command: " + description, e);
+                    }
+                });
+            }
+            return process;
+        }
+
+        private void signalTermination() {
+
+            Throwable error;
+            synchronized (this)
+            {
+                if (cancelled) {
+                    return;
+                }
+                error = this.error;
+            }
+            if (error != null) {
+                subscriber.onError(error);
+            }
+            else subscriber.onComplete();
+        }
+
+        private void destroy() {
+
+            Process process = this.process;
+            if (process != null) {
+                ProcessTree.destroy(process.toHandle());
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.logger.LibraryLogger;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Internal helper methods for terminating a process together with all of its descendants.
+ */
+final class ProcessTree {
+
+    /**
+     * Time given to processes to exit after a normal termination request
+     * before they are forcibly terminated.
+     */
+    private static final Duration GRACE_PERIOD = Duration.ofSeconds(2);
+
+    private ProcessTree() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Request termination of the given process and all of its descendants. Descendants are
+     * collected before the root process is terminated because orphaned processes are adopted
+     * by another process and can no longer be found through the root. Processes that are still
+     * alive after a short grace period are forcibly terminated.
+     */
+    static void destroy(ProcessHandle root) {
+
+        List<ProcessHandle> tree = root.descendants().collect(Collectors.toList());
+        tree.add(0, root);
+
+        LibraryLogger.debug("Terminating process %d and %d descendants", root.pid(), tree.size() - 1);
+        tree.forEach(ProcessHandle::destroy);
+
+        CompletableFuture.delayedExecutor(GRACE_PERIOD.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+            for (ProcessHandle process : tree) {
+                if (process.isAlive()) process.destroyForcibly();
+            }
+        });
+    }
+}
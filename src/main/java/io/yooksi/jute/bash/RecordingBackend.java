@@ -0,0 +1,132 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+
+/**
+ * This backend executes commands with a command line process the same way {@link GitBash}
+ * would, and records the output, exit status and running time of every command into a
+ * {@link CommandRecording} that can later be served back by a {@link ReplayBackend}.
+ * <p>
+ *     Only commands that go through backends are recorded, which excludes commands executed
+ *     with {@link GitBash#runCommands(List) runCommands} and published output.
+ *     Backends are asked in the order they were added, so this backend should be added
+ *     before backends whose commands should be recorded as well.
+ * </p>
+ * Note that output is held in memory until it is recorded.
+ *
+ * @see GitBash#addBackend(CommandBackend)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RecordingBackend implements CommandBackend {
+
+    private final GitBash bash;
+    private final CommandRecording recording;
+    private final Predicate<BashCommand> filter;
+
+    /**
+     * @param bash used to create processes for recorded commands
+     * @param recording destination of recorded executions
+     */
+    public RecordingBackend(GitBash bash, CommandRecording recording) {
+        this(bash, recording, command -> true);
+    }
+
+    /**
+     * @param filter decides which commands are recorded, other commands are left to other backends
+     */
+    public RecordingBackend(GitBash bash, CommandRecording recording, Predicate<BashCommand> filter) {
+        this.bash = bash;
+        this.recording = recording;
+        this.filter = filter;
+    }
+
+    public CommandRecording getRecording() {
+        return recording;
+    }
+
+    @Override
+    public boolean supports(BashCommand command) {
+        return filter.test(command);
+    }
+
+    @Override
+    public int execute(BashCommand command, Path directory, OutputStream out,
+                       OutputStream err) throws IOException, InterruptedException {
+
+        CommandOptions options = CommandOptions.create().setDirectory(directory.toAbsolutePath()).build();
+        ProcessBuilder builder = bash.createProcess(command, options);
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try {
+            /* Output is pumped on the executor so that waiting for the process can be interrupted
+             * by a timeout or cancellation, after which the process is terminated below
+             */
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            CompletableFuture<Void> pumps = CompletableFuture.allOf(
+                    pump(process.getInputStream(), out, stdout),
+                    pump(process.getErrorStream(), err, stderr));
+
+            int exitCode = process.waitFor();
+            try {
+                pumps.join();
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+            Duration duration = Duration.ofNanos(System.nanoTime() - start);
+            recording.add(command, directory, exitCode, duration, stdout.toByteArray(), stderr.toByteArray());
+            return exitCode;
+        }
+        finally {
+            if (process.isAlive()) {
+                ProcessTree.destroy(process.toHandle());
+            }
+        }
+    }
+
+    private CompletableFuture<Void> pump(InputStream in, OutputStream destination, ByteArrayOutputStream record) {
+
+        return CompletableFuture.runAsync(() -> {
+            try {
+                copy(in, destination, record);
+            }
+            catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, bash.getExecutor());
+    }
+
+    /**
+     * Copy all bytes from the given stream to both the destination and the record.
+     */
+    private static void copy(InputStream in, OutputStream destination, ByteArrayOutputStream record) throws IOException {
+
+        byte[] buffer = new byte[8192];
+        try (in) {
+            int count;
+            while ((count = in.read(buffer)) >= 0)
+            {
+                destination.write(buffer, 0, count);
+                record.write(buffer, 0, count);
+            }
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package io.yooksi.jute.bash;
 
 import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Bash command argument for redirecting {@code stdout} to a local file.
- * Each object is created for a specific redirection type and local file path.
+ * Each object is created for a specific redirection type and local file path,
+ * except for {@link Type#FRAMED framed} output which is delivered to the JVM.
  *
  * @see <a href=https://www.tldp.org/LDP/abs/html/io-redirection.html>
  *     Advanced Bash-Scripting Guide: I/O Redirection</a>
@@ -21,7 +23,14 @@ public class RedirectOutput {
         /**
          * Creates the file if not present, otherwise appends to it.
          */
-        APPEND(">>");
+        APPEND(">>"),
+        /**
+         * Leaves output on {@code stdout} of the script and terminates the output of each
+         * command with a marker line, so that it can be split into per-command frames.
+         *
+         * @see FramedOutput
+         */
+        FRAMED("");
 
         final String value;
         Type(String value) {
@@ -33,11 +42,16 @@ public class RedirectOutput {
         }
     }
 
-    final UnixPath path;
+    final @Nullable UnixPath path;
     final Type type;
+    private final @Nullable String marker;
 
     private RedirectOutput(UnixPath path, Type type) {
-        this.path = path; this.type = type;
+        this.path = path; this.type = type; this.marker = null;
+    }
+
+    private RedirectOutput(String marker) {
+        this.path = null; this.type = Type.FRAMED; this.marker = marker;
     }
 
     /**
@@ -54,4 +68,24 @@ public class RedirectOutput {
     public static RedirectOutput appendTo(UnixPath path) {
         return Type.APPEND.create(path);
     }
+
+    /**
+     * @return {@code RedirectOutput} that terminates the output of each command with a line
+     *         that starts with the given marker. Created by {@link FramedOutput#redirect()}.
+     */
+    static RedirectOutput framed(String marker) {
+        return new RedirectOutput(marker);
+    }
+
+    /**
+     * @param index index of the framed command in the script
+     * @return text appended to a command to terminate its output with a marker line that holds
+     *         the command index and exit status. The marker line is preceded by a line feed which
+     *         is not part of the command output, and the exit status of the command is preserved
+     *         as far as success or failure is concerned.
+     */
+    String frame(long index) {
+        return "; jute_status=$?; printf '\\n%s %d %d\\n' " + marker + ' ' + index +
+                " $jute_status; [ $jute_status = 0 ]";
+    }
 }
@@ -0,0 +1,112 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This backend serves commands from a {@link CommandRecording} instead of executing them, so code
+ * that executes many commands can be tested deterministically without the programs it depends on.
+ * <p>
+ *     Recorded output and exit status are served back exactly as they were recorded. By default
+ *     commands complete immediately, but the time they took when they were recorded can be
+ *     simulated as well with {@link #setLatencyScale(double)}. Simulated latency honours timeouts
+ *     and cancellation the same way a running process would.
+ * </p>
+ * Commands that were not recorded in the directory they are executed in are left to other
+ * backends and the command line program, unless the backend is {@link #setStrict(boolean) strict}.
+ *
+ * @see GitBash#addBackend(CommandBackend)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ReplayBackend implements CommandBackend {
+
+    private final CommandRecording recording;
+    private volatile double latencyScale;
+    private volatile boolean strict;
+
+    public ReplayBackend(CommandRecording recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Set how much of the recorded running time of a command to simulate before serving it.
+     * A scale of {@code 0}, which is the default, serves commands immediately, a scale of {@code 1}
+     * reproduces recorded latencies and larger scales simulate slower environments.
+     */
+    @Contract("_ -> this")
+    public ReplayBackend setLatencyScale(double scale) {
+
+        if (scale < 0 || Double.isNaN(scale)) {
+            throw new IllegalArgumentException("Latency scale must not be negative.");
+        }
+        this.latencyScale = scale;
+        return this;
+    }
+
+    public double getLatencyScale() {
+        return latencyScale;
+    }
+
+    /**
+     * Set whether to declare all commands as supported. Strict backends fail commands that
+     * were not recorded with an {@link IOException} instead of letting them be executed,
+     * which guarantees that nothing is executed outside of the recording.
+     */
+    @Contract("_ -> this")
+    public ReplayBackend setStrict(boolean strict) {
+        this.strict = strict;
+        return this;
+    }
+
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * @return {@code true} if the backend is strict or the command was recorded in any directory.
+     *         Use {@link #supports(BashCommand, Path)} to find out if it can be served in a specific one.
+     */
+    @Override
+    public boolean supports(BashCommand command) {
+        return strict || recording.contains(command);
+    }
+
+    /**
+     * @return {@code true} if the backend is strict or the command was recorded in the given
+     *         directory. Recordings are only served back for the same absolute working directories
+     *         they were recorded in, so commands recorded in other directories are left to other
+     *         backends and the command line program.
+     */
+    @Override
+    public boolean supports(BashCommand command, Path directory) {
+        return strict || recording.contains(command, directory);
+    }
+
+    /**
+     * Note that a strict backend fails a command that was not recorded in
+     * the given directory with {@link IOException} instead of executing it.
+     */
+    @Override
+    public int execute(BashCommand command, Path directory, OutputStream out,
+                       OutputStream err) throws IOException, InterruptedException {
+
+        CommandRecording.Execution execution = recording.next(command, directory);
+        if (execution == null) {
+            throw new IOException("Command was not recorded: " + command.toString());
+        }
+        long latency = (long) (execution.getDuration().toNanos() * latencyScale);
+        if (latency > 0) {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        }
+        out.write(execution.stdout());
+        err.write(execution.stderr());
+        return execution.getExitCode();
+    }
+}
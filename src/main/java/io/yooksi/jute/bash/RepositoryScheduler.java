@@ -0,0 +1,395 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * This object schedules commands so that commands which modify a repository never run
+ * at the same time as other commands against the same repository.
+ * <p>
+ *     Git guards the index and references with lock files such as {@code .git/index.lock},
+ *     and a command that finds the lock already taken fails instead of waiting for it.
+ *     The scheduler keeps a first-in first-out queue for every repository root. Read-only
+ *     commands at the head of the queue run concurrently with each other, while a command
+ *     that modifies the repository waits for all running commands to complete and holds
+ *     back all the commands queued behind it until it completes. Commands against different
+ *     repositories never wait for each other.
+ * </p>
+ * Waiting for a turn never blocks a thread, the scheduler simply starts queued commands
+ * from the thread that completed the previous command.
+ *
+ * @see GitBash#setScheduler(RepositoryScheduler)
+ * @see BashCommand#isReadOnly()
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RepositoryScheduler {
+
+    /**
+     * Operation executed in the calling thread once it is allowed to access the repository.
+     * @see #run(Path, boolean, Operation)
+     */
+    @FunctionalInterface
+    public interface Operation<T, E extends Exception> {
+        T run() throws E, InterruptedException;
+    }
+
+    /**
+     * Maximum number of directories whose repository root is remembered.
+     */
+    private static final int MAX_CACHED_ROOTS = 1024;
+
+    /**
+     * Queues of repositories that have commands waiting or running. A queue is removed
+     * as soon as it becomes idle, so the scheduler only keeps track of active repositories.
+     */
+    private final Map<Path, Lane> lanes = new ConcurrentHashMap<>();
+    private final Map<Path, Path> roots = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Path> eldest) {
+            return size() > MAX_CACHED_ROOTS;
+        }
+    });
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Schedule an asynchronous task against the repository that contains the given directory.
+     * The task is started once all commands that should run before it have completed. Cancelling
+     * the returned future before the task is started removes it from the queue, and cancelling
+     * it afterwards cancels the future returned by the task.
+     *
+     * @param directory working directory of the task, used to find the repository root
+     * @param readOnly whether the task only reads from the repository
+     * @param task supplies the future that represents the task once the task is started
+     *
+     * @return a future that completes with the result of the task.
+     */
+    public <T> CompletableFuture<T> submit(Path directory, boolean readOnly, Supplier<CompletableFuture<T>> task) {
+
+        Path root = getRepositoryRoot(directory);
+        Entry<T> entry = new Entry<>(readOnly, task);
+        queued.incrementAndGet();
+
+        /* Entries are added while the map holds the key so that a lane
+         * which just became idle is never removed with a new entry in it
+         */
+        Lane lane = lanes.compute(root, (path, current) -> {
+            Lane result = current != null ? current : new Lane(path);
+            result.add(entry);
+            return result;
+        });
+        entry.result.whenComplete((r, e) -> lane.remove(entry));
+        lane.drain();
+        return entry.result;
+    }
+
+    /**
+     * Execute an operation in the calling thread once it is allowed to access the repository that
+     * contains the given directory. This is intended to coordinate operations that don't go through
+     * {@link GitBash}, such as {@link org.eclipse.jgit.api.Git JGit} commands, with scheduled commands.
+     * Note that scheduling is not reentrant, so the operation must not wait for other
+     * commands scheduled against the same repository.
+     *
+     * @param directory working directory of the operation, used to find the repository root
+     * @param readOnly whether the operation only reads from the repository
+     *
+     * @throws InterruptedException if the current thread is interrupted while waiting for its turn.
+     */
+    public <T, E extends Exception> T run(Path directory, boolean readOnly,
+                                          Operation<T, E> operation) throws E, InterruptedException {
+
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> entry = submit(directory, readOnly, () -> {
+            turn.complete(null);
+            return done;
+        });
+        try {
+            turn.get();
+        }
+        catch (InterruptedException e)
+        {
+            entry.cancel(false);
+            throw e;
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        try {
+            return operation.run();
+        }
+        finally {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * @return root directory of the repository that contains the given directory, or
+     *         the directory itself if it is not contained in a repository. Results are
+     *         cached for recently used directories, so the filesystem is usually only
+     *         searched once for every directory.
+     */
+    Path getRepositoryRoot(Path directory) {
+
+        Path dir = directory.toAbsolutePath().normalize();
+        Path root = roots.get(dir);
+        if (root == null)
+        {
+            root = dir;
+            for (Path path = dir; path != null; path = path.getParent())
+            {
+                if (Files.exists(path.resolve(".git"))) {
+                    root = path;
+                    break;
+                }
+            }
+            roots.put(dir, root);
+        }
+        return root;
+    }
+
+    /**
+     * @return the number of commands waiting for their turn across all repositories.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of commands waiting for their turn in the
+     *         repository that contains the given directory.
+     */
+    public int getQueueDepth(Path directory) {
+
+        Lane lane = lanes.get(getRepositoryRoot(directory));
+        return lane != null ? lane.getQueueDepth() : 0;
+    }
+
+    /**
+     * @return the number of repositories that have commands waiting or running.
+     */
+    public int getActiveRepositoryCount() {
+        return lanes.size();
+    }
+
+    /**
+     * @return the number of commands that were started by this scheduler.
+     */
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    /**
+     * @return the total amount of time commands spent waiting for their turn.
+     */
+    public Duration getTotalWaitTime() {
+        return Duration.ofNanos(totalWaitNanos.get());
+    }
+
+    /**
+     * @return the longest amount of time a single command spent waiting for its turn.
+     */
+    public Duration getMaxWaitTime() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    /**
+     * @return the average amount of time commands spent waiting for their turn.
+     */
+    public Duration getAverageWaitTime() {
+
+        long count = scheduledCount.get();
+        return count > 0 ? Duration.ofNanos(totalWaitNanos.get() / count) : Duration.ZERO;
+    }
+
+    private void recordWait(long nanos) {
+
+        queued.decrementAndGet();
+        scheduledCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Internal record of a single task waiting in the queue of a repository.
+     */
+    private static final class Entry<T> {
+
+        private final boolean readOnly;
+        private final Supplier<CompletableFuture<T>> task;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long enqueued = System.nanoTime();
+
+        private Entry(boolean readOnly, Supplier<CompletableFuture<T>> task) {
+            this.readOnly = readOnly;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Internal queue of tasks scheduled against a single repository.
+     */
+    private final class Lane {
+
+        private final Path root;
+        private final Deque<Entry<?>> queue = new ArrayDeque<>();
+        private int readers;
+        private boolean writer, draining;
+
+        private Lane(Path root) {
+            this.root = root;
+        }
+
+        private synchronized void add(Entry<?> entry) {
+            queue.addLast(entry);
+        }
+
+        /**
+         * Drop an entry that completed while waiting in the queue, which
+         * happens when the future returned to the caller is cancelled.
+         */
+        private void remove(Entry<?> entry) {
+
+            synchronized (this)
+            {
+                if (!queue.remove(entry)) {
+                    return;
+                }
+                queued.decrementAndGet();
+            }
+            drain();
+        }
+
+        /**
+         * Start as many tasks from the head of the queue as possible. Tasks are started
+         * outside of the monitor because starting a task may complete it immediately.
+         * Tasks that complete immediately release the lane while it is being drained,
+         * so instead of draining again recursively the lane is drained in a loop
+         * until no more tasks can be started.
+         */
+        private void drain() {
+
+            synchronized (this)
+            {
+                if (draining) return;
+                draining = true;
+            }
+            while (true)
+            {
+                List<Entry<?>> started = new ArrayList<>();
+                synchronized (this)
+                {
+                    while (!queue.isEmpty() && !writer)
+                    {
+                        Entry<?> next = queue.peekFirst();
+                        if (next.readOnly) {
+                            readers++;
+                        }
+                        else if (readers == 0) {
+                            writer = true;
+                        }
+                        else break;
+                        started.add(queue.pollFirst());
+                    }
+                    if (started.isEmpty())
+                    {
+                        draining = false;
+                        break;
+                    }
+                }
+                for (Entry<?> entry : started) {
+                    start(entry);
+                }
+            }
+            lanes.computeIfPresent(root, (path, lane) -> lane == this && isIdle() ? null : lane);
+        }
+
+        private <T> void start(Entry<T> entry) {
+
+            recordWait(System.nanoTime() - entry.enqueued);
+            if (entry.result.isDone()) {
+                release(entry);
+                return;
+            }
+            CompletableFuture<T> future;
+            try {
+                future = entry.task.get();
+            }
+            catch (RuntimeException | Error e)
+            {
+                entry.result.completeExceptionally(e);
+                release(entry);
+                return;
+            }
+            entry.result.whenComplete((r, e) -> {
+                if (e != null) future.cancel(true);
+            });
+            future.whenComplete((r, e) -> {
+                try {
+                    if (e != null) {
+                        entry.result.completeExceptionally(e instanceof CompletionException
+                                && e.getCause() != null ? e.getCause() : e);
+                    }
+                    else if (!entry.result.complete(r) && r instanceof AutoCloseable) {
+                        closeQuietly((AutoCloseable) r);
+                    }
+                }
+                finally {
+                    release(entry);
+                }
+            });
+        }
+
+        private void release(Entry<?> entry) {
+
+            synchronized (this)
+            {
+                if (entry.readOnly) {
+                    readers--;
+                }
+                else writer = false;
+            }
+            drain();
+        }
+
+        private synchronized boolean isIdle() {
+            return queue.isEmpty() && readers == 0 && !writer && !draining;
+        }
+
+        private synchronized int getQueueDepth() {
+            return queue.size();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+
+        try {
+            closeable.close();
+        }
+        catch (Exception e) {
+            LibraryLogger.error("Unable to close unclaimed result", e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internal representation of a started command process whose output streams
+ * are being pumped to their {@link OutputCapture} destinations.
+ */
+@MethodsNotNull
+final class RunningProcess {
+
+    private final Process process;
+    private final long start;
+    private final OutputCapture.Target out;
+    private final OutputCapture.Target err;
+
+    private RunningProcess(Process process, long start, OutputCapture.Target out, OutputCapture.Target err) {
+
+        this.process = process;
+        this.start = start;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Scheduler used to enforce command timeouts. Cancelled timeouts are removed
+     * immediately so that completed commands do not pile up in the queue.
+     */
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    /**
+     * Start a new process on the given executor and return a future that represents the command.
+     * Cancelling the future, or letting it time out, terminates the process and all of its descendants.
+     *
+     * @param builder configured to start the process
+     * @param options describes what to do with the output of the process
+     * @param executor used to start the process and pump its output
+     * @param timeout maximum time the command is allowed to run or {@code null} to wait indefinitely
+     * @param description text used to describe the command in exception messages
+     *
+     * @return a future that completes with the result of the command, or exceptionally with
+     *         {@link CommandTimeoutException} if the command did not complete in time.
+     */
+    static CompletableFuture<CommandResult> launch(ProcessBuilder builder, CommandOptions options,
+                                                   Executor executor, @Nullable Duration timeout, String description) {
+        return launch(builder, options, executor, timeout, description, null);
+    }
+
+    /**
+     * Start a new process that reads the given input from {@code stdin}. The input is written
+     * on the executor while the output is being pumped, after which {@code stdin} is closed.
+     *
+     * @param input bytes to write to {@code stdin} or {@code null} to leave it untouched
+     * @see #launch(ProcessBuilder, CommandOptions, Executor, Duration, String)
+     */
+    static CompletableFuture<CommandResult> launch(ProcessBuilder builder, CommandOptions options, Executor executor,
+                                                   @Nullable Duration timeout, String description, byte @Nullable [] input) {
+
+        CompletableFuture<CommandResult> result = new CompletableFuture<>();
+        scheduleTimeout(result, timeout, description);
+        executor.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                RunningProcess running = start(builder, options);
+                result.whenComplete((r, e) -> {
+                    if (e != null) running.destroy();
+                });
+                if (input != null) {
+                    executor.execute(() -> running.writeInput(input));
+                }
+                running.completion(executor).whenComplete((r, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                    }
+                    else if (!result.complete(r)) r.close();
+                });
+            }
+            catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Complete the given future with {@link CommandTimeoutException} if it does not complete in time.
+     *
+     * @param timeout maximum time to wait or {@code null} to wait indefinitely
+     */
+    static void scheduleTimeout(CompletableFuture<?> future, @Nullable Duration timeout, String description) {
+
+        if (timeout != null)
+        {
+            ScheduledFuture<?> task = TIMER.schedule(() -> future.completeExceptionally(
+                    new CommandTimeoutException(description, timeout)), timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+            future.whenComplete((r, e) -> task.cancel(false));
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("jute-command-timer"));
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Start a new process and prepare destinations for its output. Streams
+     * that would be discarded anyway are discarded by the operating system.
+     *
+     * @throws IOException if an I/O error occurs while starting the process.
+     */
+    static RunningProcess start(ProcessBuilder builder, CommandOptions options) throws IOException {
+
+        OutputCapture.Target out = options.getStdout().open();
+        OutputCapture.Target err = options.getStderr().open();
+
+        builder.redirectOutput(out.isDiscarding() ? ProcessBuilder.Redirect.DISCARD : ProcessBuilder.Redirect.PIPE);
+        builder.redirectError(err.isDiscarding() ? ProcessBuilder.Redirect.DISCARD : ProcessBuilder.Redirect.PIPE);
+
+        long start = System.nanoTime();
+        return new RunningProcess(builder.start(), start, out, err);
+    }
+
+    /**
+     * Pump the output streams of this process on the given executor.
+     *
+     * @return a future that completes with the result of the command when the
+     *         process exits and all of its output has been written to its destination.
+     */
+    CompletableFuture<CommandResult> completion(Executor executor) {
+
+        boolean pumping = !out.isDiscarding() || !err.isDiscarding();
+        CompletableFuture<Void> outPump = pump(process.getInputStream(), out, executor);
+        CompletableFuture<Void> errPump = pump(process.getErrorStream(), err, executor);
+
+        /* Process information is only available while the process exists so we sample CPU time
+         * as soon as the output streams are closed, which is usually just before the process exits
+         */
+        return CompletableFuture.allOf(outPump, errPump)
+                .thenApply(v -> pumping ? process.info().totalCpuDuration().orElse(null) : null)
+                .thenCombine(process.onExit(), (cpuTime, p) -> new CommandResult(p.exitValue(),
+                        Duration.ofNanos(System.nanoTime() - start), cpuTime, out, err));
+    }
+
+    private static CompletableFuture<Void> pump(InputStream in, OutputCapture.Target target, Executor executor) {
+
+        if (target.isDiscarding()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                target.pump(in);
+            }
+            catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Write the given bytes to {@code stdin} of the process and close it. A process is free to exit
+     * without reading all of its input, so failing to write is not treated as an error.
+     */
+    private void writeInput(byte[] input) {
+
+        try (OutputStream stdin = process.getOutputStream()) {
+            stdin.write(input);
+        }
+        catch (IOException e) {
+            LibraryLogger.debug("Process exited before reading all input: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Terminate the process and all of its descendants.
+     */
+    void destroy() {
+        ProcessTree.destroy(process.toHandle());
+    }
+
+    Process getProcess() {
+        return process;
+    }
+}
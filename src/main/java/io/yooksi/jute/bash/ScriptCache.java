@@ -0,0 +1,458 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.IBuilder;
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Contract;
+
+import javax.validation.constraints.Positive;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * This object stores script files in a directory under names derived from their content,
+ * so that a script with the same commands is written to disk only once.
+ * <p>
+ *     Scripts are identified by the {@code SHA-256} hash of the exact bytes that would be written
+ *     to the script file. When a script with the same hash is already stored it is reused,
+ *     otherwise a new file is written. The cache is bounded by the number of scripts and their
+ *     total size, and when either bound is exceeded the least recently used scripts are deleted.
+ *     Scripts left in the directory by a previous cache are adopted when the cache is created.
+ * </p>
+ * <p>
+ *     Scripts returned by {@link #get(List)} are not protected from eviction, so their files may
+ *     be deleted by a request made on another thread before the script is executed. Callers that
+ *     share a cache between threads should {@link #acquire(List) acquire} scripts instead, which
+ *     keeps them in the cache until the returned {@link Lease} is closed. While all scripts that
+ *     exceed the bounds are leased, the cache grows beyond its bounds.
+ * </p>
+ * Caches are safe to use from multiple threads.
+ *
+ * @see BashScript
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ScriptCache {
+
+    private static final String EXTENSION = ".sh";
+    private static final Pattern NAME = Pattern.compile("[0-9a-f]{64}\\" + EXTENSION);
+
+    private final Path directory;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    /* Iteration order of an access-ordered map goes from least to most recently used entry
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits, misses, evictions;
+
+    private ScriptCache(Builder builder) throws IOException {
+
+        this.directory = builder.directory.toAbsolutePath();
+        this.maxEntries = builder.maxEntries;
+        this.maxBytes = builder.maxBytes;
+        Files.createDirectories(directory);
+        adoptExisting();
+    }
+
+    /**
+     * Use {@link #create(Path)} method to create a new {@code Builder} instance,
+     * then chain call available class methods to configure the cache.
+     * When all configurations have been setup use {@link #build()}
+     * method to build a new {@code ScriptCache} instance.
+     */
+    public static class Builder implements IBuilder<ScriptCache> {
+
+        private final Path directory;
+        private int maxEntries = 1024;
+        private long maxBytes = 64L * 1024 * 1024;
+
+        private Builder(Path directory) {
+            this.directory = directory;
+        }
+        /**
+         * Set the maximum number of scripts kept in the cache, {@code 1024} by default.
+         */
+        @Contract("_ -> this")
+        public Builder setMaxEntries(@Positive int entries) {
+
+            if (entries <= 0) {
+                throw new IllegalArgumentException("Maximum number of entries must be a positive number.");
+            }
+            this.maxEntries = entries;
+            return this;
+        }
+        /**
+         * Set the maximum total size of scripts kept in the cache, {@code 64} megabytes by default.
+         * A single script larger than this is still written, but is evicted by the next script.
+         */
+        @Contract("_ -> this")
+        public Builder setMaxBytes(@Positive long bytes) {
+
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Maximum size must be a positive number.");
+            }
+            this.maxBytes = bytes;
+            return this;
+        }
+        /**
+         * @throws IllegalStateException when an I/O exception occurs while creating the cache directory.
+         */
+        @Override
+        public ScriptCache build() throws IllegalStateException {
+
+            try {
+                return new ScriptCache(this);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(
+                        new IOException("Failed to create script cache in " + directory, e));
+            }
+        }
+    }
+
+    /**
+     * @param directory directory that stores the script files, created if it doesn't exist
+     * @return a new {@code Builder} instance intended to be used
+     *         to build a custom configured {@code ScriptCache} instance.
+     */
+    public static Builder create(Path directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * Internal record of a single script stored in the cache.
+     */
+    private static final class Entry {
+
+        private final Path path;
+        private final long size;
+        private final BashScript script;
+        /* Number of open leases, guarded by the cache monitor
+         */
+        private int leases;
+
+        private Entry(Path path, long size, BashScript script) {
+            this.path = path;
+            this.size = size;
+            this.script = script;
+        }
+    }
+
+    /**
+     * This object keeps a script in the cache until it is closed. Closing a lease more than
+     * once has no effect, and the script should not be executed after its lease is closed.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public BashScript getScript() {
+            return entry.script;
+        }
+
+        @Override
+        public void close() {
+
+            synchronized (ScriptCache.this)
+            {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (--entry.leases == 0) {
+                    evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a script with the commands constructed by the given builder. The path and
+     * write flag given to the builder are ignored, since the cache decides both.
+     *
+     * @throws IllegalStateException if the builder is a streaming builder, or when
+     *         an I/O exception occurs while writing the script file.
+     */
+    public BashScript get(BashScript.Builder builder) throws IllegalStateException {
+        return get(builder.finish());
+    }
+
+    /**
+     * Get a script with the given commands. An existing script file is reused when a script
+     * with the same commands is stored in the cache, otherwise a new file is written.
+     * Note that the file may be evicted by another request at any time,
+     * see {@link #acquire(List)} for scripts that are shared between threads.
+     *
+     * @throws IllegalStateException when an I/O exception occurs while writing the script file.
+     */
+    public BashScript get(List<String> commands) throws IllegalStateException {
+        return getEntry(commands, false).script;
+    }
+
+    /**
+     * Get a script with the commands constructed by the given builder and keep it in the cache
+     * until the returned lease is closed.
+     *
+     * @throws IllegalStateException if the builder is a streaming builder, or when
+     *         an I/O exception occurs while writing the script file.
+     * @see #acquire(List)
+     */
+    public Lease acquire(BashScript.Builder builder) throws IllegalStateException {
+        return acquire(builder.finish());
+    }
+
+    /**
+     * Get a script with the given commands the same way {@link #get(List)} does, and keep it
+     * in the cache until the returned lease is closed. Scripts can be leased any number of times.
+     *
+     * @throws IllegalStateException when an I/O exception occurs while writing the script file.
+     */
+    public Lease acquire(List<String> commands) throws IllegalStateException {
+        return new Lease(getEntry(commands, true));
+    }
+
+    /**
+     * Find or create the entry of a script with the given commands. The script file is written
+     * without holding the cache monitor, so other requests are not blocked by the write.
+     * Writers of the same script write identical content, so whichever entry is recorded first
+     * is used by all of them.
+     */
+    private Entry getEntry(List<String> commands, boolean lease) {
+
+        byte[] content = encode(commands);
+        String name = hash(content) + EXTENSION;
+        Path path = directory.resolve(name);
+        boolean written = false;
+        while (true)
+        {
+            synchronized (this)
+            {
+                Entry entry = entries.get(name);
+                if (entry != null && Files.exists(entry.path))
+                {
+                    if (!written) hits++;
+                    if (lease) entry.leases++;
+                    return entry;
+                }
+                if (entry != null) {
+                    remove(name);
+                }
+                /* The file was evicted again before the entry could be recorded
+                 */
+                if (written && Files.exists(path))
+                {
+                    BashScript script = BashScript.existing(UnixPath.get(path), List.copyOf(commands));
+                    entry = new Entry(path, content.length, script);
+                    if (lease) entry.leases++;
+                    entries.put(name, entry);
+                    totalBytes += content.length;
+                    evict();
+                    return entry;
+                }
+                if (!written) misses++;
+            }
+            try {
+                write(path, content);
+                written = true;
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(
+                        new IOException("Failed to write cached BashScript file", e));
+            }
+        }
+    }
+
+    /**
+     * Write the script to a temporary file first so that a
+     * partially written script is never visible under its final name.
+     */
+    private void write(Path path, byte[] content) throws IOException {
+
+        Path temp = Files.createTempFile(directory, "script", ".tmp");
+        try {
+            Files.write(temp, content);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete least recently used scripts until the cache is within its bounds.
+     * The most recently used script and leased scripts are never deleted.
+     */
+    private void evict() {
+
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        int remaining = entries.size();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && remaining-- > 1)
+        {
+            Entry entry = iter.next().getValue();
+            if (entry.leases > 0) {
+                continue;
+            }
+            iter.remove();
+            totalBytes -= entry.size;
+            evictions++;
+            delete(entry.path);
+        }
+    }
+
+    private void remove(String name) {
+
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+    private static void delete(Path path) {
+
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            LibraryLogger.error("Unable to delete cached script " + path, e);
+        }
+    }
+
+    /**
+     * Add scripts stored in the directory by a previous cache, least recently modified first,
+     * so that the most recently modified scripts are the last to be evicted.
+     */
+    private void adoptExisting() throws IOException {
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.filter(p -> NAME.matcher(p.getFileName().toString()).matches()).forEach(files::add);
+        }
+        Map<Path, FileTime> modified = new HashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(modified::get));
+        synchronized (this)
+        {
+            for (Path file : files)
+            {
+                long size = Files.size(file);
+                BashScript script = BashScript.existing(UnixPath.get(file), readCommands(file));
+                entries.put(file.getFileName().toString(), new Entry(file, size, script));
+                totalBytes += size;
+            }
+            evict();
+        }
+    }
+
+    private static List<String> readCommands(Path file) throws IOException {
+        return List.copyOf(Files.readAllLines(file, Charset.defaultCharset()));
+    }
+
+    /**
+     * @return the exact bytes a script with the given commands is written as,
+     *         which are the same bytes {@link BashScript} writes to its file.
+     */
+    private static byte[] encode(List<String> commands) {
+
+        StringBuilder sb = new StringBuilder();
+        String separator = System.lineSeparator();
+        for (String command : commands) {
+            sb.append(command).append(separator);
+        }
+        return sb.toString().getBytes(Charset.defaultCharset());
+    }
+
+    private static String hash(byte[] content) {
+
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(content);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the number of requests served by an existing script.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests that required writing a new script.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of scripts deleted to keep the cache within its bounds.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the ratio of requests served by an existing script to all requests.
+     */
+    public synchronized double getHitRate() {
+
+        long requests = hits + misses;
+        return requests > 0 ? (double) hits / requests : 0;
+    }
+
+    /**
+     * @return the number of scripts currently stored in the cache.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total size of scripts currently stored in the cache in bytes.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Contract(pure = true)
+    public Path getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,318 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * This object reports how much time each line of a profiled {@link BashScript} took to execute.
+ * <p>
+ *     Scripts are profiled by executing them with a {@code DEBUG} trap that writes a timestamp,
+ *     line number and the exit status of the previous command to a trace file before every simple
+ *     command. The time between two consecutive records is attributed to the line of the first one,
+ *     so the time of a line includes everything it runs, including functions and subshells, which
+ *     are not traced themselves. Lines that run more than one simple command, such as lists and
+ *     loops, are reported once with their total time and the exit status of the last command.
+ * </p>
+ * Profiling requires bash {@code 5.0} or newer, which provides {@code EPOCHREALTIME}.
+ * Note that the trap adds a small overhead to every simple command.
+ *
+ * @see #profileAsync(GitBash, BashScript, CommandOptions)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ScriptProfile implements AutoCloseable {
+
+    /**
+     * Number of lines that precede the script commands in an instrumented script.
+     */
+    private static final int PRELUDE_LINES = 3;
+
+    private final CommandResult result;
+    private final List<Entry> entries;
+
+    private ScriptProfile(CommandResult result, List<Entry> entries) {
+        this.result = result;
+        this.entries = entries;
+    }
+
+    /**
+     * This object represents the time spent executing a single line of the script.
+     */
+    public static final class Entry {
+
+        private final int line;
+        private final String command;
+        private long micros;
+        private int exitCode, count;
+
+        private Entry(int line, String command) {
+            this.line = line;
+            this.command = command;
+        }
+
+        /**
+         * @return index of the line in the {@link BashScript#getCommands() script commands}.
+         */
+        @Contract(pure = true)
+        public int getLine() {
+            return line;
+        }
+
+        @Contract(pure = true)
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * @return total time spent executing the line.
+         */
+        public Duration getDuration() {
+            return Duration.ofNanos(micros * 1000);
+        }
+
+        /**
+         * @return exit status of the last simple command executed on the line.
+         */
+        @Contract(pure = true)
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return the number of simple commands executed on the line.
+         */
+        @Contract(pure = true)
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%5d %10.3f ms %4d  %s", line, micros / 1000.0, exitCode, command);
+        }
+    }
+
+    /**
+     * Execute the given {@code BashScript} with profiling enabled and wait for it to complete.
+     * The script is executed with the {@link GitBash#setDefaultOptions(CommandOptions) default options}.
+     *
+     * @see #profileAsync(GitBash, BashScript, CommandOptions)
+     */
+    public static ScriptProfile profile(GitBash bash, BashScript script) throws IOException, InterruptedException {
+        return GitBash.await(profileAsync(bash, script, bash.getDefaultOptions()));
+    }
+
+    /**
+     * Execute the commands of the given {@code BashScript} with profiling enabled, without blocking
+     * the calling thread. Commands are instrumented to record the time spent on every line to a
+     * temporary trace file, and executed the same way {@link ScriptRunner#runAsync(BashScript,
+     * CommandOptions)} executes them. The trace is parsed into a report and deleted once the script completes.
+     *
+     * @param bash instance used to execute the script
+     * @return a future that completes with a report of the time spent on every line, or exceptionally
+     *         with an {@code IOException} if the trace could not be read or the shell is too old.
+     */
+    public static CompletableFuture<ScriptProfile> profileAsync(GitBash bash, BashScript script, CommandOptions options) {
+
+        Path trace;
+        try {
+            trace = Files.createTempFile("jute", ".trace");
+        }
+        catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        List<String> commands = script.getCommands();
+        LibraryLogger.debug("Profiling git bash script " + script.getPath());
+
+        CompletableFuture<CommandResult> running = new ScriptRunner(bash).runAsync(instrument(script, trace), options);
+        CompletableFuture<ScriptProfile> profile = running.handle((result, e) -> {
+            try {
+                if (e != null) {
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                }
+                try {
+                    return parse(result, commands, trace);
+                }
+                catch (IOException ex)
+                {
+                    result.close();
+                    throw new CompletionException(ex);
+                }
+            }
+            finally {
+                deleteTrace(trace);
+            }
+        });
+        profile.whenComplete((r, e) -> {
+            if (profile.isCancelled())
+            {
+                running.cancel(true);
+                running.whenComplete((result, ex) -> deleteTrace(trace));
+            }
+        });
+        return profile;
+    }
+
+    private static void deleteTrace(Path trace) {
+
+        try {
+            Files.deleteIfExists(trace);
+        }
+        catch (IOException e) {
+            LibraryLogger.error("Unable to delete script trace " + trace, e);
+        }
+    }
+
+    /**
+     * Create a script that executes the commands of the given script and writes trace records to the given file.
+     */
+    static BashScript instrument(BashScript script, Path trace) {
+
+        String record = "printf \"%s %s %s\\n\" \"$EPOCHREALTIME\" ";
+        List<String> lines = new ArrayList<>(script.getCommands().size() + PRELUDE_LINES);
+        lines.add("exec {jute_trace}> " + BashSyntax.singleQuote(UnixPath.convert(trace)));
+        lines.add("trap 'jute_status=$?; trap - DEBUG; " + record + "0 \"$jute_status\" >&$jute_trace' EXIT");
+        lines.add("trap '" + record + "\"$LINENO\" \"$?\" >&$jute_trace' DEBUG");
+        lines.addAll(script.getCommands());
+        return BashScript.of(script.getPath(), lines, false);
+    }
+
+    /**
+     * Create a report from the trace records written by an {@link #instrument(BashScript, Path) instrumented} script.
+     *
+     * @throws IOException if the trace could not be read or does not contain timestamps.
+     */
+    static ScriptProfile parse(CommandResult result, List<String> commands, Path trace) throws IOException {
+
+        List<String> records = Files.readAllLines(trace, StandardCharsets.UTF_8);
+        Map<Integer, Entry> entries = new TreeMap<>();
+
+        long[] previous = null;
+        for (String record : records)
+        {
+            String[] fields = record.split(" ");
+            if (fields.length != 3) {
+                continue;
+            }
+            long time = parseMicros(fields[0]);
+            int line = Integer.parseInt(fields[1]), status = Integer.parseInt(fields[2]);
+            if (previous != null)
+            {
+                int index = (int) previous[1] - PRELUDE_LINES - 1;
+                if (index >= 0 && index < commands.size())
+                {
+                    Entry entry = entries.computeIfAbsent(index, i -> new Entry(i, commands.get(i)));
+                    entry.micros += time - previous[0];
+                    entry.exitCode = status;
+                    entry.count++;
+                }
+            }
+            previous = new long[] { time, line };
+        }
+        return new ScriptProfile(result, List.copyOf(entries.values()));
+    }
+
+    /**
+     * @return the given {@code EPOCHREALTIME} value in microseconds. The value is formatted with the
+     *         decimal separator of the shell locale, followed by exactly six digits of microseconds.
+     */
+    private static long parseMicros(String timestamp) throws IOException {
+
+        StringBuilder digits = new StringBuilder(timestamp.length());
+        for (int i = 0; i < timestamp.length(); i++)
+        {
+            char c = timestamp.charAt(i);
+            if (Character.isDigit(c)) digits.append(c);
+        }
+        if (digits.length() <= 6) {
+            throw new IOException("Script profiling requires bash 5.0 or newer");
+        }
+        return Long.parseLong(digits.toString());
+    }
+
+    /**
+     * @return the result of executing the profiled script.
+     */
+    @Contract(pure = true)
+    public CommandResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return entries of all lines that executed at least one simple command, in line order.
+     */
+    @Contract(pure = true)
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return entry of the line with the given index or {@code null} if the line executed no commands.
+     */
+    public @Nullable Entry getEntry(int line) {
+
+        for (Entry entry : entries)
+        {
+            if (entry.line == line) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return at most the given number of entries that took the most time, slowest first.
+     */
+    public List<Entry> getSlowest(int count) {
+
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong((Entry e) -> e.micros).reversed());
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    /**
+     * @return total time spent executing all lines of the script.
+     */
+    public Duration getTotalTime() {
+
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.micros;
+        }
+        return Duration.ofNanos(total * 1000);
+    }
+
+    /**
+     * Release output captured by the result of the profiled script.
+     */
+    @Override
+    public void close() {
+        result.close();
+    }
+
+    /**
+     * @return a report with one row per line: line index, time, exit status and command.
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            sb.append(entry).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+}
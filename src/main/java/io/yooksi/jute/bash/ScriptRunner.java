@@ -0,0 +1,88 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.commons.logger.LibraryLogger;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This object executes the commands of a {@link BashScript} by piping them to a shell that reads
+ * commands from {@code stdin}. The script file is never read or written, so scripts created without
+ * writing them to a file can be executed this way. Commands are always executed in a new shell
+ * process, which is launched according to the {@link GitBash#setLaunchProfile(LaunchProfile)
+ * launch profile} of the {@code GitBash} instance the runner was created for.
+ *
+ * @see GitBash#runBashScript(BashScript)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ScriptRunner {
+
+    private final GitBash bash;
+
+    /**
+     * @param bash instance that provides the shell, executor and scheduler used to run scripts
+     */
+    public ScriptRunner(GitBash bash) {
+        this.bash = bash;
+    }
+
+    /**
+     * Execute the commands of the given {@code BashScript} and wait for the script to complete.
+     * The script is executed with the {@link GitBash#setDefaultOptions(CommandOptions) default options}.
+     *
+     * @see #runAsync(BashScript, CommandOptions)
+     */
+    public CommandResult run(BashScript script) throws IOException, InterruptedException {
+        return GitBash.await(runAsync(script, bash.getDefaultOptions()));
+    }
+
+    /**
+     * Execute the commands of the given {@code BashScript} without blocking the calling thread.
+     * Timeouts, cancellation and the {@link GitBash#setScheduler(RepositoryScheduler) scheduler}
+     * apply the same way they do to {@link GitBash#runCommandAsync(BashCommand, CommandOptions) commands}.
+     * <p>
+     *     The commands are executed as a single group with {@code stdin} redirected from
+     *     {@code /dev/null}, so commands that read input never consume the script itself.
+     *     The group is parsed before it runs, so aliases defined in the script do not apply to it.
+     * </p>
+     *
+     * @param options describes how to execute the script and what to do with its output
+     * @see BashScript#getCommands()
+     */
+    public CompletableFuture<CommandResult> runAsync(BashScript script, CommandOptions options) {
+
+        RepositoryScheduler scheduler = bash.getScheduler();
+        if (scheduler != null) {
+            return scheduler.submit(GitBash.getDirectory(options), false, () -> start(script, options));
+        }
+        return start(script, options);
+    }
+
+    private CompletableFuture<CommandResult> start(BashScript script, CommandOptions options) {
+
+        /* The shell reads the script from stdin, so commands that read stdin would consume
+         * the rest of the script. Group the commands on the first line, so that line numbers
+         * are preserved, and redirect their input from /dev/null to keep them away from it.
+         */
+        StringBuilder sb = new StringBuilder("{ ");
+        for (String command : script.getCommands()) {
+            sb.append(command).append('\n');
+        }
+        sb.append("} </dev/null\n");
+        ProcessBuilder builder = new ProcessBuilder(bash.getStdinShell());
+        bash.getLaunchProfile().applyTo(builder);
+        Path directory = options.getDirectory();
+        if (directory != null) {
+            builder.directory(directory.toFile());
+        }
+        String description = "script " + script.getPath();
+        LibraryLogger.debug("Running git bash " + description + " from memory");
+
+        byte[] input = sb.toString().getBytes(Charset.defaultCharset());
+        return RunningProcess.launch(builder, options, bash.getExecutor(), bash.getTimeout(options), description, input);
+    }
+}
@@ -0,0 +1,352 @@
+package io.yooksi.jute.bash;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import org.jetbrains.annotations.Contract;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * This object represents the shape of a bash script that is compiled once and then
+ * produces any number of scripts that differ only in their parameters.
+ * <p>
+ *     Parameters are declared in the script lines with {@code {{name}}} or {@code {{name:type}}}
+ *     placeholders, where the type is one of the {@link Type} names in lower case and defaults to
+ *     {@code string}. The same parameter can appear any number of times, always with the same type.
+ *     Each line is compiled into literal segments with parameter references between them, so binding
+ *     parameters never parses or rebuilds the lines, and every line is rendered into a single buffer
+ *     sized up front. Parameter values are converted and quoted once when they are bound.
+ * </p>
+ * Templates are immutable and safe to use from multiple threads,
+ * but the {@link Bindings} they create are not.
+ *
+ * @see BashScript
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ScriptTemplate {
+
+    /**
+     * Describes how a parameter value is converted before it is inserted into the script.
+     */
+    public enum Type {
+        /**
+         * Value is inserted as a single bash word, quoted only when it contains characters
+         * that would be interpreted by the shell.
+         */
+        STRING,
+        /**
+         * Value is inserted as is, and must be a decimal integer.
+         */
+        INT,
+        /**
+         * Value is converted to a <i>Unix-style</i> path and inserted as a single bash word.
+         */
+        PATH,
+        /**
+         * Value is inserted as is without any quoting, and is interpreted by the shell.
+         * Raw parameters should never be bound to values that are not under our control.
+         */
+        RAW
+    }
+
+    private static final String OPEN = "{{", CLOSE = "}}";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern INTEGER = Pattern.compile("[+-]?[0-9]+");
+
+    private final String[] names;
+    private final Type[] types;
+    private final Map<String, Integer> indexes;
+
+    /* Literal segments and parameter indexes of every line, where line i is rendered as
+     * literals[i][0] + values[params[i][0]] + literals[i][1] + ... + literals[i][params[i].length]
+     */
+    private final String[][] literals;
+    private final int[][] params;
+    private final int[] literalLengths;
+
+    private ScriptTemplate(List<String> lines) {
+
+        Map<String, Integer> indexes = new LinkedHashMap<>();
+        List<Type> types = new ArrayList<>();
+
+        literals = new String[lines.size()][];
+        params = new int[lines.size()][];
+        literalLengths = new int[lines.size()];
+
+        List<String> segments = new ArrayList<>();
+        List<Integer> references = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++)
+        {
+            String line = lines.get(i);
+            segments.clear();
+            references.clear();
+
+            int start = 0, open;
+            while ((open = line.indexOf(OPEN, start)) >= 0)
+            {
+                int close = line.indexOf(CLOSE, open + OPEN.length());
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in line: " + line);
+                }
+                String placeholder = line.substring(open + OPEN.length(), close);
+                int separator = placeholder.indexOf(':');
+                String name = separator < 0 ? placeholder : placeholder.substring(0, separator);
+                Type type = separator < 0 ? Type.STRING : parseType(placeholder.substring(separator + 1));
+
+                if (!NAME.matcher(name).matches()) {
+                    throw new IllegalArgumentException("Invalid parameter name: " + name);
+                }
+                Integer index = indexes.get(name);
+                if (index == null)
+                {
+                    index = types.size();
+                    indexes.put(name, index);
+                    types.add(type);
+                }
+                else if (types.get(index) != type) {
+                    throw new IllegalArgumentException("Parameter " + name + " declared as both " +
+                            types.get(index) + " and " + type);
+                }
+                segments.add(line.substring(start, open));
+                references.add(index);
+                start = close + CLOSE.length();
+            }
+            segments.add(line.substring(start));
+
+            literals[i] = segments.toArray(new String[0]);
+            params[i] = references.stream().mapToInt(Integer::intValue).toArray();
+            for (String segment : literals[i]) {
+                literalLengths[i] += segment.length();
+            }
+        }
+        this.indexes = Collections.unmodifiableMap(indexes);
+        this.names = indexes.keySet().toArray(new String[0]);
+        this.types = types.toArray(new Type[0]);
+    }
+
+    private static Type parseType(String name) {
+
+        for (Type type : Type.values())
+        {
+            if (type.name().equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown parameter type: " + name);
+    }
+
+    /**
+     * Compile the given script lines into a template.
+     *
+     * @throws IllegalArgumentException if a placeholder is not terminated, has an invalid
+     *         name or unknown type, or a parameter is declared with different types.
+     */
+    public static ScriptTemplate compile(List<String> lines) {
+        return new ScriptTemplate(lines);
+    }
+
+    /**
+     * @see #compile(List)
+     */
+    public static ScriptTemplate compile(String... lines) {
+        return new ScriptTemplate(Arrays.asList(lines));
+    }
+
+    /**
+     * @return a new set of parameters for this template with no parameter bound.
+     */
+    public Bindings bind() {
+        return new Bindings();
+    }
+
+    /**
+     * @return index of the parameter with the given name, which can be used to bind the
+     *         parameter without looking it up by name every time, or {@code -1} if this
+     *         template doesn't declare such parameter.
+     */
+    public int indexOf(String name) {
+        return indexes.getOrDefault(name, -1);
+    }
+
+    /**
+     * @return names of all parameters in the order they first appear in the template.
+     */
+    public List<String> getParameters() {
+        return List.of(names);
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if the template doesn't declare the parameter.
+     */
+    public Type getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return the number of lines in the template.
+     */
+    public int size() {
+        return literals.length;
+    }
+
+    /**
+     * This object holds parameter values for a single template, and can be reused to produce any
+     * number of scripts by binding different values between them. Values of parameters that are
+     * not bound again are retained from the previous script.
+     */
+    public final class Bindings {
+
+        private final String[] values = new String[names.length];
+
+        private Bindings() {}
+
+        /**
+         * Bind the parameter with the given name to the given value.
+         *
+         * @throws IllegalArgumentException if the template doesn't declare the parameter,
+         *         or the value cannot be converted to the type of the parameter.
+         */
+        @Contract("_, _ -> this")
+        public Bindings set(String name, String value) {
+            return set(index(name), value);
+        }
+
+        /**
+         * @see #set(String, String)
+         */
+        @Contract("_, _ -> this")
+        public Bindings set(String name, long value) {
+            return set(index(name), value);
+        }
+
+        /**
+         * @see #set(String, String)
+         */
+        @Contract("_, _ -> this")
+        public Bindings set(String name, Path value) {
+            return set(index(name), value);
+        }
+
+        /**
+         * Bind the parameter with the given {@link #indexOf(String) index} to the given value.
+         *
+         * @throws IllegalArgumentException if the value cannot be converted to the type of the parameter.
+         * @throws IndexOutOfBoundsException if the template doesn't declare the parameter.
+         */
+        @Contract("_, _ -> this")
+        public Bindings set(int index, String value) {
+
+            switch (types[index]) {
+                case STRING:
+                    values[index] = BashCommand.quoteArgument(value);
+                    break;
+                case INT:
+                    if (!INTEGER.matcher(value).matches()) {
+                        throw new IllegalArgumentException(
+                                "Parameter " + names[index] + " is not an integer: " + value);
+                    }
+                    values[index] = value;
+                    break;
+                case PATH:
+                    values[index] = BashCommand.quoteArgument(value.replace('\\', '/'));
+                    break;
+                default:
+                    values[index] = value;
+            }
+            return this;
+        }
+
+        /**
+         * @see #set(int, String)
+         */
+        @Contract("_, _ -> this")
+        public Bindings set(int index, long value) {
+
+            if (types[index] == Type.PATH) {
+                throw new IllegalArgumentException("Parameter " + names[index] + " is not an integer");
+            }
+            values[index] = Long.toString(value);
+            return this;
+        }
+
+        /**
+         * @see #set(int, String)
+         */
+        @Contract("_, _ -> this")
+        public Bindings set(int index, Path value) {
+
+            if (types[index] == Type.INT) {
+                throw new IllegalArgumentException("Parameter " + names[index] + " is not a path");
+            }
+            return set(index, UnixPath.convert(value));
+        }
+
+        /**
+         * Unbind all parameters.
+         */
+        @Contract("-> this")
+        public Bindings clear() {
+            Arrays.fill(values, null);
+            return this;
+        }
+
+        private int index(String name) {
+
+            Integer index = indexes.get(name);
+            if (index == null) {
+                throw new IllegalArgumentException("Unknown template parameter: " + name);
+            }
+            return index;
+        }
+
+        /**
+         * @return the script lines with all placeholders replaced by bound values.
+         * @throws IllegalStateException if a parameter is not bound.
+         */
+        public List<String> toCommands() {
+
+            for (int i = 0; i < values.length; i++)
+            {
+                if (values[i] == null) {
+                    throw new IllegalStateException("Template parameter " + names[i] + " is not bound");
+                }
+            }
+            String[] commands = new String[literals.length];
+            for (int i = 0; i < literals.length; i++)
+            {
+                String[] segments = literals[i];
+                int[] references = params[i];
+
+                int length = literalLengths[i];
+                for (int reference : references) {
+                    length += values[reference].length();
+                }
+                StringBuilder sb = new StringBuilder(length).append(segments[0]);
+                for (int j = 0; j < references.length; j++) {
+                    sb.append(values[references[j]]).append(segments[j + 1]);
+                }
+                commands[i] = sb.toString();
+            }
+            return List.of(commands);
+        }
+
+        /**
+         * @param path abstract location of the script file
+         * @param write whether to write the commands to file
+         * @return new {@code BashScript} with all placeholders replaced by bound values.
+         *
+         * @throws IllegalStateException if a parameter is not bound or when an
+         *         I/O exception occurs while writing to file.
+         */
+        public BashScript build(Path path, boolean write) throws IllegalStateException {
+            return BashScript.of(UnixPath.get(path), toCommands(), write);
+        }
+    }
+}
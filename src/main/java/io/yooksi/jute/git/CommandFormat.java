@@ -0,0 +1,310 @@
+package io.yooksi.jute.git;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.Objects;
+
+/**
+ * Internal compiled form of a {@link GitCommand} format. Formats are parsed once into literal
+ * segments and placeholders, and every command is then rendered in a single pass into a buffer
+ * that is reused by the current thread.
+ * <ul>
+ *     <li>{@code %opts} expands to all options, each followed by a whitespace.</li>
+ *     <li>{@code %opt} expands to the next option.</li>
+ *     <li>{@code %s} expands to the next argument.</li>
+ * </ul>
+ * Formats that contain other {@link Formatter} specifiers, such as {@code %%} or
+ * {@code %d}, are still expanded in a single pass, but are then passed to {@code String.format}
+ * so that all specifiers are interpreted exactly the way they were before formats were compiled.
+ */
+final class CommandFormat {
+
+    private static final byte LITERAL = 0, OPTIONS = 1, OPTION = 2, ARGUMENT = 3;
+
+    /**
+     * Formats longer than this are usually generated for a single command, like the
+     * formats created by {@link GitCommand#forPaths}, and are compiled without being cached.
+     */
+    private static final int MAX_CACHED_LENGTH = 256;
+    private static final int MAX_CACHED_FORMATS = 1024;
+
+    /* Formats that have not been used for a while are evicted, so formats built
+     * from varying input do not keep the formats in common use out of the cache
+     */
+    private static final Map<String, CommandFormat> CACHE = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CommandFormat> eldest) {
+            return size() > MAX_CACHED_FORMATS;
+        }
+    });
+
+    /**
+     * Buffers larger than this are not reused so that a single long command does not
+     * keep a large buffer alive for the lifetime of the thread.
+     */
+    private static final int MAX_BUFFER_CAPACITY = 8 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private final String format;
+    private final Segment[] segments;
+    private final Word[] words;
+    private final boolean simple;
+    private final int literalLength;
+
+    /**
+     * Internal part of a format that is either literal text or a placeholder.
+     */
+    private static final class Segment {
+
+        private final byte type;
+        private final @Nullable String text;
+
+        private Segment(byte type, @Nullable String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Internal whitespace separated token of a format, which becomes one or more command arguments.
+     */
+    private static final class Word {
+
+        private final String text;
+        private final Segment[] segments;
+        private final int arguments;
+        private final boolean simple;
+
+        private Word(String text) {
+
+            this.text = text;
+            this.segments = parse(text);
+            this.simple = isSimple(text);
+
+            int count = 0;
+            for (Segment segment : segments) {
+                if (segment.type == ARGUMENT) count++;
+            }
+            this.arguments = count;
+        }
+    }
+
+    private CommandFormat(String format) {
+
+        this.format = format;
+        this.segments = parse(format);
+        this.simple = isSimple(format);
+
+        int length = 0;
+        for (Segment segment : segments) {
+            if (segment.type == LITERAL) length += Objects.requireNonNull(segment.text).length();
+        }
+        this.literalLength = length;
+
+        List<Word> words = new ArrayList<>();
+        for (String token : format.trim().split("\\s+"))
+        {
+            if (!token.isEmpty()) words.add(new Word(token));
+        }
+        this.words = words.toArray(new Word[0]);
+    }
+
+    /**
+     * @return compiled form of the given format, cached if the format is short enough.
+     *         The cache keeps the most recently used formats.
+     */
+    static CommandFormat of(String format) {
+
+        if (format.length() > MAX_CACHED_LENGTH) {
+            return new CommandFormat(format);
+        }
+        CommandFormat compiled = CACHE.get(format);
+        if (compiled == null)
+        {
+            compiled = new CommandFormat(format);
+            CACHE.put(format, compiled);
+        }
+        return compiled;
+    }
+
+    private static Segment[] parse(String format) {
+
+        List<Segment> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < format.length(); i++)
+        {
+            if (format.charAt(i) != '%') {
+                continue;
+            }
+            byte type;
+            int length;
+            if (format.startsWith("%opts", i)) {
+                type = OPTIONS; length = 5;
+            }
+            else if (format.startsWith("%opt", i)) {
+                type = OPTION; length = 4;
+            }
+            else if (format.startsWith("%s", i)) {
+                type = ARGUMENT; length = 2;
+            }
+            else continue;
+
+            if (i > start) {
+                segments.add(new Segment(LITERAL, format.substring(start, i)));
+            }
+            segments.add(new Segment(type, null));
+            start = i + length;
+            i = start - 1;
+        }
+        if (start < format.length()) {
+            segments.add(new Segment(LITERAL, format.substring(start)));
+        }
+        return segments.toArray(new Segment[0]);
+    }
+
+    /**
+     * @return {@code true} if the given text contains no specifiers other than {@code %s}, {@code %opt} and
+     *         {@code %opts}, and can therefore be expanded without {@code String.format}.
+     */
+    private static boolean isSimple(String text) {
+
+        for (int i = text.indexOf('%'); i >= 0; i = text.indexOf('%', i + 1))
+        {
+            if (!text.startsWith("%s", i) && !text.startsWith("%opt", i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Render the command string of a command.
+     *
+     * @param quoted arguments quoted for the shell
+     * @param formatArgs whether to expand {@code %opt} and arguments, otherwise only {@code %opts} is expanded
+     */
+    String render(String[] quoted, GitCLOption[] options, boolean formatArgs) {
+
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        sb.ensureCapacity(literalLength + 16 * (quoted.length + options.length));
+
+        boolean format = formatArgs && quoted.length > 0;
+        int nextOption = 0, nextArg = 0;
+        for (Segment segment : segments)
+        {
+            switch (segment.type) {
+                case OPTIONS:
+                    for (GitCLOption option : options) {
+                        sb.append(option.toString()).append(' ');
+                    }
+                    break;
+                case OPTION:
+                    if (formatArgs && nextOption < options.length) {
+                        sb.append(options[nextOption++].toString());
+                    }
+                    else sb.append("%opt");
+                    break;
+                case ARGUMENT:
+                    if (format && simple)
+                    {
+                        if (nextArg >= quoted.length) {
+                            throw new MissingFormatArgumentException("%s");
+                        }
+                        sb.append(quoted[nextArg++]);
+                    }
+                    else sb.append("%s");
+                    break;
+                default:
+                    sb.append(segment.text);
+            }
+        }
+        String result = format && !simple ? String.format(sb.toString(), (Object[]) quoted) : sb.toString();
+        if (sb.capacity() > MAX_BUFFER_CAPACITY) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Split the format into an argument vector. Each whitespace separated word becomes a single
+     * argument, which means that formatted arguments are never split on whitespace the way they
+     * would be when interpreted by a shell. {@code %opts} and {@code %opt} are only expanded when
+     * they form a whole word, and words are only formatted if they contain arguments.
+     *
+     * @param args arguments as they were given, without quotes
+     */
+    List<String> arguments(String[] args, GitCLOption[] options, boolean formatArgs) {
+
+        List<String> result = new ArrayList<>(words.length + options.length);
+        int nextOption = 0, nextArg = 0;
+        for (Word word : words)
+        {
+            byte type = word.segments.length == 1 ? word.segments[0].type : LITERAL;
+            if (type == OPTIONS)
+            {
+                for (GitCLOption option : options) {
+                    addArgument(result, option.toString());
+                }
+            }
+            else if (type == OPTION && nextOption < options.length) {
+                addArgument(result, options[nextOption++].toString());
+            }
+            else if (formatArgs && word.arguments > 0)
+            {
+                /* Missing arguments are formatted as null the same way String.format formats them
+                 */
+                if (type == ARGUMENT) {
+                    result.add(nextArg < args.length ? args[nextArg] : null);
+                }
+                else if (!word.simple) {
+                    result.add(String.format(word.text, (Object[]) Arrays.copyOfRange(args, nextArg, nextArg + word.arguments)));
+                }
+                else result.add(renderWord(word, args, nextArg));
+                nextArg += word.arguments;
+            }
+            else result.add(word.text);
+        }
+        return result;
+    }
+
+    private static String renderWord(Word word, String[] args, int nextArg) {
+
+        StringBuilder sb = new StringBuilder(word.text.length() + 16 * word.arguments);
+        for (Segment segment : word.segments)
+        {
+            switch (segment.type) {
+                case ARGUMENT:
+                    sb.append(nextArg < args.length ? args[nextArg] : null);
+                    nextArg++;
+                    break;
+                case OPTIONS:
+                    sb.append("%opts");
+                    break;
+                case OPTION:
+                    sb.append("%opt");
+                    break;
+                default:
+                    sb.append(segment.text);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void addArgument(List<String> arguments, String arg) {
+        if (!arg.isEmpty()) arguments.add(arg);
+    }
+
+    @Override
+    public String toString() {
+        return format;
+    }
+}
@@ -13,10 +13,10 @@ import java.nio.file.Path;
 @SuppressWarnings("unused")
 public class DiffCommand extends GitCommand {
 
-    private static final String FORMAT = "diff %opts ";
+    private static final String FORMAT = "diff %opts";
 
     private DiffCommand(String[] args, GitCLOption... options) {
-        super(FORMAT + String.join(" ", args), options);
+        super(FORMAT + " %s".repeat(args.length), args, options);
     }
     private DiffCommand(String arg, GitCLOption[] options) {
         this(new String[] {arg}, options);
@@ -42,7 +42,9 @@ public class DiffCommand extends GitCommand {
      * @param noIndex whether to include non-indexed files
      */
     public static DiffCommand comparePaths(Path path1, Path path2, boolean noIndex) {
-         return new DiffCommand(noIndex ? "--no-index" : "", path1.toString(), path2.toString());
+
+         String[] paths = { path1.toString(), path2.toString() };
+         return noIndex ? new DiffCommand("--no-index", paths) : new DiffCommand(paths, GitCLOption.NONE);
     }
 
     /**
@@ -1,46 +1,196 @@
 package io.yooksi.jute.git;
 
 import io.yooksi.jute.bash.BashCommand;
+import io.yooksi.jute.bash.BashScript;
+import io.yooksi.jute.bash.CommandOptions;
+import io.yooksi.jute.bash.GitBash;
 import org.jetbrains.annotations.Contract;
 
-import java.util.Arrays;
+import javax.validation.constraints.Positive;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 @SuppressWarnings("unused")
 public class GitCommand extends BashCommand {
 
+    private static final GitCLOption[] NO_OPTIONS = new GitCLOption[0];
+
+    /**
+     * Git commands that never modify the index or references of a repository. Note that
+     * some of these commands, like {@code status}, may opportunistically refresh the index,
+     * but git silently skips the refresh when the index is locked by another process.
+     */
+    private static final Set<String> READ_ONLY_COMMANDS = Set.of(
+            "--version", "version", "--help", "help", "blame", "cat-file", "describe", "diff",
+            "diff-files", "diff-index", "diff-tree", "for-each-ref", "grep", "log", "ls-files",
+            "ls-remote", "ls-tree", "merge-base", "name-rev", "rev-list", "rev-parse", "shortlog",
+            "show", "show-branch", "show-ref", "status", "var", "whatchanged"
+    );
+
+    /**
+     * Options of {@code git config} that only read configuration values.
+     */
+    private static final Set<String> CONFIG_READ_OPTIONS = Set.of(
+            "--get", "--get-all", "--get-regexp", "--get-urlmatch", "--list", "-l"
+    );
+
     public static final GitCommand VERSION = new GitCommand(BasicCLOption.VERSION.toString());
 
     private final GitCLOption[] options;
+    private final List<String> arguments;
+    private final boolean readOnly;
 
     GitCommand(String format, String[] args, GitCLOption... options) {
-        super(Type.GIT, formatCommand(format, args, options));
-        this.options = options;
+        this(format, args, options == null ? NO_OPTIONS : options, true);
     }
 
     GitCommand(String cmd, GitCLOption... options) {
-        super(Type.GIT, cmd.replace("%opts", consolidateOptions(options)));
+        this(cmd, new String[0], options == null ? NO_OPTIONS : options, false);
+    }
+
+    private GitCommand(String format, String[] args, GitCLOption[] options, boolean formatArgs) {
+        this(CommandFormat.of(format), args, options, formatArgs);
+    }
+
+    private GitCommand(CommandFormat format, String[] args, GitCLOption[] options, boolean formatArgs) {
+
+        super(Type.GIT, format.render(quoteArguments(args), options, formatArgs));
+
         this.options = options;
+        this.arguments = Collections.unmodifiableList(format.arguments(args, options, formatArgs));
+        this.readOnly = isReadOnly(arguments);
     }
 
-    private static String formatCommand(String format, String[] args, GitCLOption... options) {
+    /**
+     * Create invocations of the given git command that together pass all of the given paths,
+     * each sized to fit within the {@link GitBash#getArgumentLimit() argument limit}.
+     *
+     * @see #forPaths(String, Collection, long)
+     */
+    public static List<GitCommand> forPaths(String command, Collection<String> paths) {
+        return forPaths(command, paths, GitBash.get().getArgumentLimit());
+    }
 
-        format = format.replace("%opts", consolidateOptions(options));
+    /**
+     * Create invocations of the given git command that together pass all of the given paths, the
+     * same way {@code xargs} would. Each invocation runs {@code git <command> -- <paths>} with as
+     * many paths as fit within the given limit, and paths are distributed in the given order.
+     * The size of the {@link GitBash#getGitProgram() git program} name counts towards the limit,
+     * and paths are measured as they are quoted for the shell, so that invocations fit within
+     * the limit whether they are executed directly or interpreted by a shell.
+     * Invocations can be executed with {@link GitBash#runChunked(List, CommandOptions, int)}
+     * or appended to a script with {@link BashScript.Builder#appendCmds(Iterable)}.
+     *
+     * @param command git command and options that precede the paths, for example
+     *                {@code add} or {@code diff --stat}, without format specifiers
+     * @param limit maximum size of arguments of a single invocation in bytes
+     *              as measured by {@link GitBash#getArgumentSize(String)}
+     * @return invocations in the order of paths they pass, or an empty list if there are no paths.
+     *
+     * @throws IllegalArgumentException if a single path does not fit within the limit.
+     */
+    public static List<GitCommand> forPaths(String command, Collection<String> paths, @Positive long limit) {
 
-        for (GitCLOption option : options) {
-            format = format.replaceFirst("%opt", option.toString());
+        String format = command.trim() + " --";
+        long base = GitBash.getArgumentSize(GitBash.getGitProgram());
+        for (String token : format.split("\\s+")) {
+            base += GitBash.getArgumentSize(token);
+        }
+        List<GitCommand> result = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        long size = base;
+        for (String path : paths)
+        {
+            long cost = GitBash.getArgumentSize(quoteArgument(path));
+            if (base + cost > limit) {
+                throw new IllegalArgumentException("Path does not fit within the argument limit: " + path);
+            }
+            if (size + cost > limit)
+            {
+                result.add(new GitCommand(format + " %s".repeat(chunk.size()), chunk.toArray(new String[0])));
+                chunk.clear();
+                size = base;
+            }
+            chunk.add(path);
+            size += cost;
+        }
+        if (!chunk.isEmpty()) {
+            result.add(new GitCommand(format + " %s".repeat(chunk.size()), chunk.toArray(new String[0])));
         }
-        return args.length > 0 ? String.format(format, (Object[]) args) : format;
+        return result;
     }
 
-    private static String consolidateOptions(GitCLOption... options) {
+    /**
+     * @return the given arguments quoted for the shell. Arguments that need no quotes are
+     *         returned as they are, and the given array is returned if none of them need quotes.
+     */
+    private static String[] quoteArguments(String[] args) {
 
-        if (options.length > 0)
+        String[] quoted = args;
+        for (int i = 0; i < args.length; i++)
         {
-            StringBuilder sb = new StringBuilder();
-            Arrays.stream(options).forEach(o -> sb.append(o.toString()).append(" "));
-            return sb.toString();
+            String arg = quoteArgument(args[i]);
+            if (arg != args[i])
+            {
+                if (quoted == args) quoted = args.clone();
+                quoted[i] = arg;
+            }
         }
-        else return "";
+        return quoted;
+    }
+
+    /**
+     * Classify a git command by its subcommand. Commands that are not known
+     * to be read-only are assumed to modify the repository.
+     */
+    private static boolean isReadOnly(List<String> arguments) {
+
+        int index = 0;
+        /* Skip global options that appear before the subcommand
+         */
+        while (index < arguments.size() && arguments.get(index).startsWith("-")
+                && !READ_ONLY_COMMANDS.contains(arguments.get(index)))
+        {
+            String option = arguments.get(index++);
+            if (option.equals("-C") || option.equals("-c")) index++;
+        }
+        if (index >= arguments.size()) {
+            return false;
+        }
+        String command = arguments.get(index);
+        List<String> rest = arguments.subList(index + 1, arguments.size());
+        switch (command) {
+            case "config":
+                return rest.stream().anyMatch(CONFIG_READ_OPTIONS::contains);
+            case "stash":
+                return !rest.isEmpty() && (rest.get(0).equals("list") || rest.get(0).equals("show"));
+            default:
+                return READ_ONLY_COMMANDS.contains(command);
+        }
+    }
+
+    /**
+     * @return {@code true} if this command does not modify the index or references
+     *         of the repository it runs in, for example {@code git diff} or {@code git log}.
+     */
+    @Override
+    @Contract(pure = true)
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return arguments that follow the {@code git} program name, for example
+     *         {@code [diff, --no-index, a.txt, b.txt]}. Formatted arguments are
+     *         preserved verbatim, even if they contain whitespace.
+     */
+    @Override
+    @Contract(pure = true)
+    public List<String> getArguments() {
+        return arguments;
     }
 
     @Contract(pure = true)
@@ -0,0 +1,823 @@
+package io.yooksi.jute.git;
+
+import io.yooksi.commons.define.MethodsNotNull;
+import io.yooksi.jute.bash.BashCommand;
+import io.yooksi.jute.bash.CommandBackend;
+import io.yooksi.jute.bash.GitBash;
+import org.eclipse.jgit.api.AddCommand;
+import org.eclipse.jgit.api.LogCommand;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.errors.EmptyCommitException;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.NoHeadException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * This backend executes the most common git commands in-process with JGit
+ * instead of starting a {@code git} process for every command.
+ * <p>
+ *     Only the following forms of {@link GitCommand} are supported, all other
+ *     commands are declared as unsupported and left to the command line program:
+ * </p>
+ * <ul>
+ *     <li>{@code diff [--cached | --staged] [-- <path>...]}</li>
+ *     <li>{@code log --oneline [-n <number> | -<number> | --max-count=<number>]}</li>
+ *     <li>{@code status --porcelain | --short | -s}</li>
+ *     <li>{@code add [--] <path>...}</li>
+ *     <li>{@code commit [-a | --all] (-q | --quiet) -m <message>}</li>
+ * </ul>
+ * Paths are accepted only as literal paths relative to the working directory, pathspecs
+ * with wildcards or magic signatures are left to the command line program. Object names are
+ * abbreviated the way {@code core.abbrev} does, {@code diff} detects renames unless disabled
+ * with {@code diff.renames}, and paths are quoted as configured by {@code core.quotePath}.
+ * <p>
+ *     Output that JGit is unable to reproduce is left to the command line program as well:
+ *     {@code status} is executed by a {@code git} process when the index stages both an addition
+ *     and a deletion, which the command line program may report as a rename, and {@code commit}
+ *     when there is nothing to commit, in which case the command line program prints the long
+ *     status format. These processes inherit the environment of the JVM.
+ * </p>
+ * Repositories are opened once for every working directory and kept open for the
+ * {@value #MAX_OPEN_REPOSITORIES} most recently used directories, or until the backend is closed.
+ *
+ * @see GitBash#addBackend(CommandBackend)
+ */
+@MethodsNotNull
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class JGitBackend implements CommandBackend, AutoCloseable {
+
+    /**
+     * Exit status used by git when a command fails with a fatal error.
+     */
+    private static final int FATAL_EXIT_CODE = 128;
+
+    /**
+     * Minimum length of abbreviated object names, also used when {@code core.abbrev} is {@code auto}
+     * and the repository is small.
+     */
+    private static final int MIN_ABBREV_LENGTH = 7;
+
+    /**
+     * Exit status returned by an {@link Invocation} that is unable to reproduce the output
+     * of the command line program, which is then executed by a {@code git} process instead.
+     */
+    private static final int COMMAND_LINE = -1;
+
+    /**
+     * Maximum number of repositories kept open at the same time.
+     */
+    public static final int MAX_OPEN_REPOSITORIES = 16;
+
+    private static final Set<String> STATUS_OPTIONS = Set.of("--porcelain", "--short", "-s");
+
+    /**
+     * Repositories opened for working directories, in access order. Evicted repositories are
+     * closed once the commands that are still using them complete.
+     */
+    private final Map<Path, Repository> repositories = new LinkedHashMap<>(MAX_OPEN_REPOSITORIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Repository> eldest) {
+
+            if (size() > MAX_OPEN_REPOSITORIES)
+            {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    @Override
+    public boolean supports(BashCommand command) {
+        return command instanceof GitCommand && parse(((GitCommand) command).getArguments()) != null;
+    }
+
+    @Override
+    public int execute(BashCommand command, Path directory, OutputStream out,
+                       OutputStream err) throws IOException, InterruptedException {
+
+        Invocation invocation = parse(((GitCommand) command).getArguments());
+        if (invocation == null) {
+            throw new IllegalArgumentException("Unsupported git command: " + command.toString());
+        }
+        PrintStream stderr = new PrintStream(err, true, StandardCharsets.UTF_8.name());
+        Repository repository = openRepository(directory);
+        if (repository == null)
+        {
+            stderr.println("fatal: not a git repository (or any of the parent directories): .git");
+            return FATAL_EXIT_CODE;
+        }
+        try (org.eclipse.jgit.api.Git git = org.eclipse.jgit.api.Git.wrap(repository))
+        {
+            Path workTree = repository.getWorkTree().toPath().toAbsolutePath().normalize();
+            String prefix = toGitPath(workTree.relativize(directory.toAbsolutePath().normalize()));
+
+            PrintStream stdout = new PrintStream(out, false, StandardCharsets.UTF_8.name());
+            int exitCode = invocation.execute(git, prefix, stdout);
+            stdout.flush();
+            if (exitCode == COMMAND_LINE) {
+                return runCommandLine((GitCommand) command, directory, out, err);
+            }
+            return exitCode;
+        }
+        catch (NoHeadException e)
+        {
+            stderr.println("fatal: your current branch '" + repository.getBranch() + "' does not have any commits yet");
+            return FATAL_EXIT_CODE;
+        }
+        catch (GitAPIException e)
+        {
+            stderr.println("fatal: " + e.getMessage());
+            return FATAL_EXIT_CODE;
+        }
+        finally {
+            repository.close();
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Execute the given command with the command line program and copy its output.
+     *
+     * @return exit status of the {@code git} process.
+     */
+    private static int runCommandLine(GitCommand command, Path directory, OutputStream out,
+                                      OutputStream err) throws IOException, InterruptedException {
+
+        List<String> arguments = new ArrayList<>(command.getArguments());
+        arguments.add(0, GitBash.getGitProgram());
+        Process process = new ProcessBuilder(arguments).directory(directory.toFile()).start();
+        process.getOutputStream().close();
+
+        CompletableFuture<Void> stderr = CompletableFuture.runAsync(() -> {
+            try (InputStream in = process.getErrorStream()) {
+                in.transferTo(err);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            try (InputStream in = process.getInputStream()) {
+                in.transferTo(out);
+            }
+            stderr.join();
+            return process.waitFor();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Open the repository that contains the given directory. The returned repository is
+     * shared with other commands and must be closed by the caller once it is no longer used.
+     *
+     * @return repository that contains the given directory or {@code null} if there is none.
+     */
+    private @Nullable Repository openRepository(Path directory) throws IOException {
+
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (repositories)
+        {
+            Repository repository = repositories.get(key);
+            if (repository != null)
+            {
+                repository.incrementOpen();
+                return repository;
+            }
+        }
+        FileRepositoryBuilder builder = new FileRepositoryBuilder().findGitDir(key.toFile());
+        if (builder.getGitDir() == null) {
+            return null;
+        }
+        Repository opened = builder.build();
+        synchronized (repositories)
+        {
+            Repository repository = repositories.putIfAbsent(key, opened);
+            if (repository != null) {
+                opened.close();
+            }
+            else repository = opened;
+
+            repository.incrementOpen();
+            return repository;
+        }
+    }
+
+    /**
+     * Close all repositories opened by this backend. Repositories that are still used
+     * by a command are closed once the command completes.
+     */
+    @Override
+    public void close() {
+
+        synchronized (repositories)
+        {
+            repositories.values().forEach(Repository::close);
+            repositories.clear();
+        }
+    }
+
+    /**
+     * Internal representation of a parsed command that can be executed with JGit.
+     */
+    @FunctionalInterface
+    private interface Invocation {
+        /**
+         * @param prefix path of the working directory relative to the root of the work tree,
+         *               used to resolve paths the same way the command line program does.
+         */
+        int execute(org.eclipse.jgit.api.Git git, String prefix, PrintStream out) throws GitAPIException, IOException;
+    }
+
+    /**
+     * Internal error that makes the command line program exit with a fatal error.
+     */
+    private static final class FatalException extends GitAPIException {
+
+        private static final long serialVersionUID = 1L;
+
+        private FatalException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return the given path with {@code /} used as the name separator.
+     */
+    private static String toGitPath(Path path) {
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return {@code true} if the given argument is a path that is resolved literally. Absolute
+     *         paths and pathspecs with wildcards or a magic signature are matched differently
+     *         by the command line program and are therefore not supported.
+     */
+    private static boolean isLiteralPath(String path) {
+
+        if (path.isEmpty() || path.startsWith("/") || path.startsWith(":")) {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++)
+        {
+            char c = path.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '\\') return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return path relative to the root of the work tree of a path given relative to the working
+     *         directory with the given prefix, or {@code "."} for the root of the work tree.
+     *
+     * @throws FatalException if the path is outside of the work tree.
+     */
+    private static String resolvePath(Repository repository, String prefix, String path) throws FatalException {
+
+        List<String> names = new ArrayList<>();
+        for (String name : (prefix + '/' + path).split("/"))
+        {
+            if (name.equals("..")) {
+                if (names.isEmpty()) {
+                    Path workTree = repository.getWorkTree().toPath().toAbsolutePath().normalize();
+                    throw new FatalException(path + ": '" + path + "' is outside repository at '" + workTree + "'");
+                }
+                names.remove(names.size() - 1);
+            }
+            else if (!name.isEmpty() && !name.equals(".")) {
+                names.add(name);
+            }
+        }
+        return names.isEmpty() ? "." : String.join("/", names);
+    }
+
+    /**
+     * @return path relative to the working directory with the given prefix of a path given
+     *         relative to the root of the work tree, the same way the command line program
+     *         prints it. A trailing {@code /} of a directory path is preserved.
+     */
+    private static String relativizePath(String prefix, String path) {
+
+        if (prefix.isEmpty()) {
+            return path;
+        }
+        String base = prefix + '/';
+        int common = 0;
+        for (int i = 0; i < base.length() && i < path.length() && base.charAt(i) == path.charAt(i); i++)
+        {
+            if (base.charAt(i) == '/') common = i + 1;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = common; i < base.length(); i++)
+        {
+            if (base.charAt(i) == '/') sb.append("../");
+        }
+        sb.append(path, common, path.length());
+        return sb.length() > 0 ? sb.toString() : "./";
+    }
+
+    /**
+     * Quote the given path the same way the command line program does in the short status format.
+     * Paths that contain a space, a double quote, a backslash or a control character are enclosed
+     * in double quotes and special characters are escaped in C style. Bytes of non-ASCII characters
+     * are escaped as octal numbers as well, unless {@code core.quotePath} is disabled.
+     */
+    private static String quotePath(String path, boolean quoteNonAscii) {
+
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = null;
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int b = bytes[i] & 0xff;
+            String escaped;
+            switch (b) {
+                case 0x07: escaped = "\\a"; break;
+                case '\b': escaped = "\\b"; break;
+                case '\t': escaped = "\\t"; break;
+                case '\n': escaped = "\\n"; break;
+                case 0x0b: escaped = "\\v"; break;
+                case '\f': escaped = "\\f"; break;
+                case '\r': escaped = "\\r"; break;
+                case '"': escaped = "\\\""; break;
+                case '\\': escaped = "\\\\"; break;
+                case ' ': escaped = " "; break;
+                default:
+                    if (b >= 0x20 && b != 0x7f && (b < 0x80 || !quoteNonAscii)) {
+                        continue;
+                    }
+                    escaped = String.format("\\%03o", b);
+            }
+            if (sb == null) {
+                sb = new StringBuilder(path.length() + 8).append('"');
+            }
+            sb.append(new String(bytes, start, i - start, StandardCharsets.UTF_8)).append(escaped);
+            start = i + 1;
+        }
+        if (sb == null) {
+            return path;
+        }
+        return sb.append(new String(bytes, start, bytes.length - start, StandardCharsets.UTF_8)).append('"').toString();
+    }
+
+    /**
+     * @return the length of abbreviated object names as configured by {@code core.abbrev}. When the
+     *         length is not configured it is derived from the number of packed objects the same way
+     *         the command line program does, so that the chance of a future collision stays low.
+     */
+    private static int getAbbreviationLength(Repository repository) throws IOException, FatalException {
+
+        String abbrev = repository.getConfig().getString("core", null, "abbrev");
+        if (abbrev != null && !abbrev.equalsIgnoreCase("auto"))
+        {
+            if (abbrev.equalsIgnoreCase("no") || abbrev.equalsIgnoreCase("false")) {
+                return Constants.OBJECT_ID_STRING_LENGTH;
+            }
+            try {
+                return Math.max(4, Math.min(Constants.OBJECT_ID_STRING_LENGTH, Integer.parseInt(abbrev.trim())));
+            }
+            catch (NumberFormatException e) {
+                throw new FatalException("bad numeric config value '" + abbrev + "' for 'core.abbrev'");
+            }
+        }
+        long count = getPackedObjectCount(repository);
+        int bits = 64 - Long.numberOfLeadingZeros(count);
+        return Math.max(MIN_ABBREV_LENGTH, (bits + 1) / 2);
+    }
+
+    /**
+     * @return the number of objects stored in pack files of the repository, read from
+     *         the object count that every pack index stores at the end of its fan-out table.
+     */
+    private static long getPackedObjectCount(Repository repository) throws IOException {
+
+        File[] indexes = new File(repository.getDirectory(), "objects/pack").listFiles(
+                (dir, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+        if (indexes == null) {
+            return 0;
+        }
+        long count = 0;
+        for (File index : indexes)
+        {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(index)))
+            {
+                /* Version 2 indexes start with a magic number and a version, version 1
+                 * indexes start with the fan-out table right away
+                 */
+                int first = in.readInt();
+                int skip = first == 0xff744f63 ? 255 * 4 + 4 : 254 * 4;
+                in.skipBytes(skip);
+                count += in.readInt() & 0xffffffffL;
+            }
+        }
+        return count;
+    }
+
+    private static String abbreviate(ObjectReader reader, AnyObjectId id, int length) throws IOException {
+        return reader.abbreviate(id, length).name();
+    }
+
+    /**
+     * @return an invocation equivalent to the given command line arguments
+     *         or {@code null} if the arguments are not supported.
+     */
+    private static @Nullable Invocation parse(List<String> arguments) {
+
+        if (arguments.isEmpty()) {
+            return null;
+        }
+        List<String> rest = arguments.subList(1, arguments.size());
+        switch (arguments.get(0)) {
+            case "diff":
+                return parseDiff(rest);
+            case "log":
+                return parseLog(rest);
+            case "status":
+                return parseStatus(rest);
+            case "add":
+                return parseAdd(rest);
+            case "commit":
+                return parseCommit(rest);
+            default:
+                return null;
+        }
+    }
+
+    private static @Nullable Invocation parseDiff(List<String> arguments) {
+
+        boolean cached = false, separator = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : arguments)
+        {
+            /* Without a separator the command line program may interpret
+             * the argument as a revision, which is not supported
+             */
+            if (separator)
+            {
+                if (!isLiteralPath(arg)) return null;
+                paths.add(arg);
+            }
+            else if (arg.equals("--")) {
+                separator = true;
+            }
+            else if (arg.equals("--cached") || arg.equals("--staged")) {
+                cached = true;
+            }
+            else return null;
+        }
+        final boolean fCached = cached;
+        return (git, prefix, out) -> {
+            Repository repository = git.getRepository();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (ObjectReader reader = repository.newObjectReader();
+                 DiffFormatter formatter = new DiffFormatter(buffer))
+            {
+                formatter.setRepository(repository);
+                formatter.setDetectRenames(isDetectRenames(repository.getConfig()));
+                formatter.setAbbreviationLength(getAbbreviationLength(repository));
+                if (!paths.isEmpty())
+                {
+                    List<String> filter = new ArrayList<>(paths.size());
+                    for (String path : paths) {
+                        filter.add(resolvePath(repository, prefix, path));
+                    }
+                    if (!filter.contains(".")) {
+                        formatter.setPathFilter(PathFilterGroup.createFromStrings(filter));
+                    }
+                }
+                AbstractTreeIterator oldTree, newTree;
+                if (fCached)
+                {
+                    ObjectId head = repository.resolve(Constants.HEAD + "^{tree}");
+                    oldTree = head != null ? new CanonicalTreeParser(null, reader, head) : new EmptyTreeIterator();
+                    newTree = new DirCacheIterator(repository.readDirCache());
+                }
+                else {
+                    oldTree = new DirCacheIterator(repository.readDirCache());
+                    newTree = new FileTreeIterator(repository);
+                }
+                for (DiffEntry entry : formatter.scan(oldTree, newTree))
+                {
+                    formatter.format(entry);
+                    formatter.flush();
+                    String patch = buffer.toString(StandardCharsets.ISO_8859_1.name());
+                    buffer.reset();
+                    out.write(terminateLabels(patch).getBytes(StandardCharsets.ISO_8859_1));
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * The command line program terminates the {@code ---} and {@code +++} lines of a patch with a tab
+     * when the path contains a space, so that the path can be told apart from a trailing timestamp.
+     *
+     * @param patch patch of a single file decoded byte per character
+     */
+    private static String terminateLabels(String patch) {
+
+        StringBuilder sb = new StringBuilder(patch.length() + 2);
+        int start = 0;
+        for (int end = patch.indexOf('\n'); end >= 0; end = patch.indexOf('\n', start))
+        {
+            String line = patch.substring(start, end);
+            if (line.startsWith("@@") || line.startsWith("Binary files")) {
+                break;
+            }
+            sb.append(line);
+            if ((line.startsWith("--- ") || line.startsWith("+++ "))
+                    && !line.endsWith(DiffEntry.DEV_NULL) && line.indexOf(' ', 4) >= 0) {
+                sb.append('\t');
+            }
+            sb.append('\n');
+            start = end + 1;
+        }
+        return sb.append(patch, start, patch.length()).toString();
+    }
+
+    /**
+     * @return {@code true} unless rename detection is disabled with {@code diff.renames}, which
+     *         the command line program enables by default. Copies are detected as renames.
+     */
+    private static boolean isDetectRenames(Config config) {
+
+        String renames = config.getString("diff", null, "renames");
+        return renames == null || !(renames.equalsIgnoreCase("false") || renames.equalsIgnoreCase("no")
+                || renames.equalsIgnoreCase("off") || renames.equals("0"));
+    }
+
+    private static @Nullable Invocation parseLog(List<String> arguments) {
+
+        boolean oneline = false;
+        int maxCount = -1;
+        for (int i = 0; i < arguments.size(); i++)
+        {
+            String arg = arguments.get(i);
+            if (arg.equals("--oneline")) {
+                oneline = true;
+            }
+            else if (arg.equals("-n") && i + 1 < arguments.size()) {
+                maxCount = parseCount(arguments.get(++i));
+            }
+            else if (arg.startsWith("--max-count=")) {
+                maxCount = parseCount(arg.substring("--max-count=".length()));
+            }
+            else if (arg.matches("-\\d+")) {
+                maxCount = parseCount(arg.substring(1));
+            }
+            else return null;
+
+            if (maxCount < -1) return null;
+        }
+        if (!oneline) {
+            return null;
+        }
+        final int fMaxCount = maxCount;
+        return (git, prefix, out) -> {
+            LogCommand log = git.log();
+            if (fMaxCount >= 0) {
+                log.setMaxCount(fMaxCount);
+            }
+            try (ObjectReader reader = git.getRepository().newObjectReader())
+            {
+                int length = getAbbreviationLength(git.getRepository());
+                for (RevCommit commit : log.call()) {
+                    out.println(abbreviate(reader, commit, length) + ' ' + commit.getShortMessage());
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * @return the given number or {@code -2} if it is not a valid count.
+     */
+    private static int parseCount(String number) {
+
+        try {
+            int count = Integer.parseInt(number);
+            return count >= 0 ? count : -2;
+        }
+        catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+    private static @Nullable Invocation parseStatus(List<String> arguments) {
+
+        if (arguments.size() != 1 || !STATUS_OPTIONS.contains(arguments.get(0))) {
+            return null;
+        }
+        /* Porcelain format always prints paths relative to the root of the work tree
+         */
+        boolean porcelain = arguments.get(0).equals("--porcelain");
+        return (git, prefix, out) -> {
+            Status status = git.status().call();
+            /* JGit does not detect renames, so leave any status the command
+             * line program could report a rename in to the command line
+             */
+            if (!status.getAdded().isEmpty() && !status.getRemoved().isEmpty()) {
+                return COMMAND_LINE;
+            }
+            boolean quoteNonAscii = git.getRepository().getConfig().getBoolean("core", "quotePath", true);
+            printStatus(status, porcelain ? "" : prefix, quoteNonAscii, out);
+            return 0;
+        };
+    }
+
+    /**
+     * Print the status of the working tree in the short format: {@code XY path}, where {@code X}
+     * is the status of the index and {@code Y} the status of the working tree. Tracked paths
+     * come first sorted by path, followed by untracked paths. Paths are relative to the working
+     * directory with the given prefix and quoted the same way the command line program does.
+     */
+    private static void printStatus(Status status, String prefix, boolean quoteNonAscii, PrintStream out) {
+
+        SortedMap<String, char[]> tracked = new TreeMap<>();
+        BiConsumer<Set<String>, Character> index = (paths, code) ->
+                paths.forEach(p -> tracked.computeIfAbsent(p, k -> new char[] { ' ', ' ' })[0] = code);
+        BiConsumer<Set<String>, Character> tree = (paths, code) ->
+                paths.forEach(p -> tracked.computeIfAbsent(p, k -> new char[] { ' ', ' ' })[1] = code);
+
+        index.accept(status.getAdded(), 'A');
+        index.accept(status.getChanged(), 'M');
+        index.accept(status.getRemoved(), 'D');
+        tree.accept(status.getModified(), 'M');
+        tree.accept(status.getMissing(), 'D');
+        for (String path : status.getConflicting()) {
+            tracked.put(path, new char[] { 'U', 'U' });
+        }
+        tracked.forEach((path, code) -> out.println(new String(code) + ' '
+                + quotePath(relativizePath(prefix, path), quoteNonAscii)));
+        /* Untracked directories are reported as a whole the same way the
+         * command line program does with the default untracked files mode
+         */
+        Set<String> untracked = new TreeSet<>();
+        for (String path : status.getUntracked())
+        {
+            String folder = null;
+            for (int i = path.indexOf('/'); i > 0; i = path.indexOf('/', i + 1))
+            {
+                if (status.getUntrackedFolders().contains(path.substring(0, i))) {
+                    folder = path.substring(0, i + 1);
+                    break;
+                }
+            }
+            untracked.add(folder != null ? folder : path);
+        }
+        untracked.forEach(path -> out.println("?? " + quotePath(relativizePath(prefix, path), quoteNonAscii)));
+    }
+
+    private static @Nullable Invocation parseAdd(List<String> arguments) {
+
+        boolean separator = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : arguments)
+        {
+            if (separator || !arg.startsWith("-"))
+            {
+                if (!isLiteralPath(arg)) return null;
+                paths.add(arg);
+            }
+            else if (arg.equals("--")) {
+                separator = true;
+            }
+            else return null;
+        }
+        if (paths.isEmpty()) {
+            return null;
+        }
+        return (git, prefix, out) -> {
+            Repository repository = git.getRepository();
+            List<String> resolved = new ArrayList<>(paths.size());
+            for (String path : paths)
+            {
+                String filter = resolvePath(repository, prefix, path);
+                if (!matchesAnyFile(repository, filter)) {
+                    throw new FatalException("pathspec '" + path + "' did not match any files");
+                }
+                resolved.add(filter);
+            }
+            /* The command line program also stages removal of tracked files
+             * that no longer exist, which JGit only does in update mode
+             */
+            AddCommand add = git.add(), update = git.add().setUpdate(true);
+            for (String filter : resolved)
+            {
+                add.addFilepattern(filter);
+                update.addFilepattern(filter);
+            }
+            add.call();
+            update.call();
+            return 0;
+        };
+    }
+
+    /**
+     * @return {@code true} if the given path relative to the root of the work tree
+     *         names a file or directory in the work tree or a path in the index.
+     */
+    private static boolean matchesAnyFile(Repository repository, String path) throws IOException {
+
+        if (path.equals(".") || new File(repository.getWorkTree(), path).exists()) {
+            return true;
+        }
+        DirCache index = repository.readDirCache();
+        if (index.findEntry(path) >= 0) {
+            return true;
+        }
+        String directory = path + '/';
+        for (int i = 0; i < index.getEntryCount(); i++)
+        {
+            if (index.getEntry(i).getPathString().startsWith(directory)) return true;
+        }
+        return false;
+    }
+
+    private static @Nullable Invocation parseCommit(List<String> arguments) {
+
+        boolean all = false, quiet = false;
+        String message = null;
+        for (int i = 0; i < arguments.size(); i++)
+        {
+            String arg = arguments.get(i);
+            if (arg.equals("-a") || arg.equals("--all")) {
+                all = true;
+            }
+            else if (arg.equals("-q") || arg.equals("--quiet")) {
+                quiet = true;
+            }
+            else if (arg.equals("-m") && i + 1 < arguments.size()) {
+                message = arguments.get(++i);
+            }
+            else if (arg.startsWith("--message=")) {
+                message = arg.substring("--message=".length());
+            }
+            else return null;
+        }
+        /* Without the quiet option the command line program prints
+         * statistics of changed files, which are not reproduced
+         */
+        if (message == null || !quiet) {
+            return null;
+        }
+        final boolean fAll = all;
+        final String fMessage = message;
+        return (git, prefix, out) -> {
+            try {
+                git.commit().setAll(fAll).setAllowEmpty(false).setMessage(fMessage).call();
+                return 0;
+            }
+            catch (EmptyCommitException e) {
+                /* The command line program prints the long status format
+                 */
+                return COMMAND_LINE;
+            }
+        };
+    }
+}
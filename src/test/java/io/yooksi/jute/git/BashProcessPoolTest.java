@@ -0,0 +1,82 @@
+package io.yooksi.jute.git;
+
+import io.yooksi.jute.bash.BashProcessPool;
+import io.yooksi.jute.bash.GitBash;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+@SuppressWarnings("WeakerAccess")
+public class BashProcessPoolTest {
+
+    @Test
+    public void executePooledCommandsTest() throws IOException, InterruptedException {
+
+        try (BashProcessPool pool = GitBash.get().createProcessPool().setSize(2).build())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+            Assertions.assertEquals(0, pool.execute("echo first; echo second >&2", out, err));
+            Assertions.assertEquals("first\n", out.toString(StandardCharsets.UTF_8));
+            Assertions.assertEquals("second\n", err.toString(StandardCharsets.UTF_8));
+
+            // Output without a trailing line feed should be preserved exactly
+            out.reset();
+            Assertions.assertEquals(0, pool.execute("printf 'no line feed'", out, OutputStream.nullOutputStream()));
+            Assertions.assertEquals("no line feed", out.toString(StandardCharsets.UTF_8));
+
+            // Shell processes should be reused between commands
+            Assertions.assertEquals(1, pool.getSize());
+            Assertions.assertEquals(3, pool.execute("cd / && false || exit 3"));
+            Assertions.assertEquals(0, pool.getSize());
+        }
+    }
+
+    @Test
+    public void restoreWorkingDirectoryTest() throws IOException, InterruptedException {
+
+        try (BashProcessPool pool = GitBash.get().createProcessPool().setSize(1).build())
+        {
+            ByteArrayOutputStream first = new ByteArrayOutputStream();
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+            pool.execute("pwd", first, OutputStream.nullOutputStream());
+            pool.execute("cd / && cd .. ; true", OutputStream.nullOutputStream(), OutputStream.nullOutputStream());
+            pool.execute("pwd", second, OutputStream.nullOutputStream());
+            Assertions.assertEquals(first.toString(StandardCharsets.UTF_8), second.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void closePoolWithBorrowedProcessTest() throws IOException, InterruptedException {
+
+        BashProcessPool pool = GitBash.get().createProcessPool().setSize(1).build();
+        CompletableFuture<Integer> running = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.execute("sleep 30");
+            }
+            catch (IOException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        });
+        while (pool.getSize() == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        pool.close();
+
+        // Commands running in borrowed processes should fail instead of running to completion
+        CompletionException e = Assertions.assertThrows(CompletionException.class, running::join);
+        Assertions.assertTrue(e.getCause() instanceof IOException);
+        Assertions.assertEquals(0, pool.getSize());
+        Assertions.assertThrows(IllegalStateException.class, () -> pool.execute("true"));
+    }
+}
@@ -4,21 +4,47 @@ import io.yooksi.commons.util.FileUtils;
 import io.yooksi.commons.util.StringUtils;
 import io.yooksi.jute.bash.*;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class BashTests {
 
     private static final File logFile = new File("bashTest.log");
 
+    private final GitBash bash = GitBash.get();
+    private final LaunchProfile launchProfile = bash.getLaunchProfile();
+
+    /**
+     * Restore the launch profile of the shared {@code GitBash} instance in case a test changed it.
+     */
+    @AfterEach
+    public void restoreLaunchProfile() {
+        bash.setLaunchProfile(launchProfile);
+    }
+
     @Test
     public void runBashScriptEchoSingleLineTest() throws IOException {
 
@@ -50,6 +76,237 @@ public class BashTests {
         Assertions.assertEquals(FileUtils.readFileToString(tempTxt, Charset.defaultCharset()).trim(), output.trim());
     }
 
+    @Test
+    public void runStreamedBashScriptTest() throws IOException {
+
+        Path scriptPath = Paths.get("testScript.sh");
+        UnixPath logPath = UnixPath.get("logs/testScript.log");
+        RedirectOutput redirect = RedirectOutput.overwrite(logPath);
+
+        BashScript.Builder builder = BashScript.stream(scriptPath, redirect, BashScript.SyncPolicy.ON_BUILD);
+        for (int i = 0; i < 1000; i++) {
+            builder.echo("line " + i);
+        }
+        BashScript script = builder.build();
+        Assertions.assertEquals(1000, script.getCommands().size());
+        Assertions.assertEquals("echo \"line 0\" > " + logPath, script.getCommands().get(0));
+        Assertions.assertEquals("echo \"line 1\" >> " + logPath, script.getCommands().get(1));
+
+        String[] output = StringUtils.normalizeEOL(runBashScript(logPath, script)).trim().split("\n");
+        Assertions.assertEquals(1000, output.length);
+        Assertions.assertEquals("line 999", output[999]);
+    }
+
+    @Test
+    public void runBashScriptFromMemoryTest() throws IOException, InterruptedException {
+
+        Path scriptPath = Paths.get("memoryScript.sh");
+        BashScript script = BashScript.create(scriptPath, false)
+                .echo("first").echo("second").appendCmd(GitCommand.VERSION).build();
+
+        try (CommandResult result = new ScriptRunner(GitBash.get()).runAsync(script, CommandOptions.BUFFERED).join())
+        {
+            Assertions.assertTrue(result.isSuccess());
+            String[] lines = String.valueOf(result.getStdout()).split("\n");
+            Assertions.assertEquals("first", lines[0]);
+            Assertions.assertEquals("second", lines[1]);
+            Assertions.assertTrue(lines[2].startsWith("git version"));
+        }
+        Assertions.assertFalse(scriptPath.toFile().exists());
+    }
+
+    @Test
+    public void runBashScriptFromMemoryReadingStdinTest() {
+
+        // hash-object reads stdin, which must not consume the lines that follow it
+        BashScript script = BashScript.create(Paths.get("stdinScript.sh"), false).echo("first")
+                .appendCmd(new GitCommand("hash-object --stdin")).echo("second").build();
+
+        try (CommandResult result = new ScriptRunner(GitBash.get()).runAsync(script, CommandOptions.BUFFERED).join())
+        {
+            Assertions.assertTrue(result.isSuccess());
+            String[] lines = String.valueOf(result.getStdout()).split("\n");
+            Assertions.assertEquals(3, lines.length);
+            Assertions.assertEquals("first", lines[0]);
+            Assertions.assertEquals("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391", lines[1]);
+            Assertions.assertEquals("second", lines[2]);
+        }
+    }
+
+    @Test
+    public void runBashScriptFramedOutputTest() throws IOException, InterruptedException {
+
+        List<FramedOutput.Frame> frames = new CopyOnWriteArrayList<>();
+        FramedOutput output = FramedOutput.create(frames::add);
+
+        BashScript script = BashScript.create(Paths.get("framedScript.sh"), output.redirect(), false)
+                .echo("first").echo("second").appendCmd(GitCommand.VERSION)
+                .appendJobs(JobGraph.parallel(2, GitCommand.VERSION, GitCommand.VERSION)).build();
+
+        CommandOptions options = CommandOptions.create().setStdout(output.capture()).build();
+        try (CommandResult result = new ScriptRunner(GitBash.get()).runAsync(script, options).join())
+        {
+            Assertions.assertTrue(result.isSuccess());
+            Assertions.assertEquals(4, frames.size());
+            Assertions.assertEquals("first\n", frames.get(0).toString());
+            Assertions.assertEquals("second\n", frames.get(1).toString());
+            Assertions.assertTrue(frames.get(2).toString().startsWith("git version"));
+            Assertions.assertEquals(2, frames.get(3).toString().split("git version").length - 1);
+
+            Assertions.assertEquals(1, frames.get(1).getIndex());
+            Assertions.assertEquals(script.getCommands().size() - 1, frames.get(3).getIndex());
+            frames.forEach(frame -> Assertions.assertEquals(0, frame.getExitCode()));
+        }
+    }
+
+    @Test
+    public void profileBashScriptTest() throws IOException, InterruptedException {
+
+        BashScript script = ScriptTemplate.compile("echo fast", "sleep 0.3; false",
+                "for i in 1 2; do sleep 0.1; done", "echo done").bind().build(Paths.get("profiled.sh"), false);
+
+        try (ScriptProfile profile = ScriptProfile.profileAsync(GitBash.get(), script, CommandOptions.BUFFERED).join())
+        {
+            Assertions.assertTrue(profile.getResult().isSuccess());
+            Assertions.assertEquals("fast\ndone\n", String.valueOf(profile.getResult().getStdout()));
+            Assertions.assertEquals(4, profile.getEntries().size());
+
+            ScriptProfile.Entry slowest = profile.getSlowest(1).get(0);
+            Assertions.assertEquals(1, slowest.getLine());
+            Assertions.assertEquals(1, slowest.getExitCode());
+            Assertions.assertEquals(2, slowest.getCount());
+            Assertions.assertTrue(slowest.getDuration().toMillis() >= 300);
+
+            ScriptProfile.Entry loop = Objects.requireNonNull(profile.getEntry(2));
+            Assertions.assertTrue(loop.getDuration().toMillis() >= 200);
+            Assertions.assertTrue(profile.getTotalTime().toMillis() >= 500);
+        }
+    }
+
+    @Test
+    public void scriptTemplateTest() throws IOException, InterruptedException {
+
+        ScriptTemplate template = ScriptTemplate.compile(
+                "echo {{text}} {{count:int}}", "printf '%s\\n' {{text}} {{dir:path}}");
+
+        Assertions.assertEquals(List.of("text", "count", "dir"), template.getParameters());
+        Assertions.assertEquals(ScriptTemplate.Type.PATH, template.getType(template.indexOf("dir")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ScriptTemplate.compile("{{a}} {{a:int}}"));
+
+        ScriptTemplate.Bindings bindings = template.bind().set("text", "it's $HOME").set("count", 3);
+        Assertions.assertThrows(IllegalStateException.class, bindings::toCommands);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> bindings.set("count", "3; rm"));
+
+        bindings.set("dir", Paths.get("some dir"));
+        Assertions.assertEquals(List.of("echo 'it'\\''s $HOME' 3",
+                "printf '%s\\n' 'it'\\''s $HOME' 'some dir'"), bindings.toCommands());
+
+        BashScript script = bindings.set(template.indexOf("count"), 4).build(Paths.get("template.sh"), false);
+        try (CommandResult result = new ScriptRunner(GitBash.get()).runAsync(script, CommandOptions.BUFFERED).join())
+        {
+            Assertions.assertTrue(result.isSuccess());
+            String[] lines = String.valueOf(result.getStdout()).split("\n");
+            Assertions.assertEquals("it's $HOME 4", lines[0]);
+            Assertions.assertEquals("it's $HOME", lines[1]);
+            Assertions.assertEquals("some dir", lines[2]);
+        }
+    }
+
+    @Test
+    public void scriptCacheTest() throws IOException, InterruptedException {
+
+        Path directory = Files.createTempDirectory("jute");
+        try {
+            ScriptCache cache = ScriptCache.create(directory).setMaxEntries(2).build();
+            BashScript first = cache.get(BashScript.create(Paths.get("ignored.sh"), false).echo("first"));
+            BashScript again = cache.get(BashScript.create(Paths.get("ignored.sh"), false).echo("first"));
+
+            Assertions.assertSame(first, again);
+            Assertions.assertEquals(1, cache.getHitCount());
+            Assertions.assertEquals(1, cache.getMissCount());
+            Assertions.assertTrue(first.getFile().exists());
+
+            try (CommandResult result = GitBash.get().runBashScriptAsync(first, CommandOptions.BUFFERED).join()) {
+                Assertions.assertEquals("first", String.valueOf(result.getStdout()).trim());
+            }
+            cache.get(List.of("echo \"second\""));
+            cache.get(List.of("echo \"third\""));
+            Assertions.assertEquals(2, cache.size());
+            Assertions.assertEquals(1, cache.getEvictionCount());
+            Assertions.assertFalse(first.getFile().exists());
+
+            ScriptCache reopened = ScriptCache.create(directory).setMaxEntries(2).build();
+            Assertions.assertEquals(2, reopened.size());
+            reopened.get(List.of("echo \"third\""));
+            Assertions.assertEquals(1, reopened.getHitCount());
+
+            // Leased scripts are never evicted, even when they are least recently used
+            BashScript leased;
+            try (ScriptCache.Lease lease = reopened.acquire(List.of("echo \"leased\"")))
+            {
+                leased = lease.getScript();
+                reopened.get(List.of("echo \"fourth\""));
+                reopened.get(List.of("echo \"fifth\""));
+                Assertions.assertTrue(leased.getFile().exists());
+                try (CommandResult result = GitBash.get().runBashScriptAsync(leased, CommandOptions.BUFFERED).join()) {
+                    Assertions.assertEquals("leased", String.valueOf(result.getStdout()).trim());
+                }
+            }
+            reopened.get(List.of("echo \"sixth\""));
+            Assertions.assertFalse(leased.getFile().exists());
+        }
+        finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    @Test
+    public void scriptInputCacheTest() throws IOException {
+
+        Path directory = Files.createTempDirectory("jute");
+        try {
+            // Scripts with the same commands and input are identical, even when the input
+            // contains the default delimiter of here-documents
+            ScriptCache cache = ScriptCache.create(directory).build();
+            List<String> input = List.of("first line", "__JUTE_INPUT__", "last line");
+            BashCommand cat = new BashCommand(BashCommand.Type.SCRIPT, "-c cat") {};
+            BashScript first = cache.get(BashScript.create(Paths.get("ignored.sh"), false).appendCmd(cat).withInput(input));
+            BashScript again = cache.get(BashScript.create(Paths.get("ignored.sh"), false).appendCmd(cat).withInput(input));
+
+            Assertions.assertSame(first, again);
+            Assertions.assertEquals(1, cache.getHitCount());
+            try (CommandResult result = GitBash.get().runBashScriptAsync(first, CommandOptions.BUFFERED).join()) {
+                Assertions.assertEquals(String.join("\n", input) + "\n", String.valueOf(result.getStdout()));
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    @Test
+    public void runBashScriptJobGraphTest() throws IOException, InterruptedException {
+
+        UnixPath statusPath = UnixPath.get("logs/jobStatus.log");
+        JobGraph graph = JobGraph.create(2).setStatusFile(statusPath)
+                .add("a", new BashCommand(BashCommand.Type.SCRIPT, "-c 'exit 0'") {})
+                .add("b", new BashCommand(BashCommand.Type.SCRIPT, "-c 'exit 3'") {})
+                .add("c", new BashCommand(BashCommand.Type.SCRIPT, "-c 'echo c'") {}, "a")
+                .add("d", new BashCommand(BashCommand.Type.SCRIPT, "-c 'echo d'") {}, "b", "c");
+
+        new File("logs").mkdirs();
+        BashScript script = BashScript.create(Paths.get("jobScript.sh"), false)
+                .echo("before").appendJobs(graph).appendCmd(new BashCommand(BashCommand.Type.SCRIPT, "-c 'echo after'") {}).build();
+
+        try (CommandResult result = new ScriptRunner(GitBash.get()).runAsync(script, CommandOptions.BUFFERED).join())
+        {
+            Assertions.assertEquals(List.of("before", "c", "after"),
+                    Arrays.asList(String.valueOf(result.getStdout()).trim().split("\n")));
+        }
+        List<String> statuses = Files.readAllLines(statusPath.convert());
+        Assertions.assertEquals(List.of("a 0", "b 3", "c 0", "d " + JobGraph.SKIPPED_STATUS), statuses);
+    }
+
     private String runBashScript(UnixPath logPath, BashScript script) throws IOException {
 
         GitBash.get().runBashScript(script);
@@ -57,6 +314,178 @@ public class BashTests {
         return FileUtils.readFileToString(logFile, Charset.defaultCharset());
     }
 
+    @Test
+    public void runCommandAsyncTest() {
+
+        List<CompletableFuture<CommandResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(GitBash.get().runCommandAsync(GitCommand.VERSION));
+        }
+        for (CompletableFuture<CommandResult> future : futures) {
+            Assertions.assertTrue(future.join().isSuccess());
+        }
+    }
+
+    @Test
+    public void captureCommandOutputTest() throws IOException, InterruptedException {
+
+        try (CommandResult result = GitBash.get().runCommand(GitCommand.VERSION, CommandOptions.BUFFERED))
+        {
+            CapturedOutput stdout = result.getStdout();
+            Assertions.assertNotNull(stdout);
+            Assertions.assertTrue(stdout.toString().startsWith("git version"));
+            Assertions.assertEquals(stdout.size(), result.getBytesOut());
+        }
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        CommandOptions options = CommandOptions.create()
+                .setStdout(OutputCapture.stream(sink)).setStderr(OutputCapture.discard()).build();
+
+        CommandResult result = GitBash.get().runCommand(GitCommand.VERSION, options);
+        Assertions.assertNull(result.getStdout());
+        Assertions.assertEquals(sink.size(), result.getBytesOut());
+        Assertions.assertEquals(-1, result.getBytesErr());
+
+        options = CommandOptions.create().setStdout(OutputCapture.buffer(3)).build();
+        try (CommandResult truncated = GitBash.get().runCommand(GitCommand.VERSION, options))
+        {
+            CapturedOutput stdout = truncated.getStdout();
+            Assertions.assertNotNull(stdout);
+            Assertions.assertTrue(stdout.isTruncated());
+            Assertions.assertEquals("git", stdout.toString());
+        }
+    }
+
+    @Test
+    public void commandTimeoutTest() {
+
+        BashCommand sleep = new BashCommand(BashCommand.Type.SCRIPT, "-c 'sleep 30'") {};
+        CommandOptions options = CommandOptions.create().setTimeout(Duration.ofMillis(250)).build();
+
+        long start = System.nanoTime();
+        Assertions.assertThrows(CommandTimeoutException.class, () -> GitBash.get().runCommand(sleep, options));
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+
+        CompletableFuture<CommandResult> future = GitBash.get().runCommandAsync(sleep);
+        Assertions.assertTrue(future.cancel(true));
+        Assertions.assertThrows(CancellationException.class, future::join);
+    }
+
+    @Test
+    public void publishCommandOutputTest() {
+
+        BashCommand seq = new BashCommand(BashCommand.Type.SCRIPT, "-c 'seq 1 1000000'") {};
+        List<String> lines = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+
+        GitBash.get().publishLines(seq, CommandOptions.DEFAULT).subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+            @Override public void onNext(String line) {
+                lines.add(line);
+                if (lines.size() < 3) {
+                    subscription.request(1);
+                }
+                else {
+                    subscription.cancel();
+                    done.complete(null);
+                }
+            }
+            @Override public void onError(Throwable e) {
+                done.completeExceptionally(e);
+            }
+            @Override public void onComplete() {
+                done.completeExceptionally(new AssertionError("Output should not be complete"));
+            }
+        });
+        done.orTimeout(10, TimeUnit.SECONDS).join();
+        Assertions.assertEquals(List.of("1", "2", "3"), lines);
+
+        BashCommand echo = new BashCommand(BashCommand.Type.SCRIPT, "-c 'printf \"a\\nb\\n\"'") {};
+        Flow.Publisher<ByteBuffer> output = GitBash.get().publishOutput(echo, CommandOptions.DEFAULT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompletableFuture<Void> complete = new CompletableFuture<>();
+        output.subscribe(new Flow.Subscriber<>() {
+            @Override public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+            @Override public void onNext(ByteBuffer chunk) {
+                bytes.write(chunk.array(), chunk.position(), chunk.remaining());
+            }
+            @Override public void onError(Throwable e) {
+                complete.completeExceptionally(e);
+            }
+            @Override public void onComplete() {
+                complete.complete(null);
+            }
+        });
+        complete.orTimeout(10, TimeUnit.SECONDS).join();
+        Assertions.assertEquals("a\nb\n", bytes.toString());
+    }
+
+    @Test
+    public void spillCommandOutputTest() throws IOException, InterruptedException {
+
+        BashCommand seq = new BashCommand(BashCommand.Type.SCRIPT, "-c 'seq 1 200000'") {};
+        CommandOptions options = CommandOptions.create().setStdout(OutputCapture.spill(4096)).build();
+
+        try (CommandResult result = GitBash.get().runCommand(seq, options))
+        {
+            CapturedOutput output = result.getStdout();
+            Assertions.assertNotNull(output);
+            Assertions.assertTrue(output.isSpilled());
+            Assertions.assertFalse(output.isTruncated());
+            Assertions.assertEquals(result.getBytesOut(), output.size());
+
+            Assertions.assertEquals(200000, output.getLineCount());
+            Assertions.assertEquals("1", output.getLine(0, Charset.defaultCharset()));
+            Assertions.assertEquals("12346", output.getLine(12345, Charset.defaultCharset()));
+            Assertions.assertEquals("200000", output.getLine(199999, Charset.defaultCharset()));
+            Assertions.assertThrows(IndexOutOfBoundsException.class, () -> output.getLine(200000, Charset.defaultCharset()));
+        }
+        BashCommand echo = new BashCommand(BashCommand.Type.SCRIPT, "-c 'printf \"a\\nb\"'") {};
+        try (CommandResult result = GitBash.get().runCommand(echo, options))
+        {
+            CapturedOutput output = result.getStdout();
+            Assertions.assertNotNull(output);
+            Assertions.assertFalse(output.isSpilled());
+            Assertions.assertEquals(2, output.getLineCount());
+            Assertions.assertEquals("b", output.getLine(1, Charset.defaultCharset()));
+        }
+        // Trailing empty lines are counted and returned the same way by both methods
+        BashCommand blank = new BashCommand(BashCommand.Type.SCRIPT, "-c 'printf \"a\\n\\n\"'") {};
+        try (CommandResult result = GitBash.get().runCommand(blank, options))
+        {
+            CapturedOutput output = result.getStdout();
+            Assertions.assertNotNull(output);
+            Assertions.assertArrayEquals(new String[] { "a", "" }, output.toLines(Charset.defaultCharset()));
+            Assertions.assertEquals(2, output.getLineCount());
+            Assertions.assertEquals("", output.getLine(1, Charset.defaultCharset()));
+        }
+    }
+
+    @Test
+    public void launchProfileTest() throws IOException, InterruptedException {
+
+        Map<String, String> environment = new HashMap<>(bash.captureEnvironment());
+        Assertions.assertTrue(environment.containsKey("PATH"));
+        Assertions.assertFalse(environment.containsKey("PWD"));
+
+        environment.put("JUTE_PROFILE_TEST", "snapshot");
+        bash.setLaunchProfile(LaunchProfile.create().setStartupFiles(false).setEnvironment(environment).build());
+
+        BashCommand echo = new BashCommand(BashCommand.Type.SCRIPT, "-c 'printf %s \"$JUTE_PROFILE_TEST\"'") {};
+        try (CommandResult result = bash.runCommand(echo, CommandOptions.BUFFERED)) {
+            Assertions.assertEquals("snapshot", String.valueOf(result.getStdout()));
+        }
+        try (CommandResult result = bash.runCommands(List.of(echo), CommandOptions.BUFFERED).get(0)) {
+            Assertions.assertEquals("snapshot", String.valueOf(result.getStdout()));
+        }
+    }
+
     @Test
     public void unixPathTest() {
 
@@ -0,0 +1,122 @@
+package io.yooksi.jute.git;
+
+import io.yooksi.jute.bash.BashCommand;
+import io.yooksi.jute.bash.CommandBackend;
+import io.yooksi.jute.bash.FanOutRunner;
+import io.yooksi.jute.bash.GitBash;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@SuppressWarnings("WeakerAccess")
+public class FanOutRunnerTest {
+
+    private final GitBash bash = GitBash.get();
+    private final List<CommandBackend> backends = List.copyOf(bash.getBackends());
+    private final Executor executor = bash.getExecutor();
+
+    /**
+     * Restore the state of the shared {@code GitBash} instance in case a test changed it.
+     */
+    @AfterEach
+    public void restoreGitBash() {
+
+        for (CommandBackend backend : bash.getBackends())
+        {
+            if (!backends.contains(backend)) {
+                bash.removeBackend(backend);
+            }
+        }
+        bash.setExecutor(executor);
+    }
+
+    @Test
+    public void fanOutCommandTest() throws IOException, InterruptedException, GitAPIException {
+
+        List<Path> roots = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+        {
+            Path repoPath = Files.createTempDirectory("jute");
+            Git.initRepository(repoPath).close();
+            roots.add(repoPath);
+        }
+        Path missing = roots.get(0).resolve("missing");
+        roots.add(missing);
+
+        FanOutRunner runner = FanOutRunner.create(GitBash.get()).setParallelism(2).build();
+        try (FanOutRunner.Run run = runner.run(roots, new GitCommand("status --porcelain")))
+        {
+            int taken = 0;
+            while (run.take() != null) taken++;
+            Assertions.assertEquals(5, taken);
+
+            run.await();
+            Assertions.assertEquals(5, run.getCompletedCount());
+            Assertions.assertEquals(4, run.getResults().size());
+            Assertions.assertEquals(Set.of(missing), run.getFailures().keySet());
+            Assertions.assertEquals(1, run.getFailedCount());
+            Assertions.assertTrue(run.getThroughput() > 0);
+        }
+        finally {
+            for (Path root : roots) FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    public void fanOutImmediateFailuresTest() throws InterruptedException, ExecutionException, TimeoutException {
+
+        /* A backend that fails every command on the calling thread completes each
+         * execution before the next one is started, which must not grow the stack
+         */
+        CommandBackend failing = new CommandBackend() {
+            @Override
+            public boolean supports(BashCommand command) {
+                return true;
+            }
+            @Override
+            public int execute(BashCommand command, Path directory, OutputStream out, OutputStream err) throws IOException {
+                throw new IOException("Unable to execute command in " + directory);
+            }
+        };
+        List<Path> roots = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            roots.add(Paths.get("root" + i));
+        }
+        bash.setExecutor(Runnable::run);
+        bash.addBackend(failing);
+
+        FanOutRunner runner = FanOutRunner.create(bash).setParallelism(1).build();
+        try (FanOutRunner.Run run = runner.run(roots, GitCommand.VERSION))
+        {
+            run.completion().get(1, TimeUnit.MINUTES);
+            Assertions.assertEquals(roots.size(), run.getFailedCount());
+
+            // Interrupted waits do not count as taken outcomes
+            Thread.currentThread().interrupt();
+            Assertions.assertThrows(InterruptedException.class, run::take);
+            Thread.currentThread().interrupt();
+            Assertions.assertThrows(InterruptedException.class, () -> run.poll(Duration.ofSeconds(1)));
+
+            int taken = 0;
+            while (run.take() != null) taken++;
+            Assertions.assertEquals(roots.size(), taken);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.yooksi.jute.git;
+
+import io.yooksi.jute.bash.FastImportWriter;
+import io.yooksi.jute.bash.GitBash;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.Map;
+
+@SuppressWarnings("WeakerAccess")
+public class FastImportWriterTest {
+
+    private Path repoPath;
+
+    @BeforeEach
+    public void createRepository() throws IOException, GitAPIException {
+
+        repoPath = Files.createTempDirectory("jute");
+        Git.initRepository(repoPath).close();
+    }
+
+    @AfterEach
+    public void deleteRepository() throws IOException {
+        FileUtils.deleteDirectory(repoPath.toFile());
+    }
+
+    @Test
+    public void fastImportTest() throws IOException, GitAPIException {
+
+        ZonedDateTime when = ZonedDateTime.now();
+        FastImportWriter writer = FastImportWriter.open(GitBash.get(), repoPath);
+        try {
+            writer.setCheckpointInterval(10);
+            String parent = null;
+            for (int i = 0; i < 25; i++)
+            {
+                FastImportWriter.Commit commit = writer.commit("refs/heads/master")
+                        .setCommitter("jute", "jute@example.com", when).setMessage("Commit " + i)
+                        .modify("count.txt", String.valueOf(i).getBytes()).modify("same.txt", "same".getBytes());
+                if (parent != null) commit.setParent(parent);
+                parent = commit.write();
+            }
+            writer.close();
+            Assertions.assertEquals(25, writer.getCommitCount());
+            Assertions.assertEquals(26, writer.getBlobCount());
+            Assertions.assertEquals(24, writer.getDuplicateBlobCount());
+
+            String head = writer.readMarks().get(parent);
+            try (Git git = Git.openRepository(repoPath))
+            {
+                Assertions.assertEquals(head, git.getHead().getObjectId().getName());
+                Assertions.assertEquals(25, git.getAllCommits().size());
+                Assertions.assertEquals("Commit 24", git.getLastCommitMessage());
+            }
+        }
+        finally {
+            writer.deleteMarks();
+        }
+    }
+
+    @Test
+    public void readMarksAfterCheckpointTest() throws IOException {
+
+        ZonedDateTime when = ZonedDateTime.now();
+        FastImportWriter writer = FastImportWriter.open(GitBash.get(), repoPath);
+        try {
+            String parent = null;
+            for (int i = 0; i < 3; i++)
+            {
+                FastImportWriter.Commit commit = writer.commit("refs/heads/master")
+                        .setCommitter("jute", "jute@example.com", when).setMessage("Commit " + i)
+                        .modify("count.txt", String.valueOf(i).getBytes());
+                if (parent != null) commit.setParent(parent);
+                parent = commit.write();
+
+                // Marks of everything written before a checkpoint are exported when it returns
+                writer.checkpoint();
+                Map<String, String> marks = writer.readMarks();
+                Assertions.assertEquals(2 * (i + 1), marks.size());
+                Assertions.assertTrue(marks.get(parent).matches("[0-9a-f]{40}"));
+            }
+        }
+        finally {
+            writer.close();
+            writer.deleteMarks();
+        }
+    }
+
+    @Test
+    public void rejectInvalidCommandsTest() throws IOException, GitAPIException {
+
+        ZonedDateTime when = ZonedDateTime.now();
+        FastImportWriter writer = FastImportWriter.open(GitBash.get(), repoPath);
+        try {
+            // Values that would change the meaning of the stream are rejected before anything is written
+            FastImportWriter.Commit commit = writer.commit("refs/heads/master");
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> commit.setCommitter("jute\ncommitter x", "jute@example.com", when));
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> commit.setAuthor("jute", "jute@example.com> 0 +0000", when));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> commit.setParent(":1\nreset x"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> writer.commit("refs/heads/a b"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> writer.commit("refs/heads/master\ndone"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> writer.reset("", "HEAD"));
+
+            commit.setCommitter("jute", "jute@example.com", when).setMessage("Valid commit");
+            commit.modify("file.txt", "content".getBytes()).write();
+        }
+        finally {
+            writer.close();
+            writer.deleteMarks();
+        }
+        try (Git git = Git.openRepository(repoPath)) {
+            Assertions.assertEquals("Valid commit", git.getLastCommitMessage());
+        }
+    }
+}
@@ -2,17 +2,46 @@ package io.yooksi.jute.git;
 
 import io.yooksi.jute.bash.*;
 import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @SuppressWarnings("WeakerAccess")
 public class GitCommandTest {
 
+    private final GitBash bash = GitBash.get();
+    private final List<CommandBackend> backends = List.copyOf(bash.getBackends());
+    private final boolean directExecution = bash.isDirectExecution();
+
+    /**
+     * Restore the state of the shared {@code GitBash} instance in case a test changed it.
+     */
+    @AfterEach
+    public void restoreGitBash() {
+
+        for (CommandBackend backend : bash.getBackends())
+        {
+            if (!backends.contains(backend)) {
+                bash.removeBackend(backend);
+            }
+        }
+        bash.setDirectExecution(directExecution);
+    }
+
     @Test
     public void testGitVersionCommand() throws IOException {
 
@@ -26,4 +55,328 @@ public class GitCommandTest {
         String output = FileUtils.readFileToString(logPath.convert().toFile(), Charset.defaultCharset());
         Assertions.assertTrue(output.contains("git version"));
     }
+
+    @Test
+    public void gitCommandArgumentsTest() {
+
+        Path path1 = Paths.get("first file.txt"), path2 = Paths.get("second.txt");
+        DiffCommand diff = DiffCommand.comparePaths(path1, path2, true);
+
+        List<String> expected = List.of("diff", "--no-index", "first file.txt", "second.txt");
+        Assertions.assertEquals(expected, diff.getArguments());
+        Assertions.assertEquals(List.of("--version"), GitCommand.VERSION.getArguments());
+    }
+
+    @Test
+    public void compiledCommandFormatTest() {
+
+        GitCLOption[] options = { DiffFilterOption.ADDED, DiffFilterOption.MODIFIED };
+        String filter1 = DiffFilterOption.ADDED.toString(), filter2 = DiffFilterOption.MODIFIED.toString();
+
+        for (int i = 0; i < 2; i++)
+        {
+            GitCommand diff = new GitCommand("diff %opts %s %s", new String[] { "master", "my branch" }, options);
+            Assertions.assertTrue(diff.toString().endsWith(filter2 + "  master 'my branch'"));
+            Assertions.assertEquals(List.of("diff", filter1, filter2, "master", "my branch"), diff.getArguments());
+        }
+        GitCommand log = new GitCommand("log --format=%s %%s", new String[] { "%H" });
+        Assertions.assertEquals("git log --format=%H %s", log.toString());
+        Assertions.assertEquals(List.of("log", "--format=%H", "%s"), log.getArguments());
+
+        GitCommand single = new GitCommand("diff %opt -- %s", new String[] { "file.txt" }, options);
+        Assertions.assertEquals("git diff " + filter1 + " -- file.txt", single.toString());
+    }
+
+    @Test
+    public void runBatchedGitCommandsTest() throws IOException, InterruptedException {
+
+        List<GitCommand> commands = List.of(GitCommand.VERSION,
+                new GitCommand("config --get jute.undefined.key"), GitCommand.VERSION);
+
+        List<CommandResult> results = GitBash.get().runCommands(commands, CommandOptions.BUFFERED);
+        Assertions.assertEquals(commands.size(), results.size());
+
+        int[] expectedExitCodes = { 0, 1, 0 };
+        for (int i = 0; i < results.size(); i++)
+        {
+            try (CommandResult result = results.get(i))
+            {
+                Assertions.assertEquals(expectedExitCodes[i], result.getExitCode());
+                String output = String.valueOf(result.getStdout());
+                Assertions.assertEquals(result.isSuccess(), output.startsWith("git version"));
+            }
+        }
+    }
+
+    @Test
+    public void readOnlyGitCommandTest() {
+
+        Assertions.assertTrue(GitCommand.VERSION.isReadOnly());
+        Assertions.assertTrue(DiffCommand.comparePaths(Paths.get("a"), Paths.get("b"), true).isReadOnly());
+        Assertions.assertTrue(new GitCommand("-C repo log --oneline").isReadOnly());
+        Assertions.assertTrue(new GitCommand("config --get user.name").isReadOnly());
+        Assertions.assertTrue(new GitCommand("stash list").isReadOnly());
+
+        Assertions.assertFalse(new GitCommand("config user.name jute").isReadOnly());
+        Assertions.assertFalse(new GitCommand("commit -m message").isReadOnly());
+        Assertions.assertFalse(new GitCommand("stash").isReadOnly());
+    }
+
+    @Test
+    public void repositorySchedulerTest() throws InterruptedException {
+
+        RepositoryScheduler scheduler = new RepositoryScheduler();
+        Path dir = Paths.get("");
+
+        CompletableFuture<String> reader = new CompletableFuture<>();
+        CompletableFuture<String> first = scheduler.submit(dir, true, () -> reader);
+        CompletableFuture<String> second = scheduler.submit(dir, true, () -> CompletableFuture.completedFuture("read"));
+        CompletableFuture<String> writer = scheduler.submit(dir, false, () -> CompletableFuture.completedFuture("write"));
+        CompletableFuture<String> third = scheduler.submit(dir, true, () -> CompletableFuture.completedFuture("read"));
+
+        /* Readers run concurrently but the writer waits for all of them,
+         * and readers queued after the writer wait for the writer
+         */
+        Assertions.assertEquals("read", second.join());
+        Assertions.assertFalse(writer.isDone());
+        Assertions.assertFalse(third.isDone());
+        Assertions.assertEquals(2, scheduler.getQueueDepth(dir));
+
+        reader.complete("read");
+        Assertions.assertEquals("write", writer.join());
+        Assertions.assertEquals("read", third.join());
+        Assertions.assertEquals("write", scheduler.run(dir, false, () -> "write"));
+        Assertions.assertEquals(0, scheduler.getQueueDepth());
+        Assertions.assertEquals(5, scheduler.getScheduledCount());
+        Assertions.assertEquals(0, scheduler.getActiveRepositoryCount());
+
+        /* Cancelled commands leave the queue right away, and commands that complete
+         * immediately are started one after another without growing the stack
+         */
+        CompletableFuture<String> blocker = new CompletableFuture<>();
+        scheduler.submit(dir, false, () -> blocker);
+        CompletableFuture<String> cancelled = scheduler.submit(dir, true, () -> CompletableFuture.completedFuture("read"));
+        cancelled.cancel(false);
+        Assertions.assertEquals(0, scheduler.getQueueDepth(dir));
+
+        List<CompletableFuture<String>> queued = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            queued.add(scheduler.submit(dir, i % 2 == 0, () -> CompletableFuture.completedFuture("done")));
+        }
+        blocker.complete("write");
+        queued.forEach(future -> Assertions.assertEquals("done", future.join()));
+        Assertions.assertEquals(0, scheduler.getActiveRepositoryCount());
+    }
+
+    @Test
+    public void runJGitBackendCommandTest() throws IOException, InterruptedException, GitAPIException {
+
+        Path repoPath = Files.createTempDirectory("jute");
+        Git.initRepository(repoPath).close();
+        FileUtils.write(repoPath.resolve("sample.txt").toFile(), "sample text", Charset.defaultCharset());
+
+        CommandOptions options = CommandOptions.BUFFERED.toBuilder().setDirectory(repoPath).build();
+        GitCommand status = new GitCommand("status --porcelain");
+
+        try (JGitBackend backend = new JGitBackend())
+        {
+            Assertions.assertTrue(backend.supports(status));
+            Assertions.assertFalse(backend.supports(GitCommand.VERSION));
+            Assertions.assertFalse(backend.supports(new GitCommand("diff HEAD")));
+            Assertions.assertFalse(backend.supports(new GitCommand("add *.txt")));
+            Assertions.assertFalse(backend.supports(new GitCommand("commit -m message")));
+            Assertions.assertTrue(backend.supports(new GitCommand("commit -q -m message")));
+
+            String expected = String.valueOf(bash.runCommand(status, options).getStdout());
+            bash.addBackend(backend);
+            try {
+                Assertions.assertEquals(expected, String.valueOf(bash.runCommand(status, options).getStdout()));
+                Assertions.assertTrue(bash.runCommand(new GitCommand("add sample.txt"), options).isSuccess());
+                Assertions.assertEquals("A  sample.txt\n", String.valueOf(bash.runCommand(status, options).getStdout()));
+
+                /* Porcelain paths are relative to the root of the work tree and quoted,
+                 * short format paths are relative to the working directory
+                 */
+                Files.createDirectories(repoPath.resolve("sub"));
+                FileUtils.write(repoPath.resolve("sub/a b.txt").toFile(), "text", Charset.defaultCharset());
+                CommandOptions sub = options.toBuilder().setDirectory(repoPath.resolve("sub")).build();
+                Assertions.assertTrue(bash.runCommand(new GitCommand("add %s", new String[] { "a b.txt" }), sub).isSuccess());
+                Assertions.assertEquals("A  sample.txt\nA  \"sub/a b.txt\"\n",
+                        String.valueOf(bash.runCommand(status, sub).getStdout()));
+                Assertions.assertEquals("A  ../sample.txt\nA  \"a b.txt\"\n",
+                        String.valueOf(bash.runCommand(new GitCommand("status -s"), sub).getStdout()));
+
+                try (CommandResult result = bash.runCommand(new GitCommand("add nonexistent"), options))
+                {
+                    Assertions.assertEquals(128, result.getExitCode());
+                    Assertions.assertEquals("fatal: pathspec 'nonexistent' did not match any files\n",
+                            String.valueOf(result.getStderr()));
+                }
+                /* Adding a path also stages removal of tracked files
+                 */
+                Assertions.assertTrue(bash.runCommand(new GitCommand("commit -q -m first"), options).isSuccess());
+                Files.delete(repoPath.resolve("sample.txt"));
+                Assertions.assertTrue(bash.runCommand(new GitCommand("add ."), options).isSuccess());
+                Assertions.assertEquals("D  sample.txt\n", String.valueOf(bash.runCommand(status, options).getStdout()));
+
+                /* Output that JGit does not reproduce is left to the command line program,
+                 * such as staged renames and the long status format of an empty commit
+                 */
+                FileUtils.write(repoPath.resolve("renamed.txt").toFile(), "sample text", Charset.defaultCharset());
+                Assertions.assertTrue(bash.runCommand(new GitCommand("add renamed.txt"), options).isSuccess());
+                Assertions.assertEquals("R  sample.txt -> renamed.txt\n",
+                        String.valueOf(bash.runCommand(status, options).getStdout()));
+                Assertions.assertTrue(bash.runCommand(new GitCommand("commit -q -m second"), options).isSuccess());
+
+                GitCommand empty = new GitCommand("commit -q -m empty");
+                try (CommandResult result = bash.runCommand(empty, options))
+                {
+                    bash.removeBackend(backend);
+                    try (CommandResult cli = bash.runCommand(empty, options))
+                    {
+                        Assertions.assertEquals(cli.getExitCode(), result.getExitCode());
+                        Assertions.assertEquals(String.valueOf(cli.getStdout()), String.valueOf(result.getStdout()));
+                        Assertions.assertEquals(String.valueOf(cli.getStderr()), String.valueOf(result.getStderr()));
+                    }
+                }
+            }
+            finally {
+                bash.removeBackend(backend);
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(repoPath.toFile());
+        }
+    }
+
+    @Test
+    public void chunkedPathsCommandTest() throws IOException, InterruptedException, GitAPIException {
+
+        Path repoPath = Files.createTempDirectory("jute");
+        try {
+            Git.initRepository(repoPath).close();
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < 500; i++)
+            {
+                String path = String.format("dir %03d/file.txt", i);
+                Files.createDirectories(repoPath.resolve(path).getParent());
+                Files.writeString(repoPath.resolve(path), "content " + i);
+                paths.add(path);
+            }
+            Assertions.assertTrue(GitBash.get().getArgumentLimit() > 0);
+            Assertions.assertEquals(1, GitCommand.forPaths("add", paths).size());
+
+            List<GitCommand> add = GitCommand.forPaths("add", paths, 2048);
+            Assertions.assertTrue(add.size() > 1);
+            for (GitCommand command : add)
+            {
+                long size = 0;
+                for (String arg : command.getArguments()) size += GitBash.getArgumentSize(arg);
+                Assertions.assertTrue(size + GitBash.getArgumentSize(GitBash.getGitProgram()) <= 2048);
+            }
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> GitCommand.forPaths("add", List.of("x".repeat(4096)), 2048));
+
+            GitBash bash = GitBash.get();
+            CommandOptions options = CommandOptions.BUFFERED.toBuilder().setDirectory(repoPath).build();
+            try (CommandResult result = bash.runChunked(add, options, 1)) {
+                Assertions.assertTrue(result.isSuccess());
+            }
+            List<GitCommand> list = GitCommand.forPaths("ls-files", paths, 2048);
+            try (CommandResult result = bash.runChunked(list, options, 4))
+            {
+                Assertions.assertTrue(result.isSuccess());
+                Assertions.assertEquals(paths, List.of(String.valueOf(result.getStdout()).split("\n")));
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(repoPath.toFile());
+        }
+    }
+
+    @Test
+    public void chunkedPathsShellCommandTest() throws IOException, InterruptedException, GitAPIException {
+
+        Path repoPath = Files.createTempDirectory("jute");
+        try {
+            Git.initRepository(repoPath).close();
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < 3000; i++)
+            {
+                String path = String.format("directory %02d/file with a long name %04d.txt", i % 10, i);
+                Files.createDirectories(repoPath.resolve(path).getParent());
+                Files.writeString(repoPath.resolve(path), "content " + i);
+                paths.add(path);
+            }
+            /* Commands interpreted by a shell are passed to it as a single
+             * argument, which must fit within the limit of a single argument
+             */
+            bash.setDirectExecution(false);
+            Assertions.assertTrue(bash.getArgumentLimit() < 128 * 1024);
+
+            List<GitCommand> add = GitCommand.forPaths("add", paths);
+            Assertions.assertTrue(add.size() > 1);
+            CommandOptions options = CommandOptions.BUFFERED.toBuilder().setDirectory(repoPath).build();
+            try (CommandResult result = bash.runChunked(add, options, 1)) {
+                Assertions.assertTrue(result.isSuccess(), () -> String.valueOf(result.getStderr()));
+            }
+            try (CommandResult result = bash.runCommand(new GitCommand("ls-files"), options))
+            {
+                List<String> expected = new ArrayList<>(paths);
+                Collections.sort(expected);
+                Assertions.assertEquals(expected, List.of(String.valueOf(result.getStdout()).split("\n")));
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(repoPath.toFile());
+        }
+    }
+
+    @Test
+    public void gitCommandInputTest() throws IOException, InterruptedException, NoSuchAlgorithmException {
+
+        String message = "Commit 'message' with $HOME and `backticks`\n\nSecond paragraph";
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            files.add("some/directory/file-" + i + ".txt");
+        }
+        GitCommand hashObject = new GitCommand("hash-object --stdin");
+        BashScript script = BashScript.create(Paths.get("inputScript.sh"), false)
+                .appendCmd(hashObject).withInput(message)
+                .appendCmd(hashObject).withInput(files).build();
+
+        Assertions.assertEquals(3 + 3 + files.size() + 1, script.getCommands().size());
+        try (CommandResult result = new ScriptRunner(GitBash.get()).runAsync(script, CommandOptions.BUFFERED).join())
+        {
+            Assertions.assertTrue(result.isSuccess());
+            String[] hashes = String.valueOf(result.getStdout()).split("\n");
+            Assertions.assertEquals(blobHash(message + '\n'), hashes[0]);
+            Assertions.assertEquals(blobHash(String.join("\n", files) + '\n'), hashes[1]);
+        }
+    }
+
+    private static String blobHash(String content) throws NoSuchAlgorithmException {
+
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(("blob " + bytes.length + '\0').getBytes(StandardCharsets.US_ASCII));
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(bytes)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void runDirectAndShellGitCommandTest() throws IOException, InterruptedException {
+
+        for (boolean enabled : new boolean[] { true, false })
+        {
+            bash.setDirectExecution(enabled);
+            try (CommandResult result = bash.runCommand(GitCommand.VERSION, CommandOptions.BUFFERED)) {
+                Assertions.assertTrue(String.valueOf(result.getStdout()).contains("git version"));
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+package io.yooksi.jute.git;
+
+import io.yooksi.jute.bash.GitBash;
+import io.yooksi.jute.bash.GitObject;
+import io.yooksi.jute.bash.GitObjectReader;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@SuppressWarnings("WeakerAccess")
+public class GitObjectReaderTest {
+
+    private Path repoPath;
+
+    @BeforeEach
+    public void createRepository() throws IOException, GitAPIException {
+
+        repoPath = Files.createTempDirectory("jute");
+        try (Git git = Git.initRepository(repoPath))
+        {
+            Path sample = repoPath.resolve("sample.txt");
+            FileUtils.write(sample.toFile(), "sample text", Charset.defaultCharset());
+            git.add(sample);
+            git.commit("Add sample file", false);
+        }
+    }
+
+    @AfterEach
+    public void deleteRepository() throws IOException {
+        FileUtils.deleteDirectory(repoPath.toFile());
+    }
+
+    @Test
+    public void readGitObjectsTest() throws IOException, InterruptedException {
+
+        try (GitObjectReader reader = GitObjectReader.open(GitBash.get(), repoPath))
+        {
+            GitObject blob = reader.read("HEAD:sample.txt");
+            Assertions.assertNotNull(blob);
+            Assertions.assertEquals(GitObject.Type.BLOB, blob.getType());
+            Assertions.assertEquals("sample text", blob.toString(Charset.defaultCharset()));
+
+            GitObject commit = reader.info("HEAD");
+            Assertions.assertNotNull(commit);
+            Assertions.assertEquals(GitObject.Type.COMMIT, commit.getType());
+            Assertions.assertNull(commit.getContent());
+
+            Assertions.assertNull(reader.read("HEAD:missing.txt"));
+            List<CompletableFuture<GitObject>> objects = reader.readAllAsync(List.of("HEAD", "HEAD^{tree}", "HEAD:sample.txt"));
+            Assertions.assertEquals(GitObject.Type.TREE, objects.get(1).join().getType());
+            Assertions.assertEquals(blob.getId(), objects.get(2).join().getId());
+        }
+    }
+
+    @Test
+    public void readMissingObjectsTest() throws IOException, InterruptedException {
+
+        try (GitObjectReader reader = GitObjectReader.open(GitBash.get(), repoPath))
+        {
+            // Names of missing objects are echoed back and may contain spaces
+            List<CompletableFuture<GitObject>> objects = reader.readAllAsync(
+                    List.of("HEAD:missing file.txt", "HEAD:a b c", "HEAD:sample.txt"));
+
+            Assertions.assertNull(objects.get(0).join());
+            Assertions.assertNull(objects.get(1).join());
+            Assertions.assertNotNull(objects.get(2).join());
+            Assertions.assertNull(reader.info("HEAD:missing file.txt"));
+            Assertions.assertNotNull(reader.info("HEAD"));
+        }
+    }
+}
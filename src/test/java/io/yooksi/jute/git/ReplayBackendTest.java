@@ -0,0 +1,95 @@
+package io.yooksi.jute.git;
+
+import io.yooksi.jute.bash.CommandBackend;
+import io.yooksi.jute.bash.CommandOptions;
+import io.yooksi.jute.bash.CommandRecording;
+import io.yooksi.jute.bash.CommandResult;
+import io.yooksi.jute.bash.GitBash;
+import io.yooksi.jute.bash.RecordingBackend;
+import io.yooksi.jute.bash.ReplayBackend;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@SuppressWarnings("WeakerAccess")
+public class ReplayBackendTest {
+
+    private final GitBash bash = GitBash.get();
+    private final List<CommandBackend> backends = new ArrayList<>();
+
+    @AfterEach
+    public void removeBackends() {
+        backends.forEach(bash::removeBackend);
+    }
+
+    private void addBackend(CommandBackend backend) {
+        backends.add(backend);
+        bash.addBackend(backend);
+    }
+
+    @Test
+    public void recordAndReplayCommandsTest() throws IOException, InterruptedException {
+
+        CommandRecording recording = new CommandRecording();
+        RecordingBackend recorder = new RecordingBackend(bash, recording);
+
+        addBackend(recorder);
+        String version = String.valueOf(bash.runCommand(GitCommand.VERSION, CommandOptions.BUFFERED).getStdout());
+        Assertions.assertTrue(version.contains("git version"));
+        bash.removeBackend(recorder);
+        Assertions.assertEquals(1, recording.size());
+
+        Path file = Files.createTempFile("jute", ".rec");
+        try {
+            recording.save(file);
+            addBackend(new ReplayBackend(CommandRecording.load(file)).setStrict(true));
+
+            CommandResult result = bash.runCommand(GitCommand.VERSION, CommandOptions.BUFFERED);
+            Assertions.assertEquals(version, String.valueOf(result.getStdout()));
+            Assertions.assertTrue(result.isSuccess());
+            Assertions.assertThrows(IOException.class, () -> bash.runCommand(new GitCommand("status")));
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void replayCommandsInRecordedDirectoryTest() throws IOException, InterruptedException {
+
+        Path recorded = Files.createTempDirectory("jute"), other = Files.createTempDirectory("jute");
+        try {
+            CommandRecording recording = new CommandRecording();
+            recording.add(GitCommand.VERSION, recorded, 0, Duration.ZERO,
+                    "recorded\n".getBytes(StandardCharsets.UTF_8), new byte[0]);
+
+            ReplayBackend replay = new ReplayBackend(recording);
+            Assertions.assertTrue(replay.supports(GitCommand.VERSION, recorded));
+            Assertions.assertFalse(replay.supports(GitCommand.VERSION, other));
+            addBackend(replay);
+
+            /* Commands recorded in another directory are executed instead of failing
+             */
+            CommandOptions options = CommandOptions.BUFFERED.toBuilder().setDirectory(recorded).build();
+            Assertions.assertEquals("recorded\n", String.valueOf(bash.runCommand(GitCommand.VERSION, options).getStdout()));
+
+            options = options.toBuilder().setDirectory(other).build();
+            try (CommandResult result = bash.runCommand(GitCommand.VERSION, options)) {
+                Assertions.assertTrue(String.valueOf(result.getStdout()).startsWith("git version"));
+            }
+        }
+        finally {
+            Files.delete(recorded);
+            Files.delete(other);
+        }
+    }
+}